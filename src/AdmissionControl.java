@@ -0,0 +1,100 @@
+import java.util.concurrent.TimeUnit;
+
+// Bounds the work a router or server has accepted and not yet answered: how many requests,
+// and roughly how much heap they hold (sized from the matrix dimensions in their headers,
+// before anything is decoded). A request that does not fit is turned away at once with
+// FRAME_BUSY instead of queueing until the heap runs out. When nothing is in flight any
+// request is admitted, so one larger than the byte limit still runs, just not alongside others.
+public final class AdmissionControl {
+    // Defaults; -Dstrassen.max.requests and -Dstrassen.max.queued.bytes override them
+    public static final int DEFAULT_MAX_REQUESTS = 1024;
+    public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 2;
+    // Default for -Dstrassen.max.connections where connections are cheap (router, virtual threads)
+    public static final int DEFAULT_MAX_CONNECTIONS = 10_000;
+    // How long a shutdown waits for in-flight work before cutting it off
+    public static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final int maxRequests;
+    private final long maxBytes;
+    private int requests = 0;
+    private long bytes = 0;
+    private final Telemetry.Counter rejected;
+
+    // maxRequests of 0 admits everything
+    public AdmissionControl(String component, int maxRequests, long maxBytes) {
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+        this.rejected = Telemetry.counter(component, "rejected_requests");
+        if (maxRequests <= 0) {
+            return;
+        }
+        Telemetry.gauge(component, "admitted_requests", this::getRequests);
+        Telemetry.gauge(component, "admitted_bytes", this::getBytes);
+    }
+
+    // Limits from the system properties
+    public static AdmissionControl fromProperties(String component) {
+        return new AdmissionControl(component,
+                Integer.getInteger("strassen.max.requests", DEFAULT_MAX_REQUESTS),
+                Long.getLong("strassen.max.queued.bytes", DEFAULT_MAX_BYTES));
+    }
+
+    // True if a request holding requestBytes fits; it must then be released exactly once
+    public synchronized boolean tryAdmit(long requestBytes) {
+        if (maxRequests <= 0) {
+            return true;
+        }
+        if (requests > 0 && (requests >= maxRequests || bytes + requestBytes > maxBytes)) {
+            rejected.increment();
+            return false;
+        }
+        requests++;
+        bytes += requestBytes;
+        return true;
+    }
+
+    public synchronized void release(long requestBytes) {
+        if (maxRequests <= 0) {
+            return;
+        }
+        requests--;
+        bytes -= requestBytes;
+    }
+
+    // True if a frame of frameBytes may be buffered before it is known what request it holds.
+    // It counts against the byte limit only, so the request it carries is still admitted on
+    // its own; it must be given back with unreserve exactly once.
+    public synchronized boolean tryReserve(long frameBytes) {
+        if (maxRequests <= 0) {
+            return true;
+        }
+        if ((requests > 0 || bytes > 0) && bytes + frameBytes > maxBytes) {
+            rejected.increment();
+            return false;
+        }
+        bytes += frameBytes;
+        return true;
+    }
+
+    public synchronized void unreserve(long frameBytes) {
+        if (maxRequests <= 0) {
+            return;
+        }
+        bytes -= frameBytes;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Heap an m x k by k x n multiply holds while it runs: A and B (unless B is already held
+    // as a registered operand) and the result
+    public static long multiplyBytes(byte elementType, int m, int k, int n, boolean operandsB) {
+        long elements = (long) m * k + (long) m * n + (operandsB ? (long) k * n : 0);
+        return elements * WireProtocol.elementBytes(elementType);
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One compute server behind the router: its connection pool plus the load figures the
+// balancing policies look at.
+public class Backend {
+    public final String host;
+    public final int port;
+    final BackendPool pool;
+    // Requests currently dispatched to this backend and not yet answered (its queue depth)
+    final AtomicInteger outstanding = new AtomicInteger();
+    // Estimated work of those requests, in the units of LoadBalancer.estimateCost
+    final AtomicLong outstandingCost = new AtomicLong();
+    volatile boolean healthy = true;
+
+    public Backend(String host, int port, int poolSize, TCPServerRouter router) {
+        this.host = host;
+        this.port = port;
+        this.pool = new BackendPool(host, port, poolSize, router);
+    }
+
+    public int getQueueDepth() {
+        return outstanding.get();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
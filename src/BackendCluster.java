@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The set of compute servers behind the router. Requests go to the backend chosen by the
+// LoadBalancer; a backend that cannot be connected to is taken out of rotation and the
+// request is retried on another one. A multiply whose connection fails mid-request is retried
+// once more, without taking the backend out. A periodic PING evicts backends that stopped
+// answering and brings recovered ones back.
+public class BackendCluster {
+    private static final long HEALTH_CHECK_INTERVAL_MS = 2000;
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final LoadBalancer balancer;
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "backend-health-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BackendCluster(List<InetSocketAddress> addresses, LoadBalancer balancer, int poolSize, TCPServerRouter router) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required");
+        }
+        for (InetSocketAddress address : addresses) {
+            backends.add(new Backend(address.getHostString(), address.getPort(), poolSize, router));
+        }
+        this.balancer = balancer;
+    }
+
+    // Parses "host:port,host:port"
+    public static List<InetSocketAddress> parseBackends(String spec) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String trimmed = entry.trim();
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Backend must be host:port, got " + trimmed);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(trimmed.substring(0, colon),
+                    Integer.parseInt(trimmed.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    public void start() {
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL_MS,
+                HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Sends a complete frame to one backend and hands its response to handler, retrying on
+    // the remaining healthy backends if the chosen one cannot be connected to or is busy (the
+    // last busy answer is passed on). A backend dropping the connection mid-request is not
+    // evicted, so one bad request cannot take down every node in turn; the health check decides
+    // whether the backend is really gone. A multiply, which is safe to run twice, is retried
+    // once: on another backend if there is one left, otherwise on the same one over a fresh
+    // connection, as its idle ones are likely as stale as the one that failed (e.g. after the
+    // backend restarted). Returns the backend that answered.
+    public Backend exchange(ByteBuffer request, BackendPool.ResponseHandler handler) throws IOException {
+        long cost = requestCost(request);
+        List<Backend> tried = new ArrayList<>();
+        IOException lastFailure = null;
+        boolean retried = false;
+        boolean[] busy = new boolean[1];
+        while (true) {
+            Backend backend = choose(cost, tried, lastFailure);
+            backend.outstanding.incrementAndGet();
+            backend.outstandingCost.addAndGet(cost);
+            try {
+                request.position(0);
+                backend.pool.exchange(request, response -> {
+                    busy[0] = WireProtocol.frameType(response) == WireProtocol.FRAME_BUSY && hasUntried(tried);
+                    if (!busy[0]) {
+                        handler.onResponse(response);
+                    }
+                });
+                if (!busy[0]) {
+                    return backend;
+                }
+            } catch (BackendPool.BackendUnavailableException e) {
+                if (e.connectFailed) {
+                    markDown(backend, e);
+                } else if (!retried && isRetryable(request)) {
+                    retried = true;
+                    if (!hasUntried(tried)) {
+                        backend.pool.evictIdle();
+                        tried.remove(backend);
+                    }
+                } else {
+                    throw e;
+                }
+                lastFailure = e;
+            } finally {
+                backend.outstanding.decrementAndGet();
+                backend.outstandingCost.addAndGet(-cost);
+            }
+        }
+    }
+
+    // Requests that may be sent again after a connection failed without an answer: running a
+    // multiply twice only costs time, unlike registering an operand twice
+    private static boolean isRetryable(ByteBuffer request) {
+        return WireProtocol.frameType(request) == WireProtocol.FRAME_MULTIPLY;
+    }
+
+    // Exchange with one particular backend, for requests that depend on state held there (a
+    // registered operand). There is nowhere else to send them: a multiply by handle whose
+    // connection fails mid-request is retried once over a fresh connection, anything else fails.
+    public void exchange(Backend backend, ByteBuffer request, BackendPool.ResponseHandler handler) throws IOException {
+        if (!backend.healthy) {
+            throw new IOException("Backend " + backend + " is down");
+        }
+        long cost = requestCost(request);
+        backend.outstanding.incrementAndGet();
+        backend.outstandingCost.addAndGet(cost);
+        try {
+            request.position(0);
+            try {
+                backend.pool.exchange(request, handler);
+            } catch (BackendPool.BackendUnavailableException e) {
+                if (e.connectFailed || WireProtocol.frameType(request) != WireProtocol.FRAME_MULTIPLY_HANDLE) {
+                    throw e;
+                }
+                backend.pool.evictIdle();
+                request.position(0);
+                backend.pool.exchange(request, handler);
+            }
+        } catch (BackendPool.BackendUnavailableException e) {
+            if (e.connectFailed) {
+                markDown(backend, e);
+            }
+            throw e;
+        } finally {
+            backend.outstanding.decrementAndGet();
+            backend.outstandingCost.addAndGet(-cost);
+        }
+    }
+
+    // Runs a streamed exchange on one backend connection. Only failing to connect is retried
+    // elsewhere: tiles already forwarded are not kept, so a stream cannot be replayed.
+    public void stream(long cost, BackendPool.ConnectionUser user) throws IOException {
+        List<Backend> tried = new ArrayList<>();
+        IOException lastFailure = null;
+        while (true) {
+            Backend backend = choose(cost, tried, lastFailure);
+            backend.outstanding.incrementAndGet();
+            backend.outstandingCost.addAndGet(cost);
+            try {
+                backend.pool.withConnection(user);
+                return;
+            } catch (BackendPool.BackendUnavailableException e) {
+                if (!e.connectFailed) {
+                    throw e;
+                }
+                markDown(backend, e);
+                lastFailure = e;
+            } finally {
+                backend.outstanding.decrementAndGet();
+                backend.outstandingCost.addAndGet(-cost);
+            }
+        }
+    }
+
+    // Picks the next healthy backend not yet tried for this request
+    private boolean hasUntried(List<Backend> tried) {
+        for (Backend backend : backends) {
+            if (backend.healthy && !tried.contains(backend)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Backend choose(long cost, List<Backend> tried, IOException lastFailure) throws IOException {
+        List<Backend> candidates = new ArrayList<>();
+        for (Backend backend : backends) {
+            if (backend.healthy && !tried.contains(backend)) {
+                candidates.add(backend);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw lastFailure != null ? new IOException("All backends failed", lastFailure)
+                    : new IOException("No healthy backends");
+        }
+        Backend backend = balancer.select(candidates, cost);
+        tried.add(backend);
+        return backend;
+    }
+
+    // Strassen cost of a FRAME_MULTIPLY, read from the matrix headers without decoding the frame
+    private static long requestCost(ByteBuffer request) throws IOException {
+        byte type = WireProtocol.frameType(request);
+        int positionA = WireProtocol.FRAME_HEADER_BYTES + Integer.BYTES;
+        if (type == WireProtocol.FRAME_MULTIPLY_HANDLE) {
+            // B is not in the frame; taking it as square is the best estimate
+            WireProtocol.matrixEnd(request, positionA);
+            int inner = WireProtocol.colsAt(request, positionA);
+            return LoadBalancer.estimateCost(WireProtocol.rowsAt(request, positionA), inner, inner);
+        }
+        if (type != WireProtocol.FRAME_MULTIPLY) {
+            return 0;
+        }
+        int positionB = WireProtocol.matrixEnd(request, positionA);
+        WireProtocol.matrixEnd(request, positionB);
+        return LoadBalancer.estimateCost(WireProtocol.rowsAt(request, positionA), WireProtocol.colsAt(request, positionA),
+                WireProtocol.colsAt(request, positionB));
+    }
+
+    private void markDown(Backend backend, IOException cause) {
+        if (backend.healthy) {
+            backend.healthy = false;
+            System.out.println("Backend " + backend + " evicted: " + cause.getMessage());
+        }
+        backend.pool.evictIdle();
+    }
+
+    private void checkHealth() {
+        for (Backend backend : backends) {
+            ByteBuffer ping = WireProtocol.allocateFrame(WireProtocol.FRAME_PING, 0, 0).flip();
+            try {
+                backend.pool.exchange(ping, response -> {
+                    if (WireProtocol.frameType(response) != WireProtocol.FRAME_PONG) {
+                        throw new IOException("Unexpected health check reply");
+                    }
+                });
+                if (!backend.healthy) {
+                    backend.healthy = true;
+                    System.out.println("Backend " + backend + " is healthy again");
+                }
+            } catch (IOException e) {
+                markDown(backend, e);
+            }
+        }
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    // e.g. "localhost:12346=3 localhost:12347=0 (down)"
+    public String describeQueueDepths() {
+        StringBuilder description = new StringBuilder();
+        for (Backend backend : backends) {
+            if (description.length() > 0) {
+                description.append(' ');
+            }
+            description.append(backend).append('=').append(backend.getQueueDepth());
+            if (!backend.healthy) {
+                description.append(" (down)");
+            }
+        }
+        return description.toString();
+    }
+
+    public void close() {
+        healthChecker.shutdownNow();
+        for (Backend backend : backends) {
+            backend.pool.close();
+        }
+    }
+}
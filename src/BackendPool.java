@@ -0,0 +1,186 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded pool of persistent binary-protocol connections to one compute server. A request
+// borrows a connection for one frame exchange and hands it back, so at most maxConnections
+// sockets are ever open to the backend and no request pays for a TCP handshake once warm.
+public class BackendPool {
+    private static final AtomicInteger connectionIdCounter = new AtomicInteger();
+
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final TCPServerRouter router;
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    // Receives the backend's response frame; the buffer is only valid during the call
+    public interface ResponseHandler {
+        void onResponse(ByteBuffer frame) throws IOException;
+    }
+
+    // Drives a multi-frame exchange (a streamed multiply) on a borrowed connection
+    public interface ConnectionUser {
+        void use(FrameChannel channel) throws IOException;
+    }
+
+    private static class PooledConnection {
+        final int id;
+        final FrameChannel channel;
+
+        PooledConnection(int id, FrameChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    public BackendPool(String host, int port, int maxConnections, TCPServerRouter router) {
+        this.host = host;
+        this.port = port;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.router = router;
+    }
+
+    // Thrown when the backend itself failed (as opposed to the response handler). Only a
+    // failed connect (connectFailed) says the backend is gone and the request was never sent,
+    // so it can be retried elsewhere; a connection dropped mid-request may have been the
+    // request's own doing and is not a reason to replay it.
+    public static class BackendUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final boolean connectFailed;
+
+        public BackendUnavailableException(String message, Throwable cause, boolean connectFailed) {
+            super(message, cause);
+            this.connectFailed = connectFailed;
+        }
+    }
+
+    // Sends one complete frame (from position 0) and passes the response frame to handler.
+    // A connection that fails mid-exchange is discarded rather than returned to the pool.
+    public void exchange(ByteBuffer request, ResponseHandler handler) throws IOException {
+        PooledConnection connection;
+        ByteBuffer response;
+        try {
+            connection = acquire();
+        } catch (IOException e) {
+            throw new BackendUnavailableException("Cannot connect to backend " + host + ":" + port, e, true);
+        }
+        try {
+            connection.channel.sendFrame(request);
+            response = connection.channel.readFrame();
+            if (response == null) {
+                throw new EOFException("Backend " + host + ":" + port + " closed the connection");
+            }
+        } catch (IOException e) {
+            discard(connection);
+            throw new BackendUnavailableException("Backend " + host + ":" + port + " failed mid-request", e, false);
+        }
+        try {
+            handler.onResponse(response.position(0));
+        } finally {
+            release(connection);
+        }
+    }
+
+    // Lends a connection for the whole of a multi-frame exchange. It goes back to the pool only
+    // if user returns normally; a stream cut short leaves the connection mid-protocol.
+    public void withConnection(ConnectionUser user) throws IOException {
+        PooledConnection connection;
+        try {
+            connection = acquire();
+        } catch (IOException e) {
+            throw new BackendUnavailableException("Cannot connect to backend " + host + ":" + port, e, true);
+        }
+        boolean completed = false;
+        try {
+            user.use(connection.channel);
+            completed = true;
+        } finally {
+            if (completed) {
+                release(connection);
+            } else {
+                discard(connection);
+            }
+        }
+    }
+
+    private PooledConnection acquire() throws IOException {
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        // Open a new connection while under the limit, otherwise wait for one to come back.
+        // The wait is bounded so a slot freed by a discarded connection is noticed.
+        while (true) {
+            if (closed) {
+                throw new IOException("Backend pool for " + host + ":" + port + " is closed");
+            }
+            int open = openConnections.get();
+            if (open < maxConnections) {
+                if (openConnections.compareAndSet(open, open + 1)) {
+                    return open();
+                }
+                continue;
+            }
+            try {
+                connection = idle.poll(100, TimeUnit.MILLISECONDS);
+                if (connection != null) {
+                    return connection;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a backend connection", e);
+            }
+        }
+    }
+
+    private PooledConnection open() throws IOException {
+        try {
+            FrameChannel channel = FrameChannel.connect(host, port);
+            channel.writePreamble(WireProtocol.VERSION_BINARY);
+            PooledConnection connection = new PooledConnection(connectionIdCounter.incrementAndGet(), channel);
+            router.addConnection(connection.id, channel.channel());
+            return connection;
+        } catch (IOException e) {
+            openConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        if (closed) {
+            discard(connection);
+        } else {
+            idle.offer(connection);
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        openConnections.decrementAndGet();
+        router.removeConnection(connection.id);
+    }
+
+    // Drops every idle connection, e.g. after the backend was found dead and they are all stale
+    public void evictIdle() {
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public void close() {
+        closed = true;
+        evictIdle();
+    }
+}
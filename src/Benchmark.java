@@ -0,0 +1,310 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Benchmark harness for the multiply engine and the wire path. Each case is warmed up and then
+// timed over several fixed-length iterations (average time per operation, as JMH's avgt mode),
+// for every combination of matrix size and thread count. Results are written as JMH-style
+// JSON, one result per line, and can be compared against an earlier run to catch regressions.
+//
+//   java Benchmark [--sizes 64,100,128,257,512] [--threads 1,2,4] [--warmup 3] [--iterations 5]
+//                  [--time-ms 500] [--bench multiply,sequential,strassen,winograd,sparse,kernel,pad,unpad,serialization,frame,roundtrip,handle]
+//                  [--output benchmark.json] [--baseline previous.json] [--tolerance 0.10]
+public class Benchmark {
+    private static final String ALL_BENCHMARKS = "multiply,sequential,strassen,winograd,sparse,kernel,pad,unpad,serialization,frame,roundtrip,handle";
+    private static final Pattern RESULT_LINE = Pattern.compile(
+            "\"benchmark\" : \"([^\"]+)\", \"params\" : \\{([^}]*)\\}.*\"score\" : ([0-9.eE+-]+)");
+
+    // Keeps results alive so the JIT cannot drop the work being measured
+    private static volatile int sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final List<String> results = new ArrayList<>();
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public Benchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] sizes = parseInts(options.getOrDefault("sizes", "64,100,128,257,512"));
+        int[] threads = parseInts(options.getOrDefault("threads", "1," + Runtime.getRuntime().availableProcessors()));
+        List<String> benchmarks = List.of(options.getOrDefault("bench", ALL_BENCHMARKS).split(","));
+        Benchmark benchmark = new Benchmark(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")),
+                Long.parseLong(options.getOrDefault("time-ms", "500")));
+
+        for (int size : sizes) {
+            benchmark.runSize(benchmarks, size, threads);
+        }
+
+        Path output = Paths.get(options.getOrDefault("output", "benchmark.json"));
+        benchmark.writeJson(output);
+        System.out.println("Results written to " + output.toAbsolutePath());
+
+        if (options.containsKey("baseline")) {
+            double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.10"));
+            if (!compare(Paths.get(options.get("baseline")), output, tolerance)) {
+                System.exit(1);
+            }
+        }
+        System.exit(0); // The round-trip server and router threads do not stop on their own
+    }
+
+    private void runSize(List<String> benchmarks, int size, int[] threadCounts) throws Exception {
+        Random random = new Random(size);
+        int[][] A = randomMatrix(random, size);
+        int[][] B = randomMatrix(random, size);
+
+        for (int threads : threadCounts) {
+            if (!benchmarks.contains("multiply")) {
+                break;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            measure("multiply", size, threads, () -> sink += StrassenMatrixMultiplication.multiply(A, B, pool)[0][0]);
+            pool.shutdown();
+        }
+        if (benchmarks.contains("sequential")) {
+            measure("sequential", size, 1, () -> sink += StrassenMatrixMultiplication.multiplySequential(A, B)[0][0]);
+        }
+        // Each fast algorithm on one thread, whatever the selector would pick
+        for (byte algorithm : new byte[] {WireProtocol.ALGORITHM_STRASSEN, WireProtocol.ALGORITHM_WINOGRAD}) {
+            String name = WireProtocol.algorithmName(algorithm);
+            if (benchmarks.contains(name)) {
+                IntMatrix flatA = IntMatrix.fromArray(A), flatB = IntMatrix.fromArray(B), flatC = new IntMatrix(size, size);
+                measure(name, size, 1, () -> {
+                    StrassenMatrixMultiplication.multiplySequential(flatA, flatB, flatC, algorithm);
+                    sink += flatC.data[0];
+                });
+            }
+        }
+        if (benchmarks.contains("sparse")) {
+            // A with 5% non-zeros, which the selector hands to the sparse path
+            IntMatrix sparseA = new IntMatrix(size, size), flatB = IntMatrix.fromArray(B), flatC = new IntMatrix(size, size);
+            for (int i = 0; i < sparseA.data.length; i++) {
+                sparseA.data[i] = random.nextInt(20) == 0 ? 1 + random.nextInt(9) : 0;
+            }
+            measure("sparse", size, 1, () -> {
+                StrassenMatrixMultiplication.multiplySequential(sparseA, flatB, flatC);
+                sink += flatC.data[0];
+            });
+        }
+        if (benchmarks.contains("kernel")) {
+            // Classical O(n^3) multiply with the leaf kernel, the baseline Strassen has to beat
+            IntMatrix flatA = IntMatrix.fromArray(A), flatB = IntMatrix.fromArray(B), flatC = new IntMatrix(size, size);
+            measure("kernel", size, 1, () -> {
+                MatrixKernel.multiply(flatA, flatB, flatC);
+                sink += flatC.data[0];
+            });
+        }
+        // Nothing is padded any more: "pad" and "unpad" are the copies in and out of flat form
+        if (benchmarks.contains("pad")) {
+            measure("pad", size, 1, () -> sink += IntMatrix.fromArray(A).data[0]);
+        }
+        if (benchmarks.contains("unpad")) {
+            IntMatrix flatA = IntMatrix.fromArray(A);
+            measure("unpad", size, 1, () -> sink += flatA.toArray()[0][0]);
+        }
+        if (benchmarks.contains("serialization")) {
+            // What the legacy protocol does: serialize both operands and read them back
+            measure("serialization", size, 1, () -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(A);
+                    out.writeObject(B);
+                }
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    sink += ((int[][]) in.readObject())[0][0] + ((int[][]) in.readObject())[0][0];
+                }
+            });
+        }
+        if (benchmarks.contains("frame")) {
+            // The binary protocol: encode a multiply frame (in the default encodings) and decode
+            // it into flat operands
+            IntMatrix flatA = IntMatrix.fromArray(A), flatB = IntMatrix.fromArray(B);
+            measure("frame", size, 1, () -> {
+                ByteBuffer frame = WireProtocol.encodeMultiply(1, 1, flatA, flatB);
+                frame.position(WireProtocol.FRAME_HEADER_BYTES + Integer.BYTES);
+                sink += WireProtocol.getMatrix(frame).element(0, 0).intValue() + WireProtocol.getMatrix(frame).element(0, 0).intValue();
+            });
+        }
+        if (benchmarks.contains("roundtrip") || benchmarks.contains("handle")) {
+            measureRoundTrip(benchmarks, size, A, B);
+        }
+    }
+
+    // Client -> router -> server and back over loopback, one request at a time; "handle" does
+    // the same with B registered once and only A sent per request
+    private void measureRoundTrip(List<String> benchmarks, int size, int[][] A, int[][] B) throws Exception {
+        LoopbackCluster.start();
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (ClientSession session = new TCPClient().openSession(1, 1)) {
+            if (benchmarks.contains("roundtrip")) {
+                measure("roundtrip", size, threads, () -> sink += session.submit(A, B).join().matrix[0][0]);
+            }
+            if (benchmarks.contains("handle")) {
+                long handle = session.register(B, 0).join();
+                measure("handle", size, threads, () -> sink += session.submit(A, handle).join().matrix[0][0]);
+                session.release(handle).join();
+            }
+        }
+    }
+
+    private void measure(String name, int size, int threads, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = iteration(operation);
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        // Half-width of a ~99.9% interval, the error JMH reports
+        double error = scores.length > 1 ? 3.29 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+
+        System.out.println(String.format(Locale.ROOT, "%-14s size=%-5d threads=%-3d %12.4f ms/op  +- %.4f", name, size, threads, mean, error));
+        StringBuilder raw = new StringBuilder();
+        for (double score : scores) {
+            raw.append(raw.length() == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.6f", score));
+        }
+        results.add(String.format(Locale.ROOT,
+                "{ \"benchmark\" : \"%s\", \"params\" : { \"size\" : \"%d\", \"threads\" : \"%d\" }, \"mode\" : \"avgt\", "
+                        + "\"warmupIterations\" : %d, \"measurementIterations\" : %d, \"primaryMetric\" : { \"score\" : %.6f, "
+                        + "\"scoreError\" : %s, \"scoreUnit\" : \"ms/op\", \"rawData\" : [ [ %s ] ] } }",
+                name, size, threads, warmupIterations, measurementIterations, mean,
+                Double.isNaN(error) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", error), raw));
+    }
+
+    // Runs the operation for at least one iteration time and returns milliseconds per call
+    private double iteration(Operation operation) throws Exception {
+        long start = System.nanoTime();
+        long elapsed;
+        int operations = 0;
+        do {
+            operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return elapsed / 1e6 / operations;
+    }
+
+    private void writeJson(Path output) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output))) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                writer.println("    " + results.get(i) + (i < results.size() - 1 ? "," : ""));
+            }
+            writer.println("]");
+        }
+    }
+
+    // Prints current/baseline for every case in both files; false if any got slower than tolerance allows
+    private static boolean compare(Path baseline, Path current, double tolerance) throws IOException {
+        Map<String, Double> before = readScores(baseline);
+        Map<String, Double> after = readScores(current);
+        boolean passed = true;
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double previous = before.get(entry.getKey());
+            if (previous == null) {
+                continue;
+            }
+            double ratio = entry.getValue() / previous;
+            boolean regressed = ratio > 1 + tolerance;
+            passed &= !regressed;
+            System.out.println(String.format(Locale.ROOT, "%-50s %8.3fx%s", entry.getKey(), ratio, regressed ? "  REGRESSION" : ""));
+        }
+        return passed;
+    }
+
+    private static Map<String, Double> readScores(Path file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            Matcher matcher = RESULT_LINE.matcher(line);
+            if (matcher.find()) {
+                scores.put(matcher.group(1) + " {" + matcher.group(2).trim() + "}", Double.parseDouble(matcher.group(3)));
+            }
+        }
+        return scores;
+    }
+
+    // In-process server and router on their default ports, started once for all round trips
+    private static class LoopbackCluster {
+        private static boolean started = false;
+
+        static synchronized void start() throws InterruptedException {
+            if (started) {
+                return;
+            }
+            // Every round trip resends the same pair; answering it from the caches would not time the path
+            System.getProperties().putIfAbsent("strassen.cache.bytes", "0");
+            Thread server = new Thread(() -> new TCPServer(Runtime.getRuntime().availableProcessors()).startServer(), "benchmark-server");
+            server.setDaemon(true);
+            server.start();
+            TCPServerRouter router = new TCPServerRouter();
+            Thread routerThread = new Thread(router::startRouter, "benchmark-router");
+            routerThread.setDaemon(true);
+            routerThread.start();
+            Thread.sleep(500); // Let both bind their ports
+            started = true;
+        }
+    }
+
+    private static int[][] randomMatrix(Random random, int size) {
+        int[][] matrix = new int[size][size];
+        for (int[] row : matrix) {
+            for (int j = 0; j < size; j++) {
+                row[j] = random.nextInt(10);
+            }
+        }
+        return matrix;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Router-side state of one non-blocking client connection: the partially read preamble or
+// frame, and the responses waiting to be written. A client may pipeline up to
+// MAX_IN_FLIGHT requests; responses are queued in completion order, the request id in each
+// frame lets the client match them up. Every frame read counts against the limit until it is
+// retired, including the tiles of a streamed multiply, so a fast uploader is held back too.
+public class ClientConnection {
+    static final int MAX_IN_FLIGHT = 64;
+
+    final SocketChannel channel;
+    private final ByteBuffer preamble = ByteBuffer.allocate(4);
+    private final ByteBuffer header = ByteBuffer.allocate(WireProtocol.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer request; // Frame being read, handed off once complete
+    private int skipBytes = 0; // Rest of a frame that was turned away, discarded as it arrives
+    private ByteBuffer discard;
+    private boolean negotiated = false;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    // Streamed multiplies whose tiles are still arriving, by request id
+    private final Map<Long, StreamRelay> streams = new HashMap<>();
+
+    public ClientConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    // Returns the preamble once all four bytes have arrived, otherwise null. The connection
+    // counts as negotiated only if the preamble announced the binary protocol.
+    public ByteBuffer readPreamble() throws IOException {
+        if (channel.read(preamble) < 0) {
+            throw new EOFException("Client closed before negotiating a protocol");
+        }
+        if (preamble.hasRemaining()) {
+            return null;
+        }
+        negotiated = preamble.get(0) == WireProtocol.MAGIC[0] && preamble.get(1) == WireProtocol.MAGIC[1]
+                && preamble.get(2) == WireProtocol.MAGIC[2] && preamble.get(3) == WireProtocol.VERSION_BINARY;
+        return preamble.flip();
+    }
+
+    public boolean isNegotiated() {
+        return negotiated;
+    }
+
+    public ByteBuffer getPreamble() {
+        return preamble;
+    }
+
+    // Reads what is available and returns the complete frame (from position 0) once it has
+    // fully arrived, otherwise null. Each frame gets its own buffer since several can be in
+    // flight at once, so a frame is only buffered once admission has taken it on the strength
+    // of its header; one turned away is discarded as it arrives. Throws EOFException when the
+    // client has gone away.
+    public ByteBuffer readFrame(FrameChannel.FrameAdmission admission) throws IOException {
+        while (skipBytes > 0 || request == null) {
+            if (skipBytes > 0) {
+                if (discard == null) {
+                    discard = ByteBuffer.allocate(8192);
+                }
+                discard.clear().limit(Math.min(skipBytes, discard.capacity()));
+                int read = channel.read(discard);
+                if (read < 0) {
+                    throw new EOFException("Client closed mid-frame");
+                }
+                skipBytes -= read;
+                if (skipBytes > 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (channel.read(header) < 0) {
+                throw new EOFException("Client closed the connection");
+            }
+            if (header.hasRemaining()) {
+                return null;
+            }
+            int length = header.getInt(0);
+            if (length < WireProtocol.FRAME_HEADER_BYTES - Integer.BYTES || length > WireProtocol.MAX_FRAME_BYTES) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            header.flip();
+            if (admission.admit(header.get(Integer.BYTES), header.getLong(Integer.BYTES + 1), Integer.BYTES + length)) {
+                request = ByteBuffer.allocate(Integer.BYTES + length).order(ByteOrder.LITTLE_ENDIAN);
+                request.put(header);
+            } else {
+                skipBytes = Integer.BYTES + length - WireProtocol.FRAME_HEADER_BYTES;
+            }
+            header.clear();
+        }
+        if (channel.read(request) < 0) {
+            throw new EOFException("Client closed mid-frame");
+        }
+        if (request.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer frame = request.flip();
+        request = null;
+        inFlight.incrementAndGet();
+        return frame;
+    }
+
+    // The frame admitted but not yet fully read, if any, so the caller can give back its
+    // admission: the connection is closing and the rest of its body will never arrive
+    public ByteBuffer abandonPartialFrame() {
+        ByteBuffer partial = request;
+        request = null;
+        return partial;
+    }
+
+    public boolean canAcceptRequest() {
+        return inFlight.get() < MAX_IN_FLIGHT;
+    }
+
+    // Queues a copy of a response frame (the backend's buffer is reused) and retires its request
+    public void queueResponse(ByteBuffer frame) {
+        queueFrame(frame);
+        retireRequest();
+    }
+
+    // Queues a copy of a frame without retiring anything, e.g. one result tile of a stream
+    public void queueFrame(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(frame).flip();
+        outbound.add(copy);
+    }
+
+    // Frees the in-flight slot of a frame that was handled without a response of its own,
+    // e.g. a tile once it has been forwarded
+    public void retireRequest() {
+        inFlight.decrementAndGet();
+    }
+
+    // Streams are opened, fed and closed by the selector thread only
+    public void openStream(StreamRelay stream) {
+        streams.put(stream.requestId, stream);
+    }
+
+    public StreamRelay getStream(long requestId) {
+        return streams.get(requestId);
+    }
+
+    public void closeStream(long requestId) {
+        streams.remove(requestId);
+    }
+
+    public boolean hasPendingOutput() {
+        return !outbound.isEmpty();
+    }
+
+    // Writes as much queued output as the socket accepts; true once it is all sent
+    public boolean flush() throws IOException {
+        ByteBuffer next;
+        while ((next = outbound.peek()) != null) {
+            channel.write(next);
+            if (next.hasRemaining()) {
+                return false;
+            }
+            outbound.poll();
+        }
+        return true;
+    }
+
+    public void close() {
+        for (StreamRelay stream : streams.values()) {
+            stream.abort(); // Their relays would otherwise wait for tiles forever
+        }
+        streams.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
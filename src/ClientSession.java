@@ -0,0 +1,396 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One persistent binary connection carrying many multiplies. Each submit() is tagged with a
+// fresh request id and returns immediately; a reader thread completes the matching future as
+// results arrive, in whatever order the server finishes them. At most maxOutstanding
+// requests are in flight, further submits block until one completes.
+// A router or server at its limits answers with FRAME_BUSY, which fails the request with a
+// BusyException: nothing was computed and it may be retried later.
+public class ClientSession implements Closeable {
+    private final FrameChannel channel;
+    private final int clientId;
+    private final Semaphore outstanding;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<Result>> pending = new ConcurrentHashMap<>();
+    // Result matrices of streamed requests, filled in as their tiles arrive
+    private final ConcurrentHashMap<Long, Matrix> streamResults = new ConcurrentHashMap<>();
+    // Registrations and releases awaiting their reply, completed with the handle
+    private final ConcurrentHashMap<Long, CompletableFuture<Long>> pendingHandles = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private volatile IOException failure;
+    private volatile int deadlineMillis = 0;
+    // Encodings matrices are sent in and results are accepted in (see MatrixCodec)
+    private volatile byte encodings = MatrixCodec.localEncodings();
+
+    // A request turned away unrun by an overloaded (or stopping) router or server
+    public static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private ClientSession(FrameChannel channel, int clientId, int maxOutstanding) {
+        this.channel = channel;
+        this.clientId = clientId;
+        this.outstanding = new Semaphore(Math.max(1, maxOutstanding));
+        this.reader = new Thread(this::readResults, "client-session-" + clientId);
+        this.reader.setDaemon(true);
+    }
+
+    public static ClientSession connect(String host, int port, int clientId, int maxOutstanding) throws IOException {
+        FrameChannel channel = FrameChannel.connect(host, port);
+        channel.writePreamble(WireProtocol.VERSION_BINARY);
+        ClientSession session = new ClientSession(channel, clientId, maxOutstanding);
+        session.reader.start();
+        return session;
+    }
+
+    // Multiplies sent from now on carry a budget of millis: one still waiting in a router or
+    // server queue when it runs out is dropped there and fails with "Deadline exceeded".
+    // 0 (the default) for no deadline.
+    public void setDeadline(int millis) {
+        deadlineMillis = Math.max(0, millis);
+    }
+
+    // Encodings for matrices sent from now on and for their results, as a comma-separated list
+    // of names ("raw" for none); defaults to -Dstrassen.encodings
+    public void setEncodings(String names) {
+        encodings = MatrixCodec.parseEncodings(names);
+    }
+
+    // Writes one request frame under the given request id
+    private interface RequestWriter {
+        void write(long requestId) throws IOException;
+    }
+
+    public CompletableFuture<Result> submit(int[][] A, int[][] B) {
+        return submit(IntMatrix.fromArray(A), IntMatrix.fromArray(B));
+    }
+
+    // Same for flat matrices of any element type (both of the same one); Result.product holds
+    // the product in that type
+    public CompletableFuture<Result> submit(Matrix A, Matrix B) {
+        if (A.elementType() != B.elementType()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Cannot multiply "
+                    + StrassenMatrixMultiplication.describe(A) + " by " + StrassenMatrixMultiplication.describe(B)));
+        }
+        return submit(requestId -> {
+            // Encoded before taking the channel, so other requests are not held up by it
+            byte accepted = encodings;
+            MatrixCodec.Encoded encodedA = MatrixCodec.encode(A, accepted);
+            MatrixCodec.Encoded encodedB = MatrixCodec.encode(B, accepted);
+            int payloadBytes = WireProtocol.multiplyPayloadBytes(encodedA, encodedB);
+            channel.lockWrites();
+            try {
+                ByteBuffer request = channel.beginFrame(WireProtocol.FRAME_MULTIPLY, requestId, payloadBytes);
+                WireProtocol.setBudgetMillis(request, deadlineMillis);
+                request.putInt(clientId);
+                encodedA.writeTo(request);
+                encodedB.writeTo(request);
+                request.put(accepted);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        });
+    }
+
+    // A * B where B was registered earlier; only A goes over the wire
+    public CompletableFuture<Result> submit(int[][] A, long handleB) {
+        return submit(IntMatrix.fromArray(A), handleB);
+    }
+
+    public CompletableFuture<Result> submit(Matrix A, long handleB) {
+        return submit(requestId -> {
+            byte accepted = encodings;
+            MatrixCodec.Encoded encodedA = MatrixCodec.encode(A, accepted);
+            int payloadBytes = Integer.BYTES + encodedA.bytes() + Long.BYTES + 1;
+            channel.lockWrites();
+            try {
+                ByteBuffer request = channel.beginFrame(WireProtocol.FRAME_MULTIPLY_HANDLE, requestId, payloadBytes);
+                WireProtocol.setBudgetMillis(request, deadlineMillis);
+                request.putInt(clientId);
+                encodedA.writeTo(request);
+                request.putLong(handleB);
+                request.put(accepted);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        });
+    }
+
+    private CompletableFuture<Result> submit(RequestWriter writer) {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        try {
+            outstanding.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, future);
+        future.whenComplete((result, error) -> outstanding.release());
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            writer.write(requestId);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Uploads B once for use by submit(A, handle), completing with its handle. The server
+    // drops it after ttlMillis without use (0 for the server's default) or on release().
+    public CompletableFuture<Long> register(int[][] B, long ttlMillis) {
+        return register(IntMatrix.fromArray(B), ttlMillis);
+    }
+
+    public CompletableFuture<Long> register(Matrix B, long ttlMillis) {
+        return sendHandleRequest(requestId -> {
+            MatrixCodec.Encoded encodedB = MatrixCodec.encode(B, encodings);
+            int payloadBytes = Integer.BYTES + Long.BYTES + encodedB.bytes();
+            channel.lockWrites();
+            try {
+                ByteBuffer request = channel.beginFrame(WireProtocol.FRAME_REGISTER, requestId, payloadBytes);
+                request.putInt(clientId);
+                request.putLong(ttlMillis);
+                encodedB.writeTo(request);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        });
+    }
+
+    // Frees a registered operand on the server; completes once it is gone
+    public CompletableFuture<Long> release(long handle) {
+        return sendHandleRequest(requestId -> {
+            channel.lockWrites();
+            try {
+                channel.beginFrame(WireProtocol.FRAME_RELEASE, requestId, Long.BYTES).putLong(handle);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        }).thenApply(ignored -> handle);
+    }
+
+    private CompletableFuture<Long> sendHandleRequest(RequestWriter writer) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        long requestId = nextRequestId.incrementAndGet();
+        pendingHandles.put(requestId, future);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            writer.write(requestId);
+        } catch (IOException e) {
+            pendingHandles.remove(requestId);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Streamed multiply for matrices too large for one frame: A and B go out as tiles of
+    // tileSize x tileSize read straight from the arrays, and C is filled in tile by tile as
+    // the server finishes each block. Blocks until the upload is done.
+    public CompletableFuture<Result> submitStreaming(int[][] A, int[][] B, int tileSize) {
+        return submitStreaming(WireProtocol.ELEMENT_INT32, A.length, A[0].length, B.length, B[0].length, tileSize,
+                (tile, i, j, rows, cols) -> WireProtocol.putTile(tile, WireProtocol.OPERAND_A, A, i, j, rows, cols),
+                (tile, i, j, rows, cols) -> WireProtocol.putTile(tile, WireProtocol.OPERAND_B, B, i, j, rows, cols));
+    }
+
+    // Same for flat matrices of any element type
+    public CompletableFuture<Result> submitStreaming(Matrix A, Matrix B, int tileSize) {
+        if (A.elementType() != B.elementType()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Cannot multiply "
+                    + StrassenMatrixMultiplication.describe(A) + " by " + StrassenMatrixMultiplication.describe(B)));
+        }
+        return submitStreaming(A.elementType(), A.rows, A.cols, B.rows, B.cols, tileSize,
+                (tile, i, j, rows, cols) -> WireProtocol.putTile(tile, WireProtocol.OPERAND_A, A, i, j, rows, cols),
+                (tile, i, j, rows, cols) -> WireProtocol.putTile(tile, WireProtocol.OPERAND_B, B, i, j, rows, cols));
+    }
+
+    // Writes the rows x cols block at (row, col) of one operand as a tile
+    private interface TileWriter {
+        void write(ByteBuffer tile, int row, int col, int rows, int cols);
+    }
+
+    private CompletableFuture<Result> submitStreaming(byte elementType, int rowsA, int colsA, int rowsB, int colsB, int tileSize,
+                                                      TileWriter tilesA, TileWriter tilesB) {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        if (tileSize <= 0 || (long) tileSize * tileSize * WireProtocol.elementBytes(elementType) > WireProtocol.MAX_FRAME_BYTES / 2) {
+            future.completeExceptionally(new IllegalArgumentException("Invalid tile size: " + tileSize));
+            return future;
+        }
+        try {
+            outstanding.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        streamResults.put(requestId, Matrix.allocate(elementType, rowsA, colsB));
+        pending.put(requestId, future);
+        future.whenComplete((result, error) -> {
+            streamResults.remove(requestId);
+            outstanding.release();
+        });
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            channel.lockWrites();
+            try {
+                ByteBuffer begin = channel.beginFrame(WireProtocol.FRAME_STREAM_BEGIN, requestId, WireProtocol.STREAM_BEGIN_BYTES);
+                WireProtocol.setBudgetMillis(begin, deadlineMillis);
+                begin.putInt(clientId);
+                begin.putInt(rowsA);
+                begin.putInt(colsA);
+                begin.putInt(rowsB);
+                begin.putInt(colsB);
+                begin.putInt(tileSize);
+                begin.put(elementType);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+            sendTiles(requestId, elementType, rowsA, colsA, tileSize, tilesA, future);
+            sendTiles(requestId, elementType, rowsB, colsB, tileSize, tilesB, future);
+            channel.lockWrites();
+            try {
+                channel.beginFrame(WireProtocol.FRAME_STREAM_END, requestId, 0);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // The channel is only held per tile, so other requests on this session interleave with the upload
+    private void sendTiles(long requestId, byte elementType, int matrixRows, int matrixCols, int tileSize, TileWriter writer,
+                           CompletableFuture<Result> future) throws IOException {
+        for (int i = 0; i < matrixRows; i += tileSize) {
+            for (int j = 0; j < matrixCols; j += tileSize) {
+                if (future.isDone()) {
+                    return; // Already failed on the server side, the rest would be dropped
+                }
+                int rows = Math.min(tileSize, matrixRows - i);
+                int cols = Math.min(tileSize, matrixCols - j);
+                channel.lockWrites();
+                try {
+                    ByteBuffer tile = channel.beginFrame(WireProtocol.FRAME_TILE, requestId, WireProtocol.tileBytes(elementType, rows, cols));
+                    writer.write(tile, i, j, rows, cols);
+                    channel.send();
+                } finally {
+                    channel.unlockWrites();
+                }
+            }
+        }
+    }
+
+    private void readResults() {
+        try {
+            ByteBuffer frame;
+            while ((frame = channel.readFrame()) != null) {
+                byte type = frame.get();
+                long requestId = frame.getLong();
+                frame.getInt(); // Deadline budget, only meaningful on requests
+                if (type == WireProtocol.FRAME_TILE) {
+                    Matrix target = streamResults.get(requestId);
+                    if (target != null) {
+                        WireProtocol.getTile(frame, target, target.rows, target.cols);
+                    }
+                    continue;
+                }
+                CompletableFuture<Long> handleFuture = pendingHandles.remove(requestId);
+                if (handleFuture != null) {
+                    if (type == WireProtocol.FRAME_HANDLE) {
+                        handleFuture.complete(frame.getLong());
+                    } else if (type == WireProtocol.FRAME_RELEASE) {
+                        handleFuture.complete(0L);
+                    } else {
+                        handleFuture.completeExceptionally(errorOf(type, frame));
+                    }
+                    continue;
+                }
+                CompletableFuture<Result> future = pending.remove(requestId);
+                if (future == null) {
+                    continue; // Unknown or already failed request
+                }
+                if (type == WireProtocol.FRAME_RESULT) {
+                    Matrix matrix = WireProtocol.getMatrix(frame);
+                    long parallelExecutionTime = frame.getLong();
+                    double speedUp = frame.getDouble();
+                    double efficiency = frame.getDouble();
+                    byte algorithm = frame.get();
+                    future.complete(new Result(requestId, matrix, new Metrics(parallelExecutionTime, speedUp, efficiency, algorithm)));
+                } else if (type == WireProtocol.FRAME_STREAM_END) {
+                    Matrix matrix = streamResults.get(requestId);
+                    long parallelExecutionTime = frame.getLong();
+                    double speedUp = frame.getDouble();
+                    double efficiency = frame.getDouble();
+                    byte algorithm = frame.get();
+                    future.complete(new Result(requestId, matrix, new Metrics(parallelExecutionTime, speedUp, efficiency, algorithm)));
+                } else {
+                    future.completeExceptionally(errorOf(type, frame));
+                }
+            }
+            failure = new IOException("Connection closed by peer");
+        } catch (IOException e) {
+            failure = e;
+        }
+        // Nothing more will arrive on this connection
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<Result> future = pending.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+        for (Long requestId : pendingHandles.keySet()) {
+            CompletableFuture<Long> future = pendingHandles.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // The failure a FRAME_ERROR or FRAME_BUSY reports, or an unexpected reply
+    private static IOException errorOf(byte type, ByteBuffer frame) {
+        if (type != WireProtocol.FRAME_ERROR && type != WireProtocol.FRAME_BUSY) {
+            return new IOException("Unexpected frame type: " + type);
+        }
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        String message = new String(bytes, StandardCharsets.UTF_8);
+        return type == WireProtocol.FRAME_BUSY ? new BusyException(message) : new IOException(message);
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+// Router-side coordinator that spreads one large multiply over the whole cluster. The top
+// `depth` levels of the Strassen recursion are unrolled here: operand sums are formed
+// locally, the 7^depth leaf products M1..M7 are sent as ordinary multiply requests to the
+// backends in parallel, and C11..C22 are combined locally on the way back up. Shapes are taken
+// apart as on a single node (see StrassenMatrixMultiplication.plan): elongated products are
+// halved along their longest dimension instead, and an odd last row, column or inner index is
+// peeled off and computed here. Integer arithmetic wraps identically on every node, so an
+// integer result is bit-identical to a single-node multiply. Floating-point sums round
+// differently depending on how the product was split, so float32 and float64 multiplies are
+// never distributed and always run on one backend.
+public class DistributedStrassen {
+    private final BackendCluster backends;
+    private final int depth;
+    private final int threshold;
+    private final ExecutorService dispatchPool;
+    private final AtomicLong subRequestIds = new AtomicLong();
+
+    // depth is the number of recursion levels distributed; only requests with a dimension of at
+    // least threshold are distributed
+    public DistributedStrassen(BackendCluster backends, int depth, int threshold, int maxConcurrentSubJobs) {
+        this.backends = backends;
+        this.depth = depth;
+        this.threshold = threshold;
+        this.dispatchPool = Executors.newFixedThreadPool(Math.max(1, maxConcurrentSubJobs));
+    }
+
+    // True if a complete FRAME_MULTIPLY frame is large enough to be worth splitting and its
+    // result would come out the same as on one node (integer elements only)
+    public boolean shouldDistribute(ByteBuffer request) throws IOException {
+        if (depth <= 0 || WireProtocol.frameType(request) != WireProtocol.FRAME_MULTIPLY) {
+            return false;
+        }
+        int positionA = WireProtocol.FRAME_HEADER_BYTES + Integer.BYTES;
+        int positionB = WireProtocol.matrixEnd(request, positionA);
+        WireProtocol.matrixEnd(request, positionB);
+        byte elementType = WireProtocol.elementTypeAt(request, positionA);
+        if (elementType == WireProtocol.ELEMENT_FLOAT32 || elementType == WireProtocol.ELEMENT_FLOAT64) {
+            return false;
+        }
+        return StrassenMatrixMultiplication.largestDimension(WireProtocol.rowsAt(request, positionA),
+                WireProtocol.colsAt(request, positionA), WireProtocol.colsAt(request, positionB)) >= threshold;
+    }
+
+    // Computes a FRAME_MULTIPLY across the cluster and returns the FRAME_RESULT frame
+    public ByteBuffer multiply(ByteBuffer request) throws IOException {
+        long requestId = WireProtocol.requestId(request);
+        request.position(WireProtocol.FRAME_HEADER_BYTES);
+        int clientId = request.getInt();
+        Matrix A = WireProtocol.getMatrix(request);
+        Matrix B = WireProtocol.getMatrix(request);
+        if (!request.hasRemaining()) {
+            throw new IOException("Truncated multiply request: no accepted encodings");
+        }
+        byte accepted = request.get();
+        if (A.cols != B.rows || A.elementType() != B.elementType()) {
+            throw new IOException("Cannot multiply " + StrassenMatrixMultiplication.describe(A)
+                    + " by " + StrassenMatrixMultiplication.describe(B));
+        }
+
+        // Sum of the sub-jobs' single-threaded time, the work a lone server would have done
+        // (NaN, so speed-up is reported as not measured, unless every backend measured it)
+        DoubleAdder sequentialTime = new DoubleAdder();
+        long startTime = System.nanoTime();
+        Matrix C;
+        try {
+            C = product(A, B, depth, clientId, sequentialTime).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        long executionTime = System.nanoTime() - startTime;
+        double speedUp = sequentialTime.sum() / executionTime;
+        double efficiency = speedUp / Math.max(1, healthyBackends());
+
+        MatrixCodec.Encoded encoded = MatrixCodec.encode(C, accepted & MatrixCodec.localEncodings());
+        ByteBuffer response = WireProtocol.allocateFrame(WireProtocol.FRAME_RESULT, requestId,
+                encoded.bytes() + WireProtocol.RESULT_TRAILER_BYTES);
+        encoded.writeTo(response);
+        response.putLong(executionTime);
+        response.putDouble(speedUp);
+        response.putDouble(efficiency);
+        response.put(WireProtocol.ALGORITHM_STRASSEN); // The distributed levels; backends choose their own below
+        return response.flip();
+    }
+
+    // One level of the recursion (a Strassen step or a split); at level 0, or once a dimension
+    // is down to 1, the product is a remote sub-job
+    private CompletableFuture<Matrix> product(Matrix A, Matrix B, int level, int clientId, DoubleAdder sequentialTime) {
+        int m = A.rows, k = A.cols, n = B.cols;
+        int plan = StrassenMatrixMultiplication.plan(m, k, n, 1);
+        if (level == 0 || plan == StrassenMatrixMultiplication.KERNEL) {
+            return CompletableFuture.supplyAsync(() -> remoteProduct(A, B, clientId, sequentialTime), dispatchPool);
+        }
+
+        int next = level - 1;
+        if (plan == StrassenMatrixMultiplication.SPLIT_ROWS) {
+            int half = m / 2;
+            CompletableFuture<Matrix> top = product(A.view(0, 0, half, k), B, next, clientId, sequentialTime);
+            CompletableFuture<Matrix> bottom = product(A.view(half, 0, m - half, k), B, next, clientId, sequentialTime);
+            return top.thenCombine(bottom, (upper, lower) -> {
+                Matrix C = A.like(m, n);
+                C.view(0, 0, half, n).copyFrom(upper);
+                C.view(half, 0, m - half, n).copyFrom(lower);
+                return C;
+            });
+        }
+        if (plan == StrassenMatrixMultiplication.SPLIT_COLS) {
+            int half = n / 2;
+            CompletableFuture<Matrix> left = product(A, B.view(0, 0, k, half), next, clientId, sequentialTime);
+            CompletableFuture<Matrix> right = product(A, B.view(0, half, k, n - half), next, clientId, sequentialTime);
+            return left.thenCombine(right, (west, east) -> {
+                Matrix C = A.like(m, n);
+                C.view(0, 0, m, half).copyFrom(west);
+                C.view(0, half, m, n - half).copyFrom(east);
+                return C;
+            });
+        }
+        if (plan == StrassenMatrixMultiplication.SPLIT_INNER) {
+            int half = k / 2;
+            CompletableFuture<Matrix> first = product(A.view(0, 0, m, half), B.view(0, 0, half, n), next, clientId, sequentialTime);
+            CompletableFuture<Matrix> second = product(A.view(0, half, m, k - half), B.view(half, 0, k - half, n), next, clientId, sequentialTime);
+            return first.thenCombine(second, DistributedStrassen::sum);
+        }
+
+        // Strassen step on the even-sized part
+        Matrix Ae = A.view(0, 0, m & ~1, k & ~1), Be = B.view(0, 0, k & ~1, n & ~1);
+        Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+        Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+
+        CompletableFuture<Matrix> M1 = product(sum(A11, A22), sum(B11, B22), next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M2 = product(sum(A21, A22), B11, next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M3 = product(A11, difference(B12, B22), next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M4 = product(A22, difference(B21, B11), next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M5 = product(sum(A11, A12), B22, next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M6 = product(difference(A21, A11), sum(B11, B12), next, clientId, sequentialTime);
+        CompletableFuture<Matrix> M7 = product(difference(A12, A22), sum(B21, B22), next, clientId, sequentialTime);
+
+        return CompletableFuture.allOf(M1, M2, M3, M4, M5, M6, M7).thenApply(ignored -> {
+            Matrix C = A.like(m, n);
+            Matrix Ce = C.view(0, 0, m & ~1, n & ~1);
+            Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+            // C11 = M1 + M4 - M5 + M7
+            C11.add(M1.join(), M4.join());
+            C11.subtractInPlace(M5.join());
+            C11.addInPlace(M7.join());
+            // C12 = M3 + M5
+            C12.add(M3.join(), M5.join());
+            // C21 = M2 + M4
+            C21.add(M2.join(), M4.join());
+            // C22 = M1 - M2 + M3 + M6
+            C22.subtract(M1.join(), M2.join());
+            C22.addInPlace(M3.join());
+            C22.addInPlace(M6.join());
+            // The odd edges are thin products, not worth a round trip
+            StrassenMatrixMultiplication.peel(A, B, C);
+            return C;
+        });
+    }
+
+    // Sends one sub-product to the cluster (with the usual balancing and failover) and waits
+    private Matrix remoteProduct(Matrix A, Matrix B, int clientId, DoubleAdder sequentialTime) {
+        try {
+            ByteBuffer request = WireProtocol.encodeMultiply(subRequestIds.incrementAndGet(), clientId, A, B);
+
+            Matrix[] result = new Matrix[1];
+            backends.exchange(request, response -> {
+                byte type = WireProtocol.frameType(response);
+                response.position(WireProtocol.FRAME_HEADER_BYTES);
+                if (type == WireProtocol.FRAME_BUSY) {
+                    // Every backend turned it away; the client gets BUSY and may try again
+                    throw new ClientSession.BusyException(messageOf(response));
+                }
+                if (type != WireProtocol.FRAME_RESULT) {
+                    throw new IOException("Sub-job failed on backend: "
+                            + (type == WireProtocol.FRAME_ERROR ? messageOf(response) : "unexpected frame type " + type));
+                }
+                result[0] = WireProtocol.getMatrix(response);
+                long executionTime = response.getLong();
+                double speedUp = response.getDouble();
+                sequentialTime.add(executionTime * speedUp);
+            });
+            return result[0];
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // Text of a FRAME_ERROR or FRAME_BUSY positioned at its payload
+    private static String messageOf(ByteBuffer response) {
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Matrix sum(Matrix A, Matrix B) {
+        Matrix result = A.like(A.rows, A.cols);
+        result.add(A, B);
+        return result;
+    }
+
+    private static Matrix difference(Matrix A, Matrix B) {
+        Matrix result = A.like(A.rows, A.cols);
+        result.subtract(A, B);
+        return result;
+    }
+
+    private int healthyBackends() {
+        int healthy = 0;
+        for (Backend backend : backends.getBackends()) {
+            if (backend.isHealthy()) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public void close() {
+        dispatchPool.shutdown();
+    }
+}
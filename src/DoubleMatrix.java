@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+// Double-precision Matrix. Strassen's sums round differently from the classical product, so
+// results agree with it only to within a few ulps per level.
+public class DoubleMatrix extends Matrix {
+    public final double[] data;
+
+    public DoubleMatrix(int rows, int cols) {
+        this(new double[rows * cols], 0, rows, cols, cols);
+    }
+
+    public DoubleMatrix(double[] data, int offset, int rows, int cols, int stride) {
+        super(offset, rows, cols, stride);
+        this.data = data;
+    }
+
+    // Copies a jagged matrix into a zero-padded paddedRows x paddedCols flat matrix
+    public static DoubleMatrix fromArray(double[][] matrix, int paddedRows, int paddedCols) {
+        DoubleMatrix result = new DoubleMatrix(paddedRows, paddedCols);
+        for (int i = 0; i < matrix.length; i++) {
+            System.arraycopy(matrix[i], 0, result.data, i * paddedCols, matrix[i].length);
+        }
+        return result;
+    }
+
+    public static DoubleMatrix fromArray(double[][] matrix) {
+        return fromArray(matrix, matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+    }
+
+    // Copies the top-left rows x cols block back into a jagged matrix
+    public double[][] toArray(int rows, int cols) {
+        double[][] result = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, result[i], 0, cols);
+        }
+        return result;
+    }
+
+    public double[][] toArray() {
+        return toArray(rows, cols);
+    }
+
+    public double get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, double value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    @Override
+    public byte elementType() {
+        return WireProtocol.ELEMENT_FLOAT64;
+    }
+
+    @Override
+    public int capacity() {
+        return data.length;
+    }
+
+    @Override
+    DoubleMatrix wrap(int offset, int rows, int cols, int stride) {
+        return new DoubleMatrix(data, offset, rows, cols, stride);
+    }
+
+    @Override
+    public DoubleMatrix view(int row, int col, int rows, int cols) {
+        return wrap(offset + row * stride + col, rows, cols, stride);
+    }
+
+    @Override
+    public Number element(int i, int j) {
+        return get(i, j);
+    }
+
+    @Override
+    public void add(Matrix A, Matrix B) {
+        double[] a = ((DoubleMatrix) A).data, b = ((DoubleMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] + b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtract(Matrix A, Matrix B) {
+        double[] a = ((DoubleMatrix) A).data, b = ((DoubleMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] - b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void addInPlace(Matrix A) {
+        double[] a = ((DoubleMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] += a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtractInPlace(Matrix A) {
+        double[] a = ((DoubleMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] -= a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void copyFrom(Matrix A) {
+        double[] a = ((DoubleMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(a, A.offset + i * A.stride, data, offset + i * stride, cols);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride;
+            Arrays.fill(data, r, r + cols, 0);
+        }
+    }
+
+    @Override
+    public void putBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        DoubleBuffer elements = buffer.asDoubleBuffer();
+        if (stride == cols && col == 0) {
+            elements.put(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.put(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Double.BYTES);
+    }
+
+    @Override
+    public void getBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        DoubleBuffer elements = buffer.asDoubleBuffer();
+        if (stride == cols && col == 0) {
+            elements.get(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.get(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Double.BYTES);
+    }
+}
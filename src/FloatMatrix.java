@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// Single-precision Matrix. Strassen's sums round differently from the classical product, so
+// results agree with it only to within a few ulps per level.
+public class FloatMatrix extends Matrix {
+    public final float[] data;
+
+    public FloatMatrix(int rows, int cols) {
+        this(new float[rows * cols], 0, rows, cols, cols);
+    }
+
+    public FloatMatrix(float[] data, int offset, int rows, int cols, int stride) {
+        super(offset, rows, cols, stride);
+        this.data = data;
+    }
+
+    // Copies a jagged matrix into a zero-padded paddedRows x paddedCols flat matrix
+    public static FloatMatrix fromArray(float[][] matrix, int paddedRows, int paddedCols) {
+        FloatMatrix result = new FloatMatrix(paddedRows, paddedCols);
+        for (int i = 0; i < matrix.length; i++) {
+            System.arraycopy(matrix[i], 0, result.data, i * paddedCols, matrix[i].length);
+        }
+        return result;
+    }
+
+    public static FloatMatrix fromArray(float[][] matrix) {
+        return fromArray(matrix, matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+    }
+
+    // Copies the top-left rows x cols block back into a jagged matrix
+    public float[][] toArray(int rows, int cols) {
+        float[][] result = new float[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, result[i], 0, cols);
+        }
+        return result;
+    }
+
+    public float[][] toArray() {
+        return toArray(rows, cols);
+    }
+
+    public float get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, float value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    @Override
+    public byte elementType() {
+        return WireProtocol.ELEMENT_FLOAT32;
+    }
+
+    @Override
+    public int capacity() {
+        return data.length;
+    }
+
+    @Override
+    FloatMatrix wrap(int offset, int rows, int cols, int stride) {
+        return new FloatMatrix(data, offset, rows, cols, stride);
+    }
+
+    @Override
+    public FloatMatrix view(int row, int col, int rows, int cols) {
+        return wrap(offset + row * stride + col, rows, cols, stride);
+    }
+
+    @Override
+    public Number element(int i, int j) {
+        return get(i, j);
+    }
+
+    @Override
+    public void add(Matrix A, Matrix B) {
+        float[] a = ((FloatMatrix) A).data, b = ((FloatMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] + b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtract(Matrix A, Matrix B) {
+        float[] a = ((FloatMatrix) A).data, b = ((FloatMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] - b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void addInPlace(Matrix A) {
+        float[] a = ((FloatMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] += a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtractInPlace(Matrix A) {
+        float[] a = ((FloatMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] -= a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void copyFrom(Matrix A) {
+        float[] a = ((FloatMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(a, A.offset + i * A.stride, data, offset + i * stride, cols);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride;
+            Arrays.fill(data, r, r + cols, 0);
+        }
+    }
+
+    @Override
+    public void putBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        FloatBuffer elements = buffer.asFloatBuffer();
+        if (stride == cols && col == 0) {
+            elements.put(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.put(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Float.BYTES);
+    }
+
+    @Override
+    public void getBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        FloatBuffer elements = buffer.asFloatBuffer();
+        if (stride == cols && col == 0) {
+            elements.get(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.get(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Float.BYTES);
+    }
+}
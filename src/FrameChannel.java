@@ -0,0 +1,221 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Blocking framed connection over a SocketChannel (see WireProtocol for the format).
+// Reads and writes go through direct buffers that are reused across frames, so a frame moves
+// between the socket and the matrix arrays with one bulk copy each way. A buffer grown past
+// MAX_RETAINED_BUFFER_BYTES for one large frame is dropped again once that frame is done.
+public class FrameChannel implements Closeable {
+    static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer readBuffer = newBuffer(INITIAL_BUFFER_BYTES);
+    private ByteBuffer writeBuffer = newBuffer(INITIAL_BUFFER_BYTES);
+    private final ByteBuffer preamble = ByteBuffer.allocate(4);
+    // A lock rather than this object's monitor: a virtual thread blocked on a monitor, or in
+    // I/O while holding one, pins its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private FrameAdmission frameAdmission;
+    private boolean frameAdmitted = false; // The frame last returned still holds its admission
+
+    // Consulted once a frame's header has arrived, before its body is buffered. A frame that
+    // is not admitted is skipped unread (the admission answers it); an admitted one is done
+    // with when the next frame is read or the channel is closed.
+    public interface FrameAdmission {
+        boolean admit(byte type, long requestId, int frameBytes) throws IOException;
+
+        default void frameDone() {
+        }
+    }
+
+    public FrameChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    // For a connection whose preamble was already consumed by someone else (the router's selector)
+    public FrameChannel(SocketChannel channel, ByteBuffer consumedPreamble) {
+        this.channel = channel;
+        preamble.put(consumedPreamble.duplicate()).flip();
+    }
+
+    public static FrameChannel connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        return new FrameChannel(channel);
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public void writePreamble(byte version) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.put(WireProtocol.MAGIC).put(version).flip();
+        writeFully(buffer);
+    }
+
+    // Reads the connection preamble and returns the negotiated version. A Java serialization
+    // header means a legacy peer; its bytes are replayed by legacyInputStream().
+    public byte readPreamble() throws IOException {
+        preamble.clear();
+        readFully(preamble);
+        preamble.flip();
+        if (preamble.get(0) == WireProtocol.MAGIC[0] && preamble.get(1) == WireProtocol.MAGIC[1]
+                && preamble.get(2) == WireProtocol.MAGIC[2]) {
+            byte version = preamble.get(3);
+            if (version != WireProtocol.VERSION_BINARY) {
+                throw new IOException("Unsupported protocol version: " + version);
+            }
+            return version;
+        }
+        if ((preamble.get(0) & 0xFF) == 0xAC && (preamble.get(1) & 0xFF) == 0xED) {
+            return WireProtocol.VERSION_LEGACY;
+        }
+        throw new IOException("Unrecognised connection preamble");
+    }
+
+    // Stream for a legacy (Java serialization) peer, starting with the preamble bytes already
+    // read. It reads through the socket, not the channel, so the socket's SO_TIMEOUT applies.
+    public InputStream legacyInputStream() throws IOException {
+        return new SequenceInputStream(new ByteArrayInputStream(preamble.array(), 0, preamble.limit()),
+                channel.socket().getInputStream());
+    }
+
+    public OutputStream legacyOutputStream() {
+        return Channels.newOutputStream(channel);
+    }
+
+    // Frames read from now on are offered to admission before their body is buffered
+    public void setFrameAdmission(FrameAdmission admission) {
+        this.frameAdmission = admission;
+    }
+
+    // Reads the next frame and returns the read buffer positioned at the frame type (followed
+    // by the request id and budget), or null if the peer closed the connection cleanly between frames.
+    // The buffer is reused by the next call.
+    public ByteBuffer readFrame() throws IOException {
+        finishFrame();
+        while (true) {
+            ByteBuffer header = readBuffer;
+            header.clear().limit(WireProtocol.FRAME_HEADER_BYTES);
+            if (!readFully(header, true)) {
+                return null;
+            }
+            int length = header.getInt(0);
+            if (length < WireProtocol.FRAME_HEADER_BYTES - Integer.BYTES || length > WireProtocol.MAX_FRAME_BYTES) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (frameAdmission != null && !frameAdmission.admit(header.get(Integer.BYTES),
+                    header.getLong(Integer.BYTES + 1), Integer.BYTES + length)) {
+                skip(Integer.BYTES + length - WireProtocol.FRAME_HEADER_BYTES);
+                continue;
+            }
+            frameAdmitted = frameAdmission != null;
+            if (readBuffer.capacity() < Integer.BYTES + length) {
+                readBuffer = newBuffer(Integer.BYTES + length);
+                readBuffer.put(header.flip());
+            }
+            readBuffer.limit(Integer.BYTES + length).position(WireProtocol.FRAME_HEADER_BYTES);
+            readFully(readBuffer);
+            readBuffer.position(Integer.BYTES);
+            return readBuffer;
+        }
+    }
+
+    // Gives back the admission of the frame last returned and any oversized buffer it needed
+    private void finishFrame() {
+        if (frameAdmitted) {
+            frameAdmitted = false;
+            frameAdmission.frameDone();
+        }
+        if (readBuffer.capacity() > MAX_RETAINED_BUFFER_BYTES) {
+            readBuffer = newBuffer(INITIAL_BUFFER_BYTES);
+        }
+    }
+
+    // Discards the body of a frame that was turned away, a buffer's worth at a time
+    private void skip(int bytes) throws IOException {
+        while (bytes > 0) {
+            readBuffer.clear().limit(Math.min(bytes, readBuffer.capacity()));
+            readFully(readBuffer);
+            bytes -= readBuffer.limit();
+        }
+    }
+
+    // Returns the write buffer with the frame header written; the caller puts exactly
+    // payloadBytes after it and then calls send(). Callers that share a FrameChannel between
+    // threads must hold lockWrites() from beginFrame through send.
+    public ByteBuffer beginFrame(byte type, long requestId, int payloadBytes) {
+        int frameBytes = WireProtocol.FRAME_HEADER_BYTES + payloadBytes;
+        if (writeBuffer.capacity() < frameBytes) {
+            writeBuffer = newBuffer(frameBytes);
+        }
+        writeBuffer.clear();
+        writeBuffer.putInt(frameBytes - Integer.BYTES);
+        writeBuffer.put(type);
+        writeBuffer.putLong(requestId);
+        writeBuffer.putInt(0); // No deadline unless the caller sets one
+        return writeBuffer;
+    }
+
+    public void lockWrites() {
+        writeLock.lock();
+    }
+
+    public void unlockWrites() {
+        writeLock.unlock();
+    }
+
+    public void send() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        if (writeBuffer.capacity() > MAX_RETAINED_BUFFER_BYTES) {
+            writeBuffer = newBuffer(INITIAL_BUFFER_BYTES);
+        }
+    }
+
+    // Writes an already-encoded frame (e.g. one relayed unchanged from another channel)
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        writeFully(frame);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        readFully(buffer, false);
+    }
+
+    private boolean readFully(ByteBuffer buffer, boolean eofAllowed) throws IOException {
+        boolean started = false;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowed && !started) {
+                    return false;
+                }
+                throw new EOFException("Connection closed mid-frame");
+            }
+            started = true;
+        }
+        return true;
+    }
+
+    private static ByteBuffer newBuffer(int bytes) {
+        return ByteBuffer.allocateDirect(Math.max(bytes, INITIAL_BUFFER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishFrame();
+        channel.close();
+    }
+}
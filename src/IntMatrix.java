@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// 32-bit integer Matrix. Arithmetic wraps on overflow, the same way on every node.
+public class IntMatrix extends Matrix {
+    public final int[] data;
+
+    public IntMatrix(int rows, int cols) {
+        this(new int[rows * cols], 0, rows, cols, cols);
+    }
+
+    public IntMatrix(int[] data, int offset, int rows, int cols, int stride) {
+        super(offset, rows, cols, stride);
+        this.data = data;
+    }
+
+    // Copies a jagged matrix into a zero-padded paddedRows x paddedCols flat matrix
+    public static IntMatrix fromArray(int[][] matrix, int paddedRows, int paddedCols) {
+        IntMatrix result = new IntMatrix(paddedRows, paddedCols);
+        for (int i = 0; i < matrix.length; i++) {
+            System.arraycopy(matrix[i], 0, result.data, i * paddedCols, matrix[i].length);
+        }
+        return result;
+    }
+
+    public static IntMatrix fromArray(int[][] matrix) {
+        return fromArray(matrix, matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+    }
+
+    // Copies the top-left rows x cols block back into a jagged matrix
+    public int[][] toArray(int rows, int cols) {
+        int[][] result = new int[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, result[i], 0, cols);
+        }
+        return result;
+    }
+
+    public int[][] toArray() {
+        return toArray(rows, cols);
+    }
+
+    public int get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, int value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    @Override
+    public byte elementType() {
+        return WireProtocol.ELEMENT_INT32;
+    }
+
+    @Override
+    public int capacity() {
+        return data.length;
+    }
+
+    @Override
+    IntMatrix wrap(int offset, int rows, int cols, int stride) {
+        return new IntMatrix(data, offset, rows, cols, stride);
+    }
+
+    @Override
+    public IntMatrix view(int row, int col, int rows, int cols) {
+        return wrap(offset + row * stride + col, rows, cols, stride);
+    }
+
+    @Override
+    public Number element(int i, int j) {
+        return get(i, j);
+    }
+
+    @Override
+    public void add(Matrix A, Matrix B) {
+        int[] a = ((IntMatrix) A).data, b = ((IntMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] + b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtract(Matrix A, Matrix B) {
+        int[] a = ((IntMatrix) A).data, b = ((IntMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] - b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void addInPlace(Matrix A) {
+        int[] a = ((IntMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] += a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtractInPlace(Matrix A) {
+        int[] a = ((IntMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] -= a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void copyFrom(Matrix A) {
+        int[] a = ((IntMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(a, A.offset + i * A.stride, data, offset + i * stride, cols);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride;
+            Arrays.fill(data, r, r + cols, 0);
+        }
+    }
+
+    @Override
+    public void putBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        IntBuffer elements = buffer.asIntBuffer();
+        if (stride == cols && col == 0) {
+            elements.put(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.put(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Integer.BYTES);
+    }
+
+    @Override
+    public void getBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        IntBuffer elements = buffer.asIntBuffer();
+        if (stride == cols && col == 0) {
+            elements.get(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.get(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Integer.BYTES);
+    }
+}
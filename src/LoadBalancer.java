@@ -0,0 +1,69 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Picks the backend for a request from the currently healthy candidates (never empty).
+public interface LoadBalancer {
+    Backend select(List<Backend> candidates, long cost);
+
+    // Relative cost of multiplying n x n matrices with Strassen, ~n^2.807
+    static long estimateCost(int n) {
+        return estimateCost(n, n, n);
+    }
+
+    // Same for an m x k by k x n product, ~(mkn)^(2.807/3), which tracks the real dimensions
+    // since nothing is padded
+    static long estimateCost(int m, int k, int n) {
+        double volume = (double) Math.max(m, 1) * Math.max(k, 1) * Math.max(n, 1);
+        return (long) Math.pow(volume, 2.807 / 3);
+    }
+
+    static LoadBalancer forName(String name) {
+        switch (name) {
+            case "round-robin":
+                return new RoundRobin();
+            case "least-outstanding":
+                return new LeastOutstanding();
+            case "cost-aware":
+                return new CostAware();
+            default:
+                throw new IllegalArgumentException("Unknown load balancing policy: " + name);
+        }
+    }
+
+    class RoundRobin implements LoadBalancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Backend select(List<Backend> candidates, long cost) {
+            return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+        }
+    }
+
+    // Fewest requests in flight
+    class LeastOutstanding implements LoadBalancer {
+        @Override
+        public Backend select(List<Backend> candidates, long cost) {
+            Backend best = candidates.get(0);
+            for (Backend backend : candidates) {
+                if (backend.outstanding.get() < best.outstanding.get()) {
+                    best = backend;
+                }
+            }
+            return best;
+        }
+    }
+
+    // Least outstanding work, so one huge multiply counts for more than many small ones
+    class CostAware implements LoadBalancer {
+        @Override
+        public Backend select(List<Backend> candidates, long cost) {
+            Backend best = candidates.get(0);
+            for (Backend backend : candidates) {
+                if (backend.outstandingCost.get() < best.outstandingCost.get()) {
+                    best = backend;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator for capacity planning of the router/server tier, built on TCPClient sessions.
+// Runs a warm-up phase and then one phase per requested rate, and reports throughput and
+// latency percentiles for each.
+//
+// A rate of 0 is a closed loop: each of the concurrency sessions sends its next request as
+// soon as the previous one returns. A positive rate is an open loop: requests are scheduled
+// at fixed intervals whether or not earlier ones have returned, and latency is measured from
+// the scheduled time, so a stall is charged to every request it delayed (no coordinated
+// omission).
+//
+//   java LoadGenerator [--host localhost] [--port 12345] [--concurrency 4] [--rates 0,50,100]
+//                      [--sizes 20 | 16-256 | 32,64,100-200] [--duration 10] [--warmup 5]
+//                      [--max-outstanding 64] [--reuse 0.0] [--idle-clients 0] [--deadline-ms 0]
+//
+// --reuse is the fraction of requests that resend an operand pair already sent, which the
+// result caches can answer; the others carry a pair never seen before. --idle-clients opens
+// that many legacy connections which send their stream header and then nothing, the way a
+// stalled client would, and keeps them open for the whole run. --deadline-ms gives every
+// request that budget (see ClientSession.setDeadline). Requests turned away with FRAME_BUSY
+// are counted apart from other errors.
+public class LoadGenerator {
+    // Distinct operand pairs kept per matrix size, so requests do not all carry the same data
+    private static final int OPERAND_VARIANTS = 16;
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private final List<ClientSession> sessions = new ArrayList<>();
+    private final int[][] sizeRanges; // Each entry {min, max}, picked uniformly
+    private final ConcurrentHashMap<Integer, int[][][][]> operands = new ConcurrentHashMap<>();
+    private final double reuse;
+    private final AtomicLong uniqueOperands = new AtomicLong();
+    private final List<Socket> idleClients = new ArrayList<>();
+
+    // Result of one phase
+    public static class PhaseReport {
+        public final String name;
+        public final double rate;
+        public final long completed;
+        public final long errors;
+        public final long busy;
+        public final long elapsedNanos;
+        public final LatencyHistogram latency;
+
+        PhaseReport(String name, double rate, long completed, long errors, long busy, long elapsedNanos, LatencyHistogram latency) {
+            this.name = name;
+            this.rate = rate;
+            this.completed = completed;
+            this.errors = errors;
+            this.busy = busy;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public double getThroughput() {
+            return completed * 1e9 / elapsedNanos;
+        }
+
+        public void print() {
+            System.out.println(String.format(Locale.ROOT,
+                    "%-10s %-14s %8d ok %5d err %5d busy %9.1f req/s | mean %8.2f  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+                    name, rate > 0 ? String.format(Locale.ROOT, "open %.0f/s", rate) : "closed", completed, errors, busy,
+                    getThroughput(), latency.getMean() / 1e6, millis(50), millis(90), millis(99), millis(99.9),
+                    latency.getMaxValue() / 1e6));
+        }
+
+        private double millis(double percentile) {
+            return latency.getValueAtPercentile(percentile) / 1e6;
+        }
+    }
+
+    // Opens concurrency sessions to the router at host:port
+    public LoadGenerator(String host, int port, int concurrency, String sizes, int maxOutstanding, double reuse,
+                         int deadlineMillis) throws IOException {
+        this.sizeRanges = parseSizes(sizes);
+        this.reuse = reuse;
+        for (int i = 0; i < Math.max(1, concurrency); i++) {
+            TCPClient client = new TCPClient(false, host, port, TCPClient.MATRIX_SIZE);
+            ClientSession session = client.openSession(i + 1, maxOutstanding);
+            session.setDeadline(deadlineMillis);
+            sessions.add(session);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(parseOptions(args));
+        System.exit(0);
+    }
+
+    // Runs the warm-up and measured phases described by the options and prints each report
+    public static List<PhaseReport> run(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", TCPClient.SERVER_IP);
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(TCPClient.ROUTER_PORT)));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "4"));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        int maxOutstanding = Integer.parseInt(options.getOrDefault("max-outstanding", "64"));
+        String[] rates = options.getOrDefault("rates", "0").split(",");
+
+        List<PhaseReport> reports = new ArrayList<>();
+        LoadGenerator generator = new LoadGenerator(host, port, concurrency, options.getOrDefault("sizes", "20"),
+                maxOutstanding, Double.parseDouble(options.getOrDefault("reuse", "0")),
+                Integer.parseInt(options.getOrDefault("deadline-ms", "0")));
+        try {
+            generator.openIdleClients(host, port, Integer.parseInt(options.getOrDefault("idle-clients", "0")));
+            System.out.println("Load: " + concurrency + " sessions to " + host + ":" + port
+                    + ", sizes " + options.getOrDefault("sizes", "20"));
+            double firstRate = Double.parseDouble(rates[0].trim());
+            if (warmup > 0) {
+                generator.runPhase("warmup", firstRate, warmup).print();
+            }
+            for (int i = 0; i < rates.length; i++) {
+                PhaseReport report = generator.runPhase("phase-" + (i + 1), Double.parseDouble(rates[i].trim()), duration);
+                report.print();
+                reports.add(report);
+            }
+        } finally {
+            generator.close();
+        }
+        return reports;
+    }
+
+    public PhaseReport runPhase(String name, double rate, long durationNanos) throws InterruptedException {
+        return rate > 0 ? runOpenLoop(name, rate, durationNanos) : runClosedLoop(name, durationNanos);
+    }
+
+    // Every session keeps exactly one request outstanding for the whole phase
+    private PhaseReport runClosedLoop(String name, long durationNanos) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+
+        List<Thread> workers = new ArrayList<>();
+        for (ClientSession session : sessions) {
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    int[][][] pair = nextOperands();
+                    long sent = System.nanoTime();
+                    try {
+                        session.submit(pair[0], pair[1]).join();
+                        latency.recordValue(System.nanoTime() - sent);
+                    } catch (RuntimeException e) {
+                        (e.getCause() instanceof ClientSession.BusyException ? busy : errors).incrementAndGet();
+                    }
+                }
+            }, "load-" + name + "-" + session.getClientId());
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new PhaseReport(name, 0, latency.getTotalCount(), errors.get(), busy.get(), System.nanoTime() - start, latency);
+    }
+
+    // Requests are issued on a fixed schedule, round-robin over the sessions. If the schedule
+    // slips (a session is at its outstanding limit) the late requests are sent at once and
+    // their latency still counts from when they should have gone out.
+    private PhaseReport runOpenLoop(String name, double rate, long durationNanos) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        AtomicLong lastCompletion = new AtomicLong();
+        AtomicLong outstanding = new AtomicLong();
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);
+            if (intended - start >= durationNanos) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int[][][] pair = nextOperands();
+            outstanding.incrementAndGet();
+            sessions.get((int) (i % sessions.size())).submit(pair[0], pair[1]).whenComplete((result, error) -> {
+                long now = System.nanoTime();
+                lastCompletion.accumulateAndGet(now, Math::max);
+                if (error != null) {
+                    (error instanceof ClientSession.BusyException ? busy : errors).incrementAndGet();
+                } else {
+                    latency.recordValue(now - intended);
+                }
+                outstanding.decrementAndGet();
+            });
+        }
+
+        // Responses still on their way belong to this phase and are usually its slowest
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(1);
+        }
+        long unfinished = outstanding.get(); // Counted as errors
+        long elapsed = Math.max(lastCompletion.get(), start + durationNanos) - start;
+        return new PhaseReport(name, rate, latency.getTotalCount(), errors.get() + unfinished, busy.get(), elapsed, latency);
+    }
+
+    private int[][][] nextOperands() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] range = sizeRanges[random.nextInt(sizeRanges.length)];
+        int size = range[0] + random.nextInt(range[1] - range[0] + 1);
+        int[][][][] variants = operands.computeIfAbsent(size, s -> {
+            Random seeded = new Random(s);
+            int[][][][] pairs = new int[OPERAND_VARIANTS][][][];
+            for (int v = 0; v < OPERAND_VARIANTS; v++) {
+                pairs[v] = new int[][][]{TCPClient.generateRandomMatrix(s, seeded), TCPClient.generateRandomMatrix(s, seeded)};
+            }
+            return pairs;
+        });
+        int[][][] pair = variants[random.nextInt(OPERAND_VARIANTS)];
+        if (random.nextDouble() < reuse) {
+            return pair;
+        }
+        // A fresh pair for the price of copying one row: A differs in its first element
+        int[][] A = pair[0].clone();
+        A[0] = A[0].clone();
+        A[0][0] = (int) uniqueOperands.incrementAndGet();
+        return new int[][][]{A, pair[1]};
+    }
+
+    // Legacy connections that stall right after the Java serialization stream header
+    public void openIdleClients(String host, int port, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Socket socket = new Socket(host, port);
+            idleClients.add(socket);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{(byte) 0xAC, (byte) 0xED, 0x00, 0x05});
+            out.flush();
+        }
+        if (count > 0) {
+            System.out.println("Opened " + count + " idle legacy connections");
+        }
+    }
+
+    public void close() {
+        for (Socket socket : idleClients) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (ClientSession session : sessions) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // "20", "16-256" or a comma-separated mix of both
+    private static int[][] parseSizes(String spec) {
+        String[] entries = spec.split(",");
+        int[][] ranges = new int[entries.length][];
+        for (int i = 0; i < entries.length; i++) {
+            String[] bounds = entries[i].trim().split("-");
+            int min = Integer.parseInt(bounds[0].trim());
+            int max = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : min;
+            if (min < 1 || max < min) {
+                throw new IllegalArgumentException("Invalid matrix size range: " + entries[i]);
+            }
+            ranges[i] = new int[]{min, max};
+        }
+        return ranges;
+    }
+
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+}
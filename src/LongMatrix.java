@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+// 64-bit integer Matrix, for products whose sums overflow an int.
+public class LongMatrix extends Matrix {
+    public final long[] data;
+
+    public LongMatrix(int rows, int cols) {
+        this(new long[rows * cols], 0, rows, cols, cols);
+    }
+
+    public LongMatrix(long[] data, int offset, int rows, int cols, int stride) {
+        super(offset, rows, cols, stride);
+        this.data = data;
+    }
+
+    // Copies a jagged matrix into a zero-padded paddedRows x paddedCols flat matrix
+    public static LongMatrix fromArray(long[][] matrix, int paddedRows, int paddedCols) {
+        LongMatrix result = new LongMatrix(paddedRows, paddedCols);
+        for (int i = 0; i < matrix.length; i++) {
+            System.arraycopy(matrix[i], 0, result.data, i * paddedCols, matrix[i].length);
+        }
+        return result;
+    }
+
+    public static LongMatrix fromArray(long[][] matrix) {
+        return fromArray(matrix, matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+    }
+
+    // Copies the top-left rows x cols block back into a jagged matrix
+    public long[][] toArray(int rows, int cols) {
+        long[][] result = new long[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, result[i], 0, cols);
+        }
+        return result;
+    }
+
+    public long[][] toArray() {
+        return toArray(rows, cols);
+    }
+
+    public long get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, long value) {
+        data[offset + i * stride + j] = value;
+    }
+
+    @Override
+    public byte elementType() {
+        return WireProtocol.ELEMENT_INT64;
+    }
+
+    @Override
+    public int capacity() {
+        return data.length;
+    }
+
+    @Override
+    LongMatrix wrap(int offset, int rows, int cols, int stride) {
+        return new LongMatrix(data, offset, rows, cols, stride);
+    }
+
+    @Override
+    public LongMatrix view(int row, int col, int rows, int cols) {
+        return wrap(offset + row * stride + col, rows, cols, stride);
+    }
+
+    @Override
+    public Number element(int i, int j) {
+        return get(i, j);
+    }
+
+    @Override
+    public void add(Matrix A, Matrix B) {
+        long[] a = ((LongMatrix) A).data, b = ((LongMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] + b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtract(Matrix A, Matrix B) {
+        long[] a = ((LongMatrix) A).data, b = ((LongMatrix) B).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride, rb = B.offset + i * B.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] = a[ra + j] - b[rb + j];
+            }
+        }
+    }
+
+    @Override
+    public void addInPlace(Matrix A) {
+        long[] a = ((LongMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] += a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void subtractInPlace(Matrix A) {
+        long[] a = ((LongMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride, ra = A.offset + i * A.stride;
+            for (int j = 0; j < cols; j++) {
+                data[r + j] -= a[ra + j];
+            }
+        }
+    }
+
+    @Override
+    public void copyFrom(Matrix A) {
+        long[] a = ((LongMatrix) A).data;
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(a, A.offset + i * A.stride, data, offset + i * stride, cols);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            int r = offset + i * stride;
+            Arrays.fill(data, r, r + cols, 0);
+        }
+    }
+
+    @Override
+    public void putBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        LongBuffer elements = buffer.asLongBuffer();
+        if (stride == cols && col == 0) {
+            elements.put(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.put(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Long.BYTES);
+    }
+
+    @Override
+    public void getBlock(ByteBuffer buffer, int row, int col, int rows, int cols) {
+        LongBuffer elements = buffer.asLongBuffer();
+        if (stride == cols && col == 0) {
+            elements.get(data, offset + row * stride, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                elements.get(data, offset + (row + i) * stride + col, cols);
+            }
+        }
+        buffer.position(buffer.position() + rows * cols * Long.BYTES);
+    }
+}
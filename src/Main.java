@@ -1,86 +1,43 @@
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.ArrayList;
-import java.util.List;
 
+// Runs a router and one compute server in this process and drives them with the
+// LoadGenerator. Takes the LoadGenerator options (concurrency, rates, sizes, duration, ...)
+// plus --server-threads, the number of connections the server handles at once (default 8),
+// --virtual-threads true to handle connections on virtual threads instead (router and server),
+// --metrics-port to serve Prometheus metrics over HTTP (on loopback unless --metrics-address
+// says otherwise) and --debug true to print matrices.
 public class Main {
-    public static void main(String[] args) {
-        int ThreadCount = 1; // Thread count for the server
-
-        // Create executor services for server and clients
-        ExecutorService serverExecutor = Executors.newFixedThreadPool(ThreadCount + 1); // +1 for router
-        ExecutorService clientExecutor = Executors.newFixedThreadPool(ThreadCount);
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        // Each pooled router connection holds one server thread, so this must cover the router's pool
+        int serverThreads = Integer.parseInt(options.getOrDefault("server-threads", "8"));
+        if (options.containsKey("metrics-address")) {
+            System.setProperty("strassen.metrics.address", options.get("metrics-address"));
+        }
+        Telemetry.start(Integer.parseInt(options.getOrDefault("metrics-port", "0")));
+        StrassenMatrixMultiplication.setDebug(Boolean.parseBoolean(options.getOrDefault("debug", "false")));
+        if (options.containsKey("virtual-threads")) {
+            System.setProperty("strassen.virtual.threads", options.get("virtual-threads"));
+        }
 
-        // Start the Router asynchronously
+        // Start the router and the server
+        ExecutorService serverExecutor = Executors.newFixedThreadPool(2);
         TCPServerRouter router = new TCPServerRouter();
-        CompletableFuture.runAsync(() -> {
-            router.startRouter();
-            System.out.println("TCPServerRouter started...");
-        }, serverExecutor);
-
-        // Start the Server asynchronously with the specified thread count
-        CompletableFuture<Void> serverFuture = CompletableFuture.runAsync(() -> {
-            TCPServer server = new TCPServer(ThreadCount);
-            server.startServer();
-            System.out.println("TCPServer started with " + ThreadCount + " threads...");
-        }, serverExecutor);
-
-        // List to hold metrics from each client
-        List<CompletableFuture<Metrics>> clientMetricsFutures = new ArrayList<>();
-
-        // Start multiple clients asynchronously and collect metrics
-        for (int i = 0; i < ThreadCount; i++) {
-            final int clientId = i + 1;
-            CompletableFuture<Metrics> clientFuture = CompletableFuture.supplyAsync(() -> {
-                TCPClient client = new TCPClient();
-                System.out.println("Starting TCPClient #" + clientId);
-                return client.startClient(clientId); // Now returns a Metrics object
-            }, clientExecutor);
-            clientMetricsFutures.add(clientFuture);
+        TCPServer server = new TCPServer(serverThreads);
+        serverExecutor.execute(router::startRouter);
+        serverExecutor.execute(server::startServer);
+        Thread.sleep(500); // Let both bind their ports
+
+        try {
+            LoadGenerator.run(options);
+        } finally {
+            System.out.println("Load finished. Shutting down router...");
+            router.shutdownRouter();
+            server.shutdown();
+            serverExecutor.shutdown();
         }
-
-        // Aggregate all metrics once all clients are done
-        CompletableFuture<Void> allClientsFuture = CompletableFuture.allOf(clientMetricsFutures.toArray(new CompletableFuture[0]))
-                .thenRun(() -> {
-                    long totalExecutionTime = 0;
-                    double totalSpeedUp = 0;
-                    double totalEfficiency = 0;
-
-                    int count = 0;
-                    for (CompletableFuture<Metrics> future : clientMetricsFutures) {
-                        try {
-                            Metrics metrics = future.get(); // Retrieve each client's metrics
-                            if (metrics != null) {
-                                totalExecutionTime += metrics.executionTime;
-                                totalSpeedUp += metrics.speedUp;
-                                totalEfficiency += metrics.efficiency;
-                                count++;
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    // Print aggregated metrics
-                    System.out.println(String.format("Average Execution Time: %d ns", totalExecutionTime / count));
-                    System.out.println(String.format("Average Speed Up: %.4f", totalSpeedUp / count));
-                    System.out.printf("Average Efficiency: %.3f%%%n", (totalEfficiency / count) * 100);
-                });
-
-        // Shutdown all services after clients and server are done
-        allClientsFuture.thenCompose(v -> serverFuture) // Wait for server to complete
-                .thenRunAsync(() -> {
-                    System.out.println("All clients and server tasks are complete. Shutting down router...");
-                    router.shutdownRouter(); // Graceful router shutdown
-                    System.out.println("TCPServerRouter shutdown complete.");
-                }, serverExecutor)
-                .thenRun(() -> {
-                    System.out.println("Shutting down executors...");
-                    serverExecutor.shutdown();
-                    clientExecutor.shutdown();
-                    System.out.println("All executors have been shut down.");
-                })
-                .join(); // Wait until all tasks are done
+        System.exit(0); // The metrics endpoint, if started, keeps its own thread
     }
 }
@@ -0,0 +1,268 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// Off-heap int matrix in a memory-mapped file (row-major, little-endian), for operands and
+// scratch larger than the heap. Like Matrix, a MappedMatrix may be a window into a larger
+// store. A window may also reach past the end of the data it covers: the missing rows and
+// columns read as zero and writes to them are dropped, which is how padding to a power of
+// two is done without copying anything.
+public class MappedMatrix implements Closeable {
+    public final Store store;
+    public final long offset;
+    public final int rows;
+    public final int cols;
+    public final int stride;
+    // How many of the rows/cols actually exist in the store; the rest are virtual zeros
+    public final int validRows;
+    public final int validCols;
+
+    // A mapped file, split into mappings of at most CHUNK_INTS ints since one mapping is
+    // limited to 2 GB
+    public static class Store implements Closeable {
+        private static final int CHUNK_INTS = 1 << 28;
+
+        private final Path file;
+        private final boolean temporary;
+        private final RandomAccessFile raf;
+        private final IntBuffer[] chunks;
+
+        private Store(Path file, long elements, boolean temporary) throws IOException {
+            this.file = file;
+            this.temporary = temporary;
+            this.raf = new RandomAccessFile(file.toFile(), "rw");
+            if (raf.length() < elements * Integer.BYTES) {
+                raf.setLength(elements * Integer.BYTES); // Sparse, reads as zero
+            }
+            FileChannel channel = raf.getChannel();
+            chunks = new IntBuffer[(int) ((elements + CHUNK_INTS - 1) / CHUNK_INTS)];
+            for (int c = 0; c < chunks.length; c++) {
+                long first = (long) c * CHUNK_INTS;
+                long count = Math.min(CHUNK_INTS, elements - first);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, first * Integer.BYTES, count * Integer.BYTES);
+                chunks[c] = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        }
+
+        // Scratch space in the temp directory, deleted on close
+        public static Store createTemp(long elements) throws IOException {
+            Path file = Files.createTempFile(Paths.get(System.getProperty("java.io.tmpdir")), "strassen-scratch", ".bin");
+            return new Store(file, elements, true);
+        }
+
+        void get(long index, int[] target, int offset, int length) {
+            while (length > 0) {
+                int chunk = (int) (index / CHUNK_INTS);
+                int position = (int) (index % CHUNK_INTS);
+                int count = Math.min(length, CHUNK_INTS - position);
+                chunks[chunk].get(position, target, offset, count);
+                index += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void put(long index, int[] source, int offset, int length) {
+            while (length > 0) {
+                int chunk = (int) (index / CHUNK_INTS);
+                int position = (int) (index % CHUNK_INTS);
+                int count = Math.min(length, CHUNK_INTS - position);
+                chunks[chunk].put(position, source, offset, count);
+                index += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        // The mappings themselves are released when they are garbage collected; a deleted
+        // scratch file keeps its disk space until then
+        @Override
+        public void close() throws IOException {
+            raf.close();
+            if (temporary) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public MappedMatrix(Store store, long offset, int rows, int cols, int stride, int validRows, int validCols) {
+        this.store = store;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.stride = stride;
+        this.validRows = validRows;
+        this.validCols = validCols;
+    }
+
+    // Maps (creating or growing if needed) a rows x cols matrix stored in file
+    public static MappedMatrix open(Path file, int rows, int cols) throws IOException {
+        Store store = new Store(file, (long) rows * cols, false);
+        return new MappedMatrix(store, 0, rows, cols, cols, rows, cols);
+    }
+
+    // Zero-filled scratch matrix backed by a temp file
+    public static MappedMatrix createTemp(int rows, int cols) throws IOException {
+        Store store = Store.createTemp((long) rows * cols);
+        return new MappedMatrix(store, 0, rows, cols, cols, rows, cols);
+    }
+
+    public static MappedMatrix fromArray(int[][] matrix, Path file) throws IOException {
+        MappedMatrix result = open(file, matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+        for (int i = 0; i < result.rows; i++) {
+            result.writeRow(i, matrix[i]);
+        }
+        return result;
+    }
+
+    public int[][] toArray() {
+        int[][] result = new int[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            readRow(i, result[i]);
+        }
+        return result;
+    }
+
+    public int get(int i, int j) {
+        if (i >= validRows || j >= validCols) {
+            return 0;
+        }
+        int[] value = new int[1];
+        store.get(offset + (long) i * stride + j, value, 0, 1);
+        return value[0];
+    }
+
+    // Window of this matrix starting at (row, col). It may extend past the valid area (or
+    // even past rows/cols, to pad): that part reads as zero.
+    public MappedMatrix view(int row, int col, int rows, int cols) {
+        int viewRows = Math.max(0, Math.min(rows, validRows - row));
+        int viewCols = Math.max(0, Math.min(cols, validCols - col));
+        return new MappedMatrix(store, offset + (long) row * stride + col, rows, cols, stride, viewRows, viewCols);
+    }
+
+    // Quadrants of an even-sized matrix: P11, P12, P21, P22
+    public MappedMatrix q11() {
+        return view(0, 0, rows / 2, cols / 2);
+    }
+
+    public MappedMatrix q12() {
+        return view(0, cols / 2, rows / 2, cols / 2);
+    }
+
+    public MappedMatrix q21() {
+        return view(rows / 2, 0, rows / 2, cols / 2);
+    }
+
+    public MappedMatrix q22() {
+        return view(rows / 2, cols / 2, rows / 2, cols / 2);
+    }
+
+    // Row i into target[0..cols), zero beyond the valid columns
+    public void readRow(int i, int[] target) {
+        if (i >= validRows) {
+            Arrays.fill(target, 0, cols, 0);
+            return;
+        }
+        store.get(offset + (long) i * stride, target, 0, validCols);
+        Arrays.fill(target, validCols, cols, 0);
+    }
+
+    // Writes the valid part of row i from source
+    public void writeRow(int i, int[] source) {
+        if (i < validRows) {
+            store.put(offset + (long) i * stride, source, 0, validCols);
+        }
+    }
+
+    // Heap copy of this window (virtual zeros included), for the in-core part of a multiply
+    public IntMatrix load() {
+        IntMatrix result = new IntMatrix(rows, cols);
+        int[] row = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            readRow(i, row);
+            System.arraycopy(row, 0, result.data, i * cols, cols);
+        }
+        return result;
+    }
+
+    // Writes the valid part of a heap matrix of the same shape into this window
+    public void store(IntMatrix source) {
+        for (int i = 0; i < validRows; i++) {
+            store.put(offset + (long) i * stride, source.data, source.offset + i * source.stride, validCols);
+        }
+    }
+
+    // this = A + B
+    public void add(MappedMatrix A, MappedMatrix B) {
+        int[] a = new int[cols], b = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            A.readRow(i, a);
+            B.readRow(i, b);
+            for (int j = 0; j < validCols; j++) {
+                a[j] += b[j];
+            }
+            writeRow(i, a);
+        }
+    }
+
+    // this = A - B
+    public void subtract(MappedMatrix A, MappedMatrix B) {
+        int[] a = new int[cols], b = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            A.readRow(i, a);
+            B.readRow(i, b);
+            for (int j = 0; j < validCols; j++) {
+                a[j] -= b[j];
+            }
+            writeRow(i, a);
+        }
+    }
+
+    // this += A
+    public void addInPlace(MappedMatrix A) {
+        int[] r = new int[cols], a = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            readRow(i, r);
+            A.readRow(i, a);
+            for (int j = 0; j < validCols; j++) {
+                r[j] += a[j];
+            }
+            writeRow(i, r);
+        }
+    }
+
+    // this -= A
+    public void subtractInPlace(MappedMatrix A) {
+        int[] r = new int[cols], a = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            readRow(i, r);
+            A.readRow(i, a);
+            for (int j = 0; j < validCols; j++) {
+                r[j] -= a[j];
+            }
+            writeRow(i, r);
+        }
+    }
+
+    public void copyFrom(MappedMatrix A) {
+        int[] a = new int[cols];
+        for (int i = 0; i < validRows; i++) {
+            A.readRow(i, a);
+            writeRow(i, a);
+        }
+    }
+
+    // Closes the whole store this window belongs to
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+
+// Flat row-major matrix of one element type (see IntMatrix, LongMatrix, FloatMatrix and
+// DoubleMatrix); the Strassen engine only works through this class, so every type shares it.
+// A Matrix may be a window (offset/stride) into a larger backing array, so Strassen quadrants
+// are views of their parent rather than copies. Operands of the element-wise operations must
+// be of the same type as this matrix.
+public abstract class Matrix {
+    public final int offset;
+    public final int rows;
+    public final int cols;
+    public final int stride;
+
+    protected Matrix(int offset, int rows, int cols, int stride) {
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.stride = stride;
+    }
+
+    // Zero-filled rows x cols matrix of the given WireProtocol.ELEMENT_* type
+    public static Matrix allocate(byte elementType, int rows, int cols) {
+        switch (elementType) {
+            case WireProtocol.ELEMENT_INT32:
+                return new IntMatrix(rows, cols);
+            case WireProtocol.ELEMENT_INT64:
+                return new LongMatrix(rows, cols);
+            case WireProtocol.ELEMENT_FLOAT32:
+                return new FloatMatrix(rows, cols);
+            case WireProtocol.ELEMENT_FLOAT64:
+                return new DoubleMatrix(rows, cols);
+            default:
+                throw new IllegalArgumentException("Unsupported element type: " + elementType);
+        }
+    }
+
+    // Zero-filled matrix of this one's element type
+    public Matrix like(int rows, int cols) {
+        return allocate(elementType(), rows, cols);
+    }
+
+    public abstract byte elementType();
+
+    // Elements the backing array holds, from index 0
+    public abstract int capacity();
+
+    // Matrix over this one's backing array with its own offset, shape and stride
+    abstract Matrix wrap(int offset, int rows, int cols, int stride);
+
+    // Window of this matrix starting at (row, col); shares the backing array
+    public Matrix view(int row, int col, int rows, int cols) {
+        return wrap(offset + row * stride + col, rows, cols, stride);
+    }
+
+    // Quadrants of an even-sized matrix: P11, P12, P21, P22
+    public Matrix q11() {
+        return view(0, 0, rows / 2, cols / 2);
+    }
+
+    public Matrix q12() {
+        return view(0, cols / 2, rows / 2, cols / 2);
+    }
+
+    public Matrix q21() {
+        return view(rows / 2, 0, rows / 2, cols / 2);
+    }
+
+    public Matrix q22() {
+        return view(rows / 2, cols / 2, rows / 2, cols / 2);
+    }
+
+    // Boxed element, for printing
+    public abstract Number element(int i, int j);
+
+    // this = A + B
+    public abstract void add(Matrix A, Matrix B);
+
+    // this = A - B
+    public abstract void subtract(Matrix A, Matrix B);
+
+    // this += A
+    public abstract void addInPlace(Matrix A);
+
+    // this -= A
+    public abstract void subtractInPlace(Matrix A);
+
+    public abstract void copyFrom(Matrix A);
+
+    public abstract void clear();
+
+    // Writes the rows x cols block at (row, col) to buffer, little-endian and row by row
+    public abstract void putBlock(ByteBuffer buffer, int row, int col, int rows, int cols);
+
+    // Reads a rows x cols block written by putBlock into this matrix at (row, col)
+    public abstract void getBlock(ByteBuffer buffer, int row, int col, int rows, int cols);
+}
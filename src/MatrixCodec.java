@@ -0,0 +1,616 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Payload encodings of a matrix on the wire (WireProtocol.ENCODING_*). Every peer decodes all
+// of them; which ones a sender uses is negotiated per request: a multiply carries the set of
+// encodings its sender accepts the result in, and the server encodes the result with the
+// smallest of those (never larger than raw). A sender picks for its own operands from the set
+// in -Dstrassen.encodings.
+//
+//   VARINT  zigzag LEB128 per element; integer types only, for small or skewed values
+//   PACKED  long minimum, byte bit width, then every element minus the minimum in that many
+//           bits, LSB first; integer types only, for values in a narrow range
+//   CSR     per row a varint count of non-zeros, then for each its varint column gap and its
+//           value (zigzag varint for integers, raw bits for floats); for sparse matrices
+//   LZ4     the raw element block compressed in the LZ4 block format; off unless listed in
+//           -Dstrassen.encodings, since it costs a compression attempt per matrix
+//
+// The sizes of the first three are counted before anything is built, so only the chosen one is.
+// Matrices under 4 KB raw are always sent raw.
+public class MatrixCodec {
+    // Encodings used when -Dstrassen.encodings is not set
+    public static final String DEFAULT_ENCODINGS = "varint,packed,csr";
+    private static final int MAX_PACKED_BITS = 56; // Wider values are as cheap raw
+    // Smaller matrices go raw: they take a packet or two either way, and on a fast link the
+    // scan and the decode would cost more than the bytes saved
+    private static final int MIN_ENCODED_BYTES = 4096;
+    private static final int LZ4_HASH_BITS = 12;
+    private static final int LZ4_MIN_MATCH = 4;
+    private static final int LZ4_LAST_LITERALS = 5;  // The format ends every block with literals...
+    private static final int LZ4_MATCH_LIMIT = 12;   // ...and starts no match this close to its end
+    private static final int LZ4_MAX_OFFSET = 65535;
+
+    // Encodings this process sends and accepts back, as a mask of 1 << ENCODING_*
+    private static final byte localEncodings = parseEncodings(System.getProperty("strassen.encodings", DEFAULT_ENCODINGS));
+
+    private static final Telemetry.Counter RAW_BYTES = Telemetry.counter("codec", "raw_bytes");
+    private static final Telemetry.Counter ENCODED_BYTES = Telemetry.counter("codec", "encoded_bytes");
+
+    // A matrix ready to be written, with its size known up front so frames can be sized
+    public static class Encoded {
+        public final Matrix matrix;
+        public final byte encoding;
+        private final byte[] payload; // null for ENCODING_RAW, written straight from the matrix
+        private final int payloadBytes;
+
+        private Encoded(Matrix matrix, byte encoding, byte[] payload, int payloadBytes) {
+            this.matrix = matrix;
+            this.encoding = encoding;
+            this.payload = payload;
+            this.payloadBytes = payloadBytes;
+        }
+
+        // Bytes writeTo puts, header included
+        public int bytes() {
+            return WireProtocol.MATRIX_HEADER_BYTES + (payload == null ? payloadBytes : Integer.BYTES + payloadBytes);
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put(matrix.elementType());
+            buffer.putInt(matrix.rows);
+            buffer.putInt(matrix.cols);
+            buffer.put(encoding);
+            if (payload == null) {
+                matrix.putBlock(buffer, 0, 0, matrix.rows, matrix.cols);
+            } else {
+                buffer.putInt(payloadBytes);
+                buffer.put(payload, 0, payloadBytes);
+            }
+        }
+    }
+
+    public static byte localEncodings() {
+        return localEncodings;
+    }
+
+    // Mask of a comma-separated list of encoding names; raw is always included
+    public static byte parseEncodings(String names) {
+        int mask = 1 << WireProtocol.ENCODING_RAW;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || name.equals("none")) {
+                continue;
+            }
+            byte encoding = WireProtocol.ENCODING_RAW;
+            while (encoding <= WireProtocol.ENCODING_LZ4 && !WireProtocol.encodingName(encoding).equals(name)) {
+                encoding++;
+            }
+            if (encoding > WireProtocol.ENCODING_LZ4) {
+                throw new IllegalArgumentException("Unknown encoding: " + name);
+            }
+            mask |= 1 << encoding;
+        }
+        return (byte) mask;
+    }
+
+    public static Encoded encode(Matrix matrix) throws IOException {
+        return encode(matrix, localEncodings);
+    }
+
+    // The smallest encoding of matrix out of those in the encodings mask
+    public static Encoded encode(Matrix matrix, int encodings) throws IOException {
+        int rawBytes = WireProtocol.matrixBytes(matrix.elementType(), matrix.rows, matrix.cols) - WireProtocol.MATRIX_HEADER_BYTES;
+        Encoded encoded = chooseEncoding(matrix, encodings, rawBytes);
+        RAW_BYTES.add(rawBytes);
+        ENCODED_BYTES.add(encoded.payload == null ? rawBytes : encoded.payloadBytes);
+        return encoded;
+    }
+
+    private static Encoded chooseEncoding(Matrix matrix, int encodings, int rawBytes) {
+        Encoded raw = new Encoded(matrix, WireProtocol.ENCODING_RAW, null, rawBytes);
+        if ((encodings & ~(1 << WireProtocol.ENCODING_RAW)) == 0 || rawBytes < MIN_ENCODED_BYTES) {
+            return raw;
+        }
+        boolean integer = isInteger(matrix.elementType());
+        int elementBytes = WireProtocol.elementBytes(matrix.elementType());
+
+        // A first pass gives the range and the non-zeros: the packed size, and lower bounds for
+        // the others, which are only sized (another pass each) if they could still come out ahead
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        long nonZeros = 0;
+        long[] row = new long[matrix.cols];
+        if (matrix instanceof IntMatrix) {
+            // Kept on ints, where the range loop vectorizes
+            IntMatrix m = (IntMatrix) matrix;
+            int intMin = Integer.MAX_VALUE, intMax = Integer.MIN_VALUE;
+            for (int i = 0; i < m.rows; i++) {
+                for (int j = m.offset + i * m.stride, end = j + m.cols; j < end; j++) {
+                    int value = m.data[j];
+                    intMin = Math.min(intMin, value);
+                    intMax = Math.max(intMax, value);
+                    nonZeros += value != 0 ? 1 : 0;
+                }
+            }
+            min = intMin;
+            max = intMax;
+        } else {
+            for (int i = 0; i < matrix.rows; i++) {
+                getRow(matrix, i, row);
+                for (long value : row) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    nonZeros += value != 0 ? 1 : 0;
+                }
+            }
+        }
+        long elements = (long) matrix.rows * matrix.cols;
+        int packedBits = 64 - Long.numberOfLeadingZeros(max - min);
+
+        byte best = WireProtocol.ENCODING_RAW;
+        long bestBytes = rawBytes - Integer.BYTES; // An encoded payload also carries its length
+        long packedBytes = Long.BYTES + 1 + (elements * packedBits + 7) / 8;
+        if (integer && packedBits <= MAX_PACKED_BITS && allows(encodings, WireProtocol.ENCODING_PACKED) && packedBytes < bestBytes) {
+            best = WireProtocol.ENCODING_PACKED;
+            bestBytes = packedBytes;
+        }
+        // At least a byte per row and two per non-zero
+        if (allows(encodings, WireProtocol.ENCODING_CSR) && matrix.rows + 2 * nonZeros < bestBytes) {
+            long csrBytes = csrSize(matrix, integer, elementBytes, row);
+            if (csrBytes < bestBytes) {
+                best = WireProtocol.ENCODING_CSR;
+                bestBytes = csrBytes;
+            }
+        }
+        // At least a byte per element
+        if (integer && allows(encodings, WireProtocol.ENCODING_VARINT) && elements < bestBytes) {
+            long varintBytes = varintsSize(matrix, row);
+            if (varintBytes < bestBytes) {
+                best = WireProtocol.ENCODING_VARINT;
+                bestBytes = varintBytes;
+            }
+        }
+        if (allows(encodings, WireProtocol.ENCODING_LZ4)) {
+            ByteBuffer block = ByteBuffer.allocate(rawBytes).order(ByteOrder.LITTLE_ENDIAN);
+            matrix.putBlock(block, 0, 0, matrix.rows, matrix.cols);
+            byte[] compressed = new byte[rawBytes + rawBytes / 255 + 16];
+            int compressedBytes = compressLz4(block.array(), rawBytes, compressed);
+            if (compressedBytes < bestBytes) {
+                return new Encoded(matrix, WireProtocol.ENCODING_LZ4, compressed, compressedBytes);
+            }
+        }
+        if (best == WireProtocol.ENCODING_RAW) {
+            return raw;
+        }
+
+        byte[] payload = new byte[(int) bestBytes];
+        int length;
+        if (best == WireProtocol.ENCODING_VARINT) {
+            length = putVarints(matrix, payload);
+        } else if (best == WireProtocol.ENCODING_PACKED) {
+            length = putPacked(matrix, min, packedBits, payload);
+        } else {
+            length = putCsr(matrix, integer, elementBytes, payload);
+        }
+        return new Encoded(matrix, best, payload, length);
+    }
+
+    private static boolean allows(int encodings, byte encoding) {
+        return (encodings & 1 << encoding) != 0;
+    }
+
+    private static boolean isInteger(byte elementType) {
+        return elementType == WireProtocol.ELEMENT_INT32 || elementType == WireProtocol.ELEMENT_INT64;
+    }
+
+    // Fills target (a zero-filled matrix of the header's type and shape) from payloadBytes of
+    // buffer in the given encoding; the buffer ends up past the payload
+    public static void decode(ByteBuffer buffer, Matrix target, byte encoding, int payloadBytes) throws IOException {
+        if (payloadBytes < 0 || payloadBytes > buffer.remaining()) {
+            throw new IOException("Malformed " + WireProtocol.encodingName(encoding) + " payload of " + payloadBytes + " bytes");
+        }
+        ByteBuffer payload = buffer.slice(buffer.position(), payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + payloadBytes);
+        boolean integer = isInteger(target.elementType());
+        try {
+            switch (encoding) {
+                case WireProtocol.ENCODING_VARINT:
+                    if (integer) {
+                        getVarints(payload, target);
+                        break;
+                    }
+                    throw new IOException("varint payload for " + WireProtocol.elementName(target.elementType()) + " elements");
+                case WireProtocol.ENCODING_PACKED:
+                    if (integer) {
+                        getPacked(payload, target);
+                        break;
+                    }
+                    throw new IOException("packed payload for " + WireProtocol.elementName(target.elementType()) + " elements");
+                case WireProtocol.ENCODING_CSR:
+                    getCsr(payload, target, integer);
+                    break;
+                case WireProtocol.ENCODING_LZ4:
+                    int rawBytes = target.rows * target.cols * WireProtocol.elementBytes(target.elementType());
+                    byte[] block = new byte[rawBytes];
+                    decompressLz4(payload, block);
+                    target.getBlock(ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN), 0, 0, target.rows, target.cols);
+                    break;
+                default:
+                    throw new IOException("Unsupported encoding: " + encoding);
+            }
+        } catch (RuntimeException e) {
+            // Truncated or inconsistent payloads run off the end of their slice
+            throw new IOException("Malformed " + WireProtocol.encodingName(encoding) + " payload: " + e);
+        }
+        if (payload.hasRemaining()) {
+            throw new IOException("Malformed " + WireProtocol.encodingName(encoding) + " payload: "
+                    + payload.remaining() + " bytes left over");
+        }
+    }
+
+    // Fewest bytes a payload starting at buffer's position can describe a rows x cols matrix
+    // in, so a small frame announcing a huge shape is refused before the matrix is allocated:
+    // a byte per varint element, the bits of every packed element, a count per CSR row, and
+    // for LZ4 a byte per 255 decoded (the most a length byte adds)
+    static long minimumPayloadBytes(ByteBuffer buffer, byte elementType, int rows, int cols, byte encoding) {
+        long elements = (long) rows * cols;
+        switch (encoding) {
+            case WireProtocol.ENCODING_VARINT:
+                return elements;
+            case WireProtocol.ENCODING_PACKED:
+                int header = Long.BYTES + 1;
+                int bits = buffer.remaining() < header ? 0 : buffer.get(buffer.position() + Long.BYTES);
+                return header + (bits < 0 || bits > MAX_PACKED_BITS ? 0 : (elements * bits + 7) / 8);
+            case WireProtocol.ENCODING_CSR:
+                return rows;
+            case WireProtocol.ENCODING_LZ4:
+                return (elements * WireProtocol.elementBytes(elementType) + 254) / 255;
+            default:
+                return 0;
+        }
+    }
+
+    // Row i as longs: integers by value, floats by their raw bits (so only +0.0 reads as zero)
+    static void getRow(Matrix matrix, int i, long[] row) {
+        if (matrix instanceof IntMatrix) {
+            IntMatrix m = (IntMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                row[j] = m.data[start + j];
+            }
+        } else if (matrix instanceof LongMatrix) {
+            LongMatrix m = (LongMatrix) matrix;
+            System.arraycopy(m.data, m.offset + i * m.stride, row, 0, row.length);
+        } else if (matrix instanceof FloatMatrix) {
+            FloatMatrix m = (FloatMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                row[j] = Float.floatToRawIntBits(m.data[start + j]) & 0xFFFFFFFFL;
+            }
+        } else {
+            DoubleMatrix m = (DoubleMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                row[j] = Double.doubleToRawLongBits(m.data[start + j]);
+            }
+        }
+    }
+
+    static void setRow(Matrix matrix, int i, long[] row) {
+        if (matrix instanceof IntMatrix) {
+            IntMatrix m = (IntMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                m.data[start + j] = (int) row[j];
+            }
+        } else if (matrix instanceof LongMatrix) {
+            LongMatrix m = (LongMatrix) matrix;
+            System.arraycopy(row, 0, m.data, m.offset + i * m.stride, row.length);
+        } else if (matrix instanceof FloatMatrix) {
+            FloatMatrix m = (FloatMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                m.data[start + j] = Float.intBitsToFloat((int) row[j]);
+            }
+        } else {
+            DoubleMatrix m = (DoubleMatrix) matrix;
+            int start = m.offset + i * m.stride;
+            for (int j = 0; j < row.length; j++) {
+                m.data[start + j] = Double.longBitsToDouble(row[j]);
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static int varintSize(long value) {
+        return value == 0 ? 1 : (64 - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    private static int putVarint(byte[] out, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    private static long getVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 10 bytes");
+    }
+
+    private static long varintsSize(Matrix matrix, long[] row) {
+        long bytes = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            getRow(matrix, i, row);
+            for (long value : row) {
+                bytes += varintSize(zigzag(value));
+            }
+        }
+        return bytes;
+    }
+
+    private static int putVarints(Matrix matrix, byte[] out) {
+        long[] row = new long[matrix.cols];
+        int position = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            getRow(matrix, i, row);
+            for (long value : row) {
+                position = putVarint(out, position, zigzag(value));
+            }
+        }
+        return position;
+    }
+
+    private static void getVarints(ByteBuffer in, Matrix target) throws IOException {
+        long[] row = new long[target.cols];
+        for (int i = 0; i < target.rows; i++) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = unzigzag(getVarint(in));
+            }
+            setRow(target, i, row);
+        }
+    }
+
+    // Widths up to 32 bits are flushed an int at a time, wider ones a byte at a time
+    private static int putPacked(Matrix matrix, long min, int bits, byte[] out) {
+        ByteBuffer words = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+        words.putLong(0, min);
+        out[Long.BYTES] = (byte) bits;
+        int position = Long.BYTES + 1;
+        long[] row = new long[matrix.cols];
+        long pending = 0; // Bits not yet written, lowest first
+        int pendingBits = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            getRow(matrix, i, row);
+            for (long value : row) {
+                pending |= (value - min) << pendingBits;
+                pendingBits += bits;
+                if (bits <= Integer.SIZE) {
+                    if (pendingBits >= Integer.SIZE) {
+                        words.putInt(position, (int) pending);
+                        position += Integer.BYTES;
+                        pending >>>= Integer.SIZE;
+                        pendingBits -= Integer.SIZE;
+                    }
+                    continue;
+                }
+                while (pendingBits >= 8) {
+                    out[position++] = (byte) pending;
+                    pending >>>= 8;
+                    pendingBits -= 8;
+                }
+            }
+        }
+        for (; pendingBits > 0; pendingBits -= 8) {
+            out[position++] = (byte) pending;
+            pending >>>= 8;
+        }
+        return position;
+    }
+
+    private static void getPacked(ByteBuffer in, Matrix target) throws IOException {
+        long min = in.getLong();
+        int bits = in.get();
+        if (bits < 0 || bits > MAX_PACKED_BITS) {
+            throw new IOException("Bad packed bit width: " + bits);
+        }
+        long mask = (1L << bits) - 1;
+        long[] row = new long[target.cols];
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < target.rows; i++) {
+            for (int j = 0; j < row.length; j++) {
+                while (pendingBits < bits) {
+                    if (pendingBits <= Integer.SIZE && in.remaining() >= Integer.BYTES) {
+                        pending |= (in.getInt() & 0xFFFFFFFFL) << pendingBits;
+                        pendingBits += Integer.SIZE;
+                    } else {
+                        pending |= (in.get() & 0xFFL) << pendingBits;
+                        pendingBits += 8;
+                    }
+                }
+                row[j] = min + (pending & mask);
+                pending >>>= bits;
+                pendingBits -= bits;
+            }
+            setRow(target, i, row);
+        }
+    }
+
+    private static long csrSize(Matrix matrix, boolean integer, int elementBytes, long[] row) {
+        long bytes = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            getRow(matrix, i, row);
+            int count = 0, lastColumn = -1;
+            for (int j = 0; j < row.length; j++) {
+                long value = row[j];
+                if (value != 0) {
+                    count++;
+                    bytes += varintSize(j - lastColumn - 1) + (integer ? varintSize(zigzag(value)) : elementBytes);
+                    lastColumn = j;
+                }
+            }
+            bytes += varintSize(count);
+        }
+        return bytes;
+    }
+
+    private static int putCsr(Matrix matrix, boolean integer, int elementBytes, byte[] out) {
+        long[] row = new long[matrix.cols];
+        int position = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            getRow(matrix, i, row);
+            int count = 0;
+            for (long value : row) {
+                if (value != 0) {
+                    count++;
+                }
+            }
+            position = putVarint(out, position, count);
+            int lastColumn = -1;
+            for (int j = 0; j < row.length; j++) {
+                long value = row[j];
+                if (value == 0) {
+                    continue;
+                }
+                position = putVarint(out, position, j - lastColumn - 1);
+                lastColumn = j;
+                if (integer) {
+                    position = putVarint(out, position, zigzag(value));
+                } else {
+                    for (int b = 0; b < elementBytes; b++) {
+                        out[position++] = (byte) (value >>> 8 * b);
+                    }
+                }
+            }
+        }
+        return position;
+    }
+
+    private static void getCsr(ByteBuffer in, Matrix target, boolean integer) throws IOException {
+        boolean wide = WireProtocol.elementBytes(target.elementType()) == Long.BYTES;
+        long[] row = new long[target.cols];
+        for (int i = 0; i < target.rows; i++) {
+            Arrays.fill(row, 0);
+            long count = getVarint(in);
+            long column = -1;
+            for (long p = 0; p < count; p++) {
+                column += getVarint(in) + 1;
+                if (column < 0 || column >= row.length) {
+                    throw new IOException("Sparse column out of bounds in row " + i);
+                }
+                row[(int) column] = integer ? unzigzag(getVarint(in)) : wide ? in.getLong() : in.getInt() & 0xFFFFFFFFL;
+            }
+            setRow(target, i, row);
+        }
+    }
+
+    // LZ4 block format: sequences of a token (literal count, match length - 4), the literals,
+    // a 2-byte match offset and the match; lengths of 15 and up continue in extra bytes.
+    // Greedy single-probe matcher, fast rather than tight. Returns the compressed length.
+    static int compressLz4(byte[] source, int length, byte[] out) {
+        int[] table = new int[1 << LZ4_HASH_BITS]; // Last position + 1 of each hashed 4-byte sequence
+        ByteBuffer words = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+        int anchor = 0, position = 0, o = 0;
+        int matchLimit = length - LZ4_MATCH_LIMIT;
+        while (position < matchLimit) {
+            int sequence = words.getInt(position);
+            int hash = sequence * -1640531535 >>> 32 - LZ4_HASH_BITS;
+            int candidate = table[hash] - 1;
+            table[hash] = position + 1;
+            if (candidate < 0 || position - candidate > LZ4_MAX_OFFSET || words.getInt(candidate) != sequence) {
+                position++;
+                continue;
+            }
+            int matchLength = LZ4_MIN_MATCH;
+            while (position + matchLength < length - LZ4_LAST_LITERALS
+                    && source[candidate + matchLength] == source[position + matchLength]) {
+                matchLength++;
+            }
+            int token = o;
+            o = putSequence(source, anchor, position - anchor, out, o);
+            out[o++] = (byte) (position - candidate);
+            out[o++] = (byte) (position - candidate >>> 8);
+            int extra = matchLength - LZ4_MIN_MATCH;
+            out[token] |= (byte) Math.min(extra, 15);
+            if (extra >= 15) {
+                o = putLength(out, o, extra - 15);
+            }
+            position += matchLength;
+            anchor = position;
+        }
+        return putSequence(source, anchor, length - anchor, out, o);
+    }
+
+    // Token (literal half only) and literals of a sequence
+    private static int putSequence(byte[] source, int from, int literals, byte[] out, int o) {
+        out[o++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) {
+            o = putLength(out, o, literals - 15);
+        }
+        System.arraycopy(source, from, out, o, literals);
+        return o + literals;
+    }
+
+    private static int putLength(byte[] out, int o, int remaining) {
+        while (remaining >= 255) {
+            out[o++] = (byte) 255;
+            remaining -= 255;
+        }
+        out[o++] = (byte) remaining;
+        return o;
+    }
+
+    // Fills target exactly from an LZ4 block
+    static void decompressLz4(ByteBuffer in, byte[] target) throws IOException {
+        int o = 0;
+        while (true) {
+            int token = in.get() & 0xFF;
+            int literals = getLength(in, token >>> 4);
+            in.get(target, o, literals);
+            o += literals;
+            if (!in.hasRemaining()) {
+                break;
+            }
+            int offset = (in.get() & 0xFF) | (in.get() & 0xFF) << 8;
+            int matchLength = getLength(in, token & 0xF) + LZ4_MIN_MATCH;
+            if (offset == 0 || offset > o || matchLength > target.length - o) {
+                throw new IOException("Bad LZ4 match at " + o);
+            }
+            for (int end = o + matchLength; o < end; o++) {
+                target[o] = target[o - offset]; // Byte by byte, matches may overlap themselves
+            }
+        }
+        if (o != target.length) {
+            throw new IOException("LZ4 block decoded to " + o + " bytes instead of " + target.length);
+        }
+    }
+
+    private static int getLength(ByteBuffer in, int length) {
+        if (length == 15) {
+            int b;
+            do {
+                b = in.get() & 0xFF;
+                length += b;
+            } while (b == 255);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// Self-checking test of the matrix payload encodings. Every element type is encoded under each
+// encoding mask at several densities and value ranges, written as it would be in a frame (with
+// bytes on either side), and must decode to the same matrix, ending exactly where matrixEnd
+// said it would. Truncated and corrupted payloads must be rejected with an IOException, never
+// a runtime exception that would kill a connection thread. Exits with status 1 on any failure.
+//
+//   java MatrixCodecTest [--seed 1] [--trials 2000]
+public class MatrixCodecTest {
+    private static final String[] ENCODINGS = {"none", "varint", "packed", "csr", "lz4", "varint,packed,csr,lz4"};
+    private static final int[][] SHAPES = {{0, 4}, {1, 1}, {3, 5}, {20, 20}, {64, 130}, {257, 129}};
+    // Kinds of contents, each favouring a different encoding
+    private static final int SMALL = 0, SPARSE = 1, WIDE = 2, REPETITIVE = 3, OFFSET = 4, DENSE_ZEROS = 5;
+    private static final int KINDS = 6;
+
+    private final Random random;
+    private int checks = 0;
+    private int failures = 0;
+
+    private MatrixCodecTest(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        int trials = 2000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--trials": trials = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        MatrixCodecTest test = new MatrixCodecTest(seed);
+        test.roundTrips();
+        test.truncatedPayloads();
+        test.corruptPayloads(trials);
+        System.out.println(test.checks + " checks, " + test.failures + " failures");
+        if (test.failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void roundTrips() throws IOException {
+        for (byte type = WireProtocol.ELEMENT_INT32; type <= WireProtocol.ELEMENT_FLOAT64; type++) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                for (int[] shape : SHAPES) {
+                    for (String encodings : ENCODINGS) {
+                        Matrix matrix = generate(type, shape[0], shape[1], kind);
+                        MatrixCodec.Encoded encoded = MatrixCodec.encode(matrix, MatrixCodec.parseEncodings(encodings));
+                        ByteBuffer buffer = ByteBuffer.allocate(encoded.bytes() + 2).order(ByteOrder.LITTLE_ENDIAN);
+                        buffer.put((byte) 0x5A);
+                        encoded.writeTo(buffer);
+                        buffer.put((byte) 0x7E);
+                        buffer.flip();
+                        buffer.get();
+                        int end = WireProtocol.matrixEnd(buffer, 1);
+                        Matrix decoded = WireProtocol.getMatrix(buffer);
+                        check(end == buffer.position() && buffer.get() == 0x7E && same(matrix, decoded),
+                                "round trip of " + describe(type, kind, shape) + " under " + encodings
+                                        + " (" + WireProtocol.encodingName(encoded.encoding) + ")");
+                    }
+                }
+            }
+        }
+    }
+
+    // Every proper prefix of an encoded matrix is refused, by matrixEnd and by getMatrix
+    private void truncatedPayloads() throws IOException {
+        for (byte type = WireProtocol.ELEMENT_INT32; type <= WireProtocol.ELEMENT_FLOAT64; type++) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                for (byte encoding = WireProtocol.ENCODING_RAW; encoding <= WireProtocol.ENCODING_LZ4; encoding++) {
+                    Matrix matrix = generate(type, 9, 11, kind);
+                    MatrixCodec.Encoded encoded = MatrixCodec.encode(matrix, 1 << WireProtocol.ENCODING_RAW | 1 << encoding);
+                    ByteBuffer whole = ByteBuffer.allocate(encoded.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+                    encoded.writeTo(whole);
+                    for (int length = 0; length < whole.capacity(); length++) {
+                        ByteBuffer prefix = whole.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                        prefix.position(0).limit(length);
+                        check(rejects(prefix, true) && rejects(prefix.position(0), false),
+                                "truncation to " + length + " bytes of " + describe(type, kind, null)
+                                        + " as " + WireProtocol.encodingName(encoded.encoding));
+                    }
+                }
+            }
+        }
+    }
+
+    // Random bytes of the payload are overwritten: the result must be the original matrix, some
+    // other well-formed matrix, or an IOException
+    private void corruptPayloads(int trials) throws IOException {
+        for (int trial = 0; trial < trials; trial++) {
+            byte type = (byte) (WireProtocol.ELEMENT_INT32 + trial % 4);
+            int kind = trial % KINDS;
+            Matrix matrix = generate(type, 40, 41, kind);
+            MatrixCodec.Encoded encoded = MatrixCodec.encode(matrix, 0x1F);
+            ByteBuffer buffer = ByteBuffer.allocate(encoded.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+            encoded.writeTo(buffer);
+            buffer.flip();
+            int corrupted = 1 + random.nextInt(3);
+            for (int i = 0; i < corrupted; i++) {
+                // Header bytes included: a bad type, shape or encoding must be caught as well
+                buffer.put(random.nextInt(buffer.limit()), (byte) random.nextInt());
+            }
+            String failure = null;
+            try {
+                Matrix decoded = WireProtocol.getMatrix(buffer);
+                if (decoded.rows != WireProtocol.rowsAt(buffer, 0) || decoded.cols != WireProtocol.colsAt(buffer, 0)) {
+                    failure = "decoded shape does not match the header";
+                }
+            } catch (IOException e) {
+                // Rejected, as it should be
+            } catch (RuntimeException | OutOfMemoryError e) {
+                failure = e.toString();
+            }
+            check(failure == null, "corruption of " + describe(type, kind, null) + " as "
+                    + WireProtocol.encodingName(encoded.encoding) + ": " + failure);
+        }
+    }
+
+    // True if the matrix in buffer is refused with an IOException, by matrixEnd or by getMatrix
+    private static boolean rejects(ByteBuffer buffer, boolean end) {
+        try {
+            if (end) {
+                WireProtocol.matrixEnd(buffer, 0);
+            } else {
+                WireProtocol.getMatrix(buffer);
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private Matrix generate(byte type, int rows, int cols, int kind) {
+        Matrix matrix = Matrix.allocate(type, rows, cols);
+        boolean floating = type == WireProtocol.ELEMENT_FLOAT32 || type == WireProtocol.ELEMENT_FLOAT64;
+        long[] row = new long[cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                long value;
+                switch (kind) {
+                    case SMALL: value = random.nextInt(10); break;
+                    case SPARSE: value = random.nextInt(30) == 0 ? random.nextInt(1000) - 500 : 0; break;
+                    case WIDE: value = random.nextLong(); break;
+                    case REPETITIVE: value = (j % 7) * 3 - 5; break;
+                    case OFFSET: value = 1_000_000 + random.nextInt(16); break;
+                    default: value = random.nextInt(4) == 0 ? (random.nextLong() >>> 24) - (1L << 38) : 0; break;
+                }
+                if (type == WireProtocol.ELEMENT_INT32) {
+                    row[j] = (int) value;
+                } else if (type == WireProtocol.ELEMENT_INT64) {
+                    row[j] = value;
+                } else if (type == WireProtocol.ELEMENT_FLOAT32) {
+                    float element = kind == WIDE ? (float) random.nextGaussian() : value;
+                    row[j] = Float.floatToRawIntBits(element) & 0xFFFFFFFFL;
+                } else {
+                    double element = kind == WIDE ? random.nextGaussian() : value;
+                    row[j] = Double.doubleToRawLongBits(element);
+                }
+            }
+            MatrixCodec.setRow(matrix, i, row);
+        }
+        return matrix;
+    }
+
+    // Bit-for-bit equality, so -0.0 and NaN payloads must survive as well
+    private static boolean same(Matrix a, Matrix b) {
+        if (a.elementType() != b.elementType() || a.rows != b.rows || a.cols != b.cols) {
+            return false;
+        }
+        long[] rowA = new long[a.cols];
+        long[] rowB = new long[b.cols];
+        for (int i = 0; i < a.rows; i++) {
+            MatrixCodec.getRow(a, i, rowA);
+            MatrixCodec.getRow(b, i, rowB);
+            for (int j = 0; j < a.cols; j++) {
+                if (rowA[j] != rowB[j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String describe(byte type, int kind, int[] shape) {
+        String[] kinds = {"small", "sparse", "wide", "repetitive", "offset", "dense-zeros"};
+        return WireProtocol.elementName(type) + " " + kinds[kind] + (shape == null ? "" : " " + shape[0] + "x" + shape[1]);
+    }
+
+    private void check(boolean passed, String what) {
+        checks++;
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// Leaf kernel that Strassen hands blocks to once they are at or below the crossover size.
+// Loops run i-k-j so the innermost loop streams contiguous rows of B and C (which the JIT
+// auto-vectorizes); k and j are tiled so the active panel of B stays in cache, and k is
+// unrolled by two so each C element is loaded and stored once per pair of FMAs. The loop is
+// spelled out once per element type so each copy works on primitive arrays.
+public class MatrixKernel {
+    private static final int K_BLOCK = 128;
+    private static final int J_BLOCK = 512;
+
+    // C = A * B, for blocks of any shape
+    public static void multiply(Matrix A, Matrix B, Matrix C) {
+        C.clear();
+        multiplyAccumulate(A, B, C);
+    }
+
+    // C += A * B; all three must be of the same element type
+    public static void multiplyAccumulate(Matrix A, Matrix B, Matrix C) {
+        if (C instanceof IntMatrix) {
+            multiplyAccumulate((IntMatrix) A, (IntMatrix) B, (IntMatrix) C);
+        } else if (C instanceof LongMatrix) {
+            multiplyAccumulate((LongMatrix) A, (LongMatrix) B, (LongMatrix) C);
+        } else if (C instanceof FloatMatrix) {
+            multiplyAccumulate((FloatMatrix) A, (FloatMatrix) B, (FloatMatrix) C);
+        } else {
+            multiplyAccumulate((DoubleMatrix) A, (DoubleMatrix) B, (DoubleMatrix) C);
+        }
+    }
+
+    // C += A * B
+    public static void multiplyAccumulate(IntMatrix A, IntMatrix B, IntMatrix C) {
+        int m = A.rows, depth = A.cols, n = B.cols;
+        int[] a = A.data, b = B.data, c = C.data;
+
+        for (int kk = 0; kk < depth; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, depth);
+            for (int jj = 0; jj < n; jj += J_BLOCK) {
+                int jEnd = Math.min(jj + J_BLOCK, n);
+                for (int i = 0; i < m; i++) {
+                    int aRow = A.offset + i * A.stride;
+                    int cRow = C.offset + i * C.stride;
+                    int k = kk;
+                    for (; k + 1 < kEnd; k += 2) {
+                        int a0 = a[aRow + k], a1 = a[aRow + k + 1];
+                        int b0 = B.offset + k * B.stride, b1 = b0 + B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j] + a1 * b[b1 + j];
+                        }
+                    }
+                    if (k < kEnd) {
+                        int a0 = a[aRow + k];
+                        int b0 = B.offset + k * B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // C += A * B
+    public static void multiplyAccumulate(LongMatrix A, LongMatrix B, LongMatrix C) {
+        int m = A.rows, depth = A.cols, n = B.cols;
+        long[] a = A.data, b = B.data, c = C.data;
+
+        for (int kk = 0; kk < depth; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, depth);
+            for (int jj = 0; jj < n; jj += J_BLOCK) {
+                int jEnd = Math.min(jj + J_BLOCK, n);
+                for (int i = 0; i < m; i++) {
+                    int aRow = A.offset + i * A.stride;
+                    int cRow = C.offset + i * C.stride;
+                    int k = kk;
+                    for (; k + 1 < kEnd; k += 2) {
+                        long a0 = a[aRow + k], a1 = a[aRow + k + 1];
+                        int b0 = B.offset + k * B.stride, b1 = b0 + B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j] + a1 * b[b1 + j];
+                        }
+                    }
+                    if (k < kEnd) {
+                        long a0 = a[aRow + k];
+                        int b0 = B.offset + k * B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // C += A * B
+    public static void multiplyAccumulate(FloatMatrix A, FloatMatrix B, FloatMatrix C) {
+        int m = A.rows, depth = A.cols, n = B.cols;
+        float[] a = A.data, b = B.data, c = C.data;
+
+        for (int kk = 0; kk < depth; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, depth);
+            for (int jj = 0; jj < n; jj += J_BLOCK) {
+                int jEnd = Math.min(jj + J_BLOCK, n);
+                for (int i = 0; i < m; i++) {
+                    int aRow = A.offset + i * A.stride;
+                    int cRow = C.offset + i * C.stride;
+                    int k = kk;
+                    for (; k + 1 < kEnd; k += 2) {
+                        float a0 = a[aRow + k], a1 = a[aRow + k + 1];
+                        int b0 = B.offset + k * B.stride, b1 = b0 + B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j] + a1 * b[b1 + j];
+                        }
+                    }
+                    if (k < kEnd) {
+                        float a0 = a[aRow + k];
+                        int b0 = B.offset + k * B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // C += A * B
+    public static void multiplyAccumulate(DoubleMatrix A, DoubleMatrix B, DoubleMatrix C) {
+        int m = A.rows, depth = A.cols, n = B.cols;
+        double[] a = A.data, b = B.data, c = C.data;
+
+        for (int kk = 0; kk < depth; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, depth);
+            for (int jj = 0; jj < n; jj += J_BLOCK) {
+                int jEnd = Math.min(jj + J_BLOCK, n);
+                for (int i = 0; i < m; i++) {
+                    int aRow = A.offset + i * A.stride;
+                    int cRow = C.offset + i * C.stride;
+                    int k = kk;
+                    for (; k + 1 < kEnd; k += 2) {
+                        double a0 = a[aRow + k], a1 = a[aRow + k + 1];
+                        int b0 = B.offset + k * B.stride, b1 = b0 + B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j] + a1 * b[b1 + j];
+                        }
+                    }
+                    if (k < kEnd) {
+                        double a0 = a[aRow + k];
+                        int b0 = B.offset + k * B.stride;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += a0 * b[b0 + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
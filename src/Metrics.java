@@ -1,12 +1,17 @@
-
 public class Metrics {
     public long executionTime;
     public double speedUp;
     public double efficiency;
+    public byte algorithm; // WireProtocol.ALGORITHM_*; unknown over the legacy protocol
 
     public Metrics(long executionTime, double speedUp, double efficiency) {
+        this(executionTime, speedUp, efficiency, WireProtocol.ALGORITHM_UNKNOWN);
+    }
+
+    public Metrics(long executionTime, double speedUp, double efficiency, byte algorithm) {
         this.executionTime = executionTime;
         this.speedUp = speedUp;
         this.efficiency = efficiency;
+        this.algorithm = algorithm;
     }
 }
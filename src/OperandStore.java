@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Matrices registered on a server so later multiplies can refer to them by handle instead of
+// resending them (FRAME_REGISTER / FRAME_MULTIPLY_HANDLE). Each is kept as a PreparedOperand.
+// A handle expires once it has gone unused for its time-to-live, and the store is bounded by
+// the bytes it holds: registering past the budget evicts the least recently used handles.
+// Handles are random 64-bit values, so those of different servers behind a router do not clash.
+public final class OperandStore {
+    // Defaults; -Dstrassen.operand.bytes and -Dstrassen.operand.ttl.ms override them on the
+    // server, a budget of 0 disables registration
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final long maxBytes;
+    private final long maxTtlMillis;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private long currentBytes = 0;
+    private final Telemetry.Counter registrations;
+    private final Telemetry.Counter evictions;
+    private final Telemetry.Counter expirations;
+    private final ScheduledExecutorService sweeper;
+
+    private static class Entry {
+        final PreparedOperand operand;
+        final long ttlNanos;
+        long lastUsed = System.nanoTime();
+
+        Entry(PreparedOperand operand, long ttlNanos) {
+            this.operand = operand;
+            this.ttlNanos = ttlNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastUsed > ttlNanos;
+        }
+    }
+
+    // maxTtlMillis is both the time-to-live of handles registered without one and the most a
+    // client may ask for
+    public OperandStore(String component, long maxBytes, long maxTtlMillis) {
+        this.maxBytes = maxBytes;
+        this.maxTtlMillis = Math.max(1, maxTtlMillis);
+        this.registrations = Telemetry.counter(component, "operand_registrations");
+        this.evictions = Telemetry.counter(component, "operand_evictions");
+        this.expirations = Telemetry.counter(component, "operand_expirations");
+        if (maxBytes <= 0) {
+            sweeper = null;
+            return;
+        }
+        Telemetry.gauge(component, "operand_bytes", this::getCurrentBytes);
+        Telemetry.gauge(component, "operand_handles", this::getHandleCount);
+        // Frees expired operands even when nothing new is registered to push them out
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, component + "-operand-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Time-to-live a registration asking for ttlMillis gets (0 or less for the default)
+    public long grantedTtlMillis(long ttlMillis) {
+        return ttlMillis <= 0 ? maxTtlMillis : Math.min(ttlMillis, maxTtlMillis);
+    }
+
+    // Keeps operand for grantedTtlMillis(ttlMillis) after its last use and returns its handle
+    public synchronized long register(PreparedOperand operand, long ttlMillis) throws IOException {
+        long bytes = operand.getBytes();
+        if (bytes > maxBytes) {
+            throw new IOException(maxBytes <= 0 ? "Operand registration is disabled"
+                    : "Operand of " + bytes + " bytes exceeds the store's budget of " + maxBytes);
+        }
+        removeExpired();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (currentBytes + bytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().operand.getBytes();
+            eldest.remove();
+            evictions.increment();
+        }
+
+        long handle;
+        do {
+            handle = ThreadLocalRandom.current().nextLong();
+        } while (handle == 0 || entries.containsKey(handle));
+        entries.put(handle, new Entry(operand, TimeUnit.MILLISECONDS.toNanos(grantedTtlMillis(ttlMillis))));
+        currentBytes += bytes;
+        registrations.increment();
+        return handle;
+    }
+
+    // Operand registered under handle, or null if it was never registered, released or dropped.
+    // Counts as a use, restarting its time-to-live.
+    public synchronized PreparedOperand get(long handle) {
+        Entry entry = entries.get(handle);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (entry.isExpired(now)) {
+            remove(handle, entry);
+            expirations.increment();
+            return null;
+        }
+        entry.lastUsed = now;
+        return entry.operand;
+    }
+
+    // False if the handle was not (or no longer) registered
+    public synchronized boolean release(long handle) {
+        Entry entry = entries.get(handle);
+        if (entry == null) {
+            return false;
+        }
+        remove(handle, entry);
+        return true;
+    }
+
+    private synchronized void removeExpired() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.isExpired(now)) {
+                currentBytes -= entry.operand.getBytes();
+                iterator.remove();
+                expirations.increment();
+            }
+        }
+    }
+
+    private void remove(long handle, Entry entry) {
+        entries.remove(handle);
+        currentBytes -= entry.operand.getBytes();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHandleCount() {
+        return entries.size();
+    }
+
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+// Strassen for MappedMatrix operands that may not fit on the heap. The top levels recurse
+// over mapped windows, with the operand sums and products M1..M7 spilled to one mapped
+// scratch file used as a stack (the same S/T/P scheme as the in-core recursion). Once a
+// block is small enough it is loaded onto the heap and multiplied by the usual parallel
+// Strassen. Operands are padded virtually, so a 1025 x 1025 input is never copied to 2048.
+public class OutOfCoreStrassen {
+    private final ForkJoinPool pool;
+    private final int inCoreSize;
+    private final MappedMatrix.Store scratch;
+    private long top = 0;
+
+    private OutOfCoreStrassen(ForkJoinPool pool, int inCoreSize, MappedMatrix.Store scratch) {
+        this.pool = pool;
+        this.inCoreSize = inCoreSize;
+        this.scratch = scratch;
+    }
+
+    // Largest power-of-two block whose A, B, C and recursion scratch fit in half the heap
+    public static int defaultInCoreSize() {
+        long budget = Runtime.getRuntime().maxMemory() / 2;
+        int size = StrassenMatrixMultiplication.getCrossover();
+        while ((long) (size * 2) * (size * 2) * Integer.BYTES * 4 <= budget && size < (1 << 14)) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    // C = A x B, where C is A.rows x B.cols. Blocks up to inCoreSize are multiplied on the heap.
+    public static void multiply(MappedMatrix A, MappedMatrix B, MappedMatrix C, ForkJoinPool pool, int inCoreSize) throws IOException {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols) {
+            throw new IllegalArgumentException("Cannot multiply " + A.rows + "x" + A.cols + " by " + B.rows + "x" + B.cols
+                    + " into " + C.rows + "x" + C.cols);
+        }
+        int maxDim = Math.max(Math.max(A.rows, A.cols), B.cols);
+        int newSize = 1;
+        while (newSize < maxDim) newSize *= 2;
+
+        long scratchInts = StrassenWorkspace.requiredCapacity(newSize, inCoreSize);
+        MappedMatrix.Store scratch = scratchInts == 0 ? null : MappedMatrix.Store.createTemp(scratchInts);
+        try {
+            new OutOfCoreStrassen(pool, inCoreSize, scratch).multiplyRecursive(
+                    A.view(0, 0, newSize, newSize), B.view(0, 0, newSize, newSize), C.view(0, 0, newSize, newSize));
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    private void multiplyRecursive(MappedMatrix A, MappedMatrix B, MappedMatrix C) {
+        int n = A.rows;
+        if (n <= inCoreSize) {
+            // Base case: virtual padding becomes real zeros only in this heap block
+            IntMatrix result = new IntMatrix(n, n);
+            StrassenMatrixMultiplication.multiply(A.load(), B.load(), result, pool,
+                    StrassenMatrixMultiplication.DEFAULT_PARALLEL_DEPTH, StrassenMatrixMultiplication.DEFAULT_PARALLEL_THRESHOLD);
+            C.store(result);
+            return;
+        }
+
+        int newSize = n / 2;
+        MappedMatrix A11 = A.q11(), A12 = A.q12(), A21 = A.q21(), A22 = A.q22();
+        MappedMatrix B11 = B.q11(), B12 = B.q12(), B21 = B.q21(), B22 = B.q22();
+        MappedMatrix C11 = C.q11(), C12 = C.q12(), C21 = C.q21(), C22 = C.q22();
+
+        long mark = top;
+        MappedMatrix S = take(newSize);
+        MappedMatrix T = take(newSize);
+        MappedMatrix P = take(newSize);
+
+        // Writes outside C's valid area are dropped. Every element of C inside it still gets
+        // all of its terms, since a quadrant copied or accumulated from another only reads
+        // positions that are themselves inside the valid area.
+        // M1 = (A11 + A22)(B11 + B22) -> C11, C22
+        S.add(A11, A22);
+        T.add(B11, B22);
+        multiplyRecursive(S, T, C11);
+        C22.copyFrom(C11);
+        // M2 = (A21 + A22)B11 -> C21, -C22
+        S.add(A21, A22);
+        multiplyRecursive(S, B11, C21);
+        C22.subtractInPlace(C21);
+        // M3 = A11(B12 - B22) -> C12, C22
+        T.subtract(B12, B22);
+        multiplyRecursive(A11, T, C12);
+        C22.addInPlace(C12);
+        // M4 = A22(B21 - B11) -> C11, C21
+        T.subtract(B21, B11);
+        multiplyRecursive(A22, T, P);
+        C11.addInPlace(P);
+        C21.addInPlace(P);
+        // M5 = (A11 + A12)B22 -> -C11, C12
+        S.add(A11, A12);
+        multiplyRecursive(S, B22, P);
+        C11.subtractInPlace(P);
+        C12.addInPlace(P);
+        // M6 = (A21 - A11)(B11 + B12) -> C22
+        S.subtract(A21, A11);
+        T.add(B11, B12);
+        multiplyRecursive(S, T, P);
+        C22.addInPlace(P);
+        // M7 = (A12 - A22)(B21 + B22) -> C11
+        S.subtract(A12, A22);
+        T.add(B21, B22);
+        multiplyRecursive(S, T, P);
+        C11.addInPlace(P);
+
+        top = mark;
+    }
+
+    // Next size x size block of the scratch stack
+    private MappedMatrix take(int size) {
+        MappedMatrix block = new MappedMatrix(scratch, top, size, size, size, size, size);
+        top += (long) size * size;
+        return block;
+    }
+}
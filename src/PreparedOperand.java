@@ -0,0 +1,37 @@
+// Right-hand operand kept resident for repeated multiplies (see OperandStore): B, plus the sums
+// of its quadrants that a Strassen step on the whole of B feeds to M1, M3, M4, M6 and M7. A
+// multiply against it only forms the A-side sums there; the levels below work on sums of A
+// and B as usual.
+public class PreparedOperand {
+    public final Matrix B;
+    // B11 + B22, B12 - B22, B21 - B11, B11 + B12, B21 + B22 over the even-sized part of B;
+    // null if B has a single row or column
+    final Matrix T1, T3, T4, T6, T7;
+
+    public PreparedOperand(Matrix B) {
+        this.B = B;
+        if (B.rows < 2 || B.cols < 2) {
+            T1 = T3 = T4 = T6 = T7 = null;
+            return;
+        }
+        // Same quadrants as the Strassen step takes, with an odd last row or column peeled off
+        Matrix even = B.view(0, 0, B.rows & ~1, B.cols & ~1);
+        Matrix B11 = even.q11(), B12 = even.q12(), B21 = even.q21(), B22 = even.q22();
+        T1 = B.like(B11.rows, B11.cols);
+        T3 = B.like(B11.rows, B11.cols);
+        T4 = B.like(B11.rows, B11.cols);
+        T6 = B.like(B11.rows, B11.cols);
+        T7 = B.like(B11.rows, B11.cols);
+        T1.add(B11, B22);
+        T3.subtract(B12, B22);
+        T4.subtract(B21, B11);
+        T6.add(B11, B12);
+        T7.add(B21, B22);
+    }
+
+    // Heap held by the matrix and its sums
+    public long getBytes() {
+        long elements = (long) B.rows * B.cols + (T1 == null ? 0 : 5L * T1.rows * T1.cols);
+        return elements * WireProtocol.elementBytes(B.elementType());
+    }
+}
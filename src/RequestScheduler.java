@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Server-wide dispatch of decoded multiplies, by size. Small requests, which Strassen would
+// run on one thread anyway, wait in their own queue and are drained in batches by a few batch
+// workers; each worker runs its batch back-to-back on the same scratch buffers, without a
+// task handoff per request. Large requests go to the ForkJoinPool, where Strassen forks their
+// sub-products across every core. With separate queues a burst of tiny requests never waits
+// behind a large one, and a large one is not stuck behind thousands of tiny ones.
+public class RequestScheduler {
+    public static final int DEFAULT_MAX_BATCH = 32;
+
+    private static final Telemetry.Counter BATCHES = Telemetry.counter("server", "batches");
+    private static final Telemetry.Counter BATCHED_REQUESTS = Telemetry.counter("server", "batched_requests");
+
+    private final ForkJoinPool computePool;
+    private final int maxBatch;
+    private final BlockingQueue<Runnable> smallJobs = new LinkedBlockingQueue<>();
+    private final List<Thread> batchWorkers = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    // A request's computation; batched is true when it runs on a batch worker, which means it
+    // must stay on the calling thread and may use that thread's StrassenWorkspace buffers
+    public interface Job {
+        void run(boolean batched);
+    }
+
+    // batchWorkers of 0 sends everything to the compute pool
+    public RequestScheduler(ForkJoinPool computePool, int batchWorkers, int maxBatch) {
+        this.computePool = computePool;
+        this.maxBatch = Math.max(1, maxBatch);
+        for (int i = 0; i < batchWorkers; i++) {
+            Thread worker = new Thread(this::runBatches, "strassen-batch-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            this.batchWorkers.add(worker);
+        }
+        if (batchWorkers > 0) {
+            Telemetry.gauge("server", "small_queue_depth", smallJobs::size);
+            Telemetry.gauge("server", "large_queue_depth", computePool::getQueuedSubmissionCount);
+        }
+    }
+
+    // Queues a multiply whose largest dimension is size on the lane for its size
+    public CompletableFuture<Void> submit(int size, Job job) {
+        if (closed || batchWorkers.isEmpty() || size > StrassenMatrixMultiplication.sequentialCutoff()) {
+            return CompletableFuture.runAsync(() -> job.run(false), computePool);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Runnable queued = () -> {
+            try {
+                job.run(true);
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        };
+        smallJobs.add(queued);
+        if (closed && smallJobs.remove(queued)) {
+            computePool.execute(queued); // The workers may already be gone
+        }
+        return future;
+    }
+
+    // Work that is always large and parallel, such as a streamed multiply
+    public CompletableFuture<Void> submitParallel(Runnable task) {
+        return CompletableFuture.runAsync(task, computePool);
+    }
+
+    public ForkJoinPool getComputePool() {
+        return computePool;
+    }
+
+    // Takes whatever small jobs are queued, up to maxBatch, and runs them in order
+    private void runBatches() {
+        List<Runnable> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(smallJobs.take());
+            } catch (InterruptedException e) {
+                // Closing: finish what was already accepted, then stop
+                smallJobs.drainTo(batch);
+                batch.forEach(Runnable::run);
+                return;
+            }
+            smallJobs.drainTo(batch, maxBatch - 1);
+            BATCHES.increment();
+            for (Runnable job : batch) {
+                BATCHED_REQUESTS.increment();
+                job.run();
+            }
+            batch.clear();
+        }
+    }
+
+    // New requests go to the compute pool from now on; queued small ones still run
+    public void close() {
+        closed = true;
+        for (Thread worker : batchWorkers) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+// Reply to one multiply submitted through a ClientSession
+public class Result {
+    public final long requestId;
+    public final Matrix product;
+    public final int[][] matrix; // product as a jagged array if it is an int matrix, else null
+    public final Metrics metrics;
+
+    public Result(long requestId, Matrix product, Metrics metrics) {
+        this.requestId = requestId;
+        this.product = product;
+        this.matrix = product instanceof IntMatrix ? ((IntMatrix) product).toArray() : null;
+        this.metrics = metrics;
+    }
+}
@@ -0,0 +1,226 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Results of recent multiplies, keyed by the encoded operands (dimensions included), so a
+// resubmitted pair is answered without computing it again. Used in front of the engine on the
+// server and in front of the backends on the router. Lookups go by a 128-bit hash, seeded
+// per process, and a hit is only taken once the operand bytes compare equal, so a crafted
+// collision cannot return someone else's product. Entries are the FRAME_RESULT payloads with
+// their trailer marked ALGORITHM_CACHED (no time or speed-up: nothing was computed for the
+// reply); the cache is bounded by their total size and the operands kept with them, and
+// evicts the least recently used first.
+public final class ResultCache {
+    // Default budget; -Dstrassen.cache.bytes overrides it on the server and router, 0 disables
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED = new SecureRandom().nextLong();
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private long currentBytes = 0;
+    private final Telemetry.Counter hits;
+    private final Telemetry.Counter misses;
+    private final Telemetry.Counter evictions;
+
+    public static final class Key {
+        final long high;
+        final long low;
+        // The request's operand bytes; a copy of them once detached from the request's buffer
+        private ByteBuffer operands;
+        private boolean detached = false;
+
+        Key(long high, long low, ByteBuffer operands) {
+            this.high = high;
+            this.low = low;
+            this.operands = operands;
+        }
+
+        // Copies the operands out of the request, whose buffer may be reused before the
+        // result is put
+        void detach() {
+            if (!detached) {
+                byte[] copy = new byte[operands.remaining()];
+                operands.get(operands.position(), copy);
+                operands = ByteBuffer.wrap(copy);
+                detached = true;
+            }
+        }
+
+        int size() {
+            return operands.remaining();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).high == high && ((Key) other).low == low
+                    && ((Key) other).operands.equals(operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    // component names the statistics ("server", "router"); maxBytes of 0 disables the cache
+    public ResultCache(String component, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.hits = Telemetry.counter(component, "cache_hits");
+        this.misses = Telemetry.counter(component, "cache_misses");
+        this.evictions = Telemetry.counter(component, "cache_evictions");
+        if (maxBytes > 0) {
+            Telemetry.gauge(component, "cache_bytes", this::getCurrentBytes);
+            Telemetry.gauge(component, "cache_entries", this::getEntryCount);
+        }
+    }
+
+    // Key of a complete FRAME_MULTIPLY (from position 0), or null if it is not cacheable
+    public Key keyOf(ByteBuffer request) {
+        if (maxBytes <= 0 || WireProtocol.frameType(request) != WireProtocol.FRAME_MULTIPLY) {
+            return null;
+        }
+        // Both matrices with their headers; the client id is not part of the question
+        int from = WireProtocol.FRAME_HEADER_BYTES + Integer.BYTES;
+        if (request.limit() < from || request.limit() - from > maxBytes) {
+            return null; // Malformed (the backend will say so), or its operands alone would not fit
+        }
+        return hash(request, from, request.limit());
+    }
+
+    // Cached FRAME_RESULT payload, or null. A key that misses is detached, ready to be put.
+    public byte[] get(Key key) {
+        if (key == null) {
+            return null;
+        }
+        byte[] payload;
+        synchronized (this) {
+            payload = entries.get(key);
+        }
+        (payload != null ? hits : misses).increment();
+        if (payload == null) {
+            key.detach();
+        }
+        return payload;
+    }
+
+    // Remembers the payload of a FRAME_RESULT response (from position 0) for key; other
+    // frame types and a null key are ignored. The frame's position is left unchanged.
+    public void put(Key key, ByteBuffer response) {
+        if (key == null || WireProtocol.frameType(response) != WireProtocol.FRAME_RESULT) {
+            return;
+        }
+        int payloadBytes = response.limit() - WireProtocol.FRAME_HEADER_BYTES;
+        if (payloadBytes < WireProtocol.RESULT_TRAILER_BYTES || (long) payloadBytes + key.size() > maxBytes) {
+            return; // Would evict everything else and still not fit
+        }
+        byte[] payload = new byte[payloadBytes];
+        response.get(WireProtocol.FRAME_HEADER_BYTES, payload);
+        // A replay computes nothing: no time, speed-up or efficiency to report
+        ByteBuffer trailer = ByteBuffer.wrap(payload, payloadBytes - WireProtocol.RESULT_TRAILER_BYTES,
+                WireProtocol.RESULT_TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putLong(0).putDouble(Double.NaN).putDouble(Double.NaN).put(WireProtocol.ALGORITHM_CACHED);
+        key.detach();
+        synchronized (this) {
+            byte[] previous = entries.put(key, payload);
+            currentBytes += payload.length - (previous == null ? -key.size() : previous.length);
+            Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<Key, byte[]> entry = eldest.next();
+                currentBytes -= entry.getKey().size() + entry.getValue().length;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // A FRAME_RESULT answering requestId with a cached payload
+    public static ByteBuffer resultFrame(long requestId, byte[] payload) {
+        return WireProtocol.allocateFrame(WireProtocol.FRAME_RESULT, requestId, payload.length).put(payload).flip();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    // MurmurHash3 x64 128-bit over buffer[from, to), little-endian, with this process's seed.
+    // The key refers to those bytes in buffer until it is detached.
+    static Key hash(ByteBuffer buffer, int from, int to) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long h1 = SEED, h2 = SEED;
+        int length = to - from;
+        int position = from;
+        for (; position + 16 <= to; position += 16) {
+            long k1 = data.getLong(position);
+            long k2 = data.getLong(position + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0, k2 = 0;
+        for (int i = to - position - 1; i >= 0; i--) {
+            long b = data.get(position + i) & 0xFFL;
+            if (i >= 8) {
+                k2 |= b << ((i - 8) * 8);
+            } else {
+                k1 |= b << (i * 8);
+            }
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new Key(h1, h2, buffer.duplicate().limit(to).position(from));
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -1,50 +1,66 @@
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
+// Blocking relay for legacy (Java serialization) clients. The serialized matrices are
+// re-encoded as a binary frame (in the router's payload encodings, see MatrixCodec) and sent
+// over the router's pooled backend connections; the legacy hop itself stays serialized.
 public class SThread implements Runnable {
-	private Socket clientSocket;
+	private static final Telemetry.Stage DESERIALIZE = Telemetry.stage("router", "deserialize");
+	private static final Telemetry.Stage RELAY = Telemetry.stage("router", "relay");
+	private SocketChannel clientChannel;
+	private ByteBuffer preamble;
 	private TCPServerRouter router;
 	private static int clientIdCounter = 0;
 	private int clientId;
+	private int readTimeoutMillis;
 
-	public SThread(Socket clientSocket, TCPServerRouter router) {
-		this.clientSocket = clientSocket;
+	// A client that sends nothing for readTimeoutMillis (0 for no limit) is disconnected
+	public SThread(SocketChannel clientChannel, ByteBuffer preamble, TCPServerRouter router, int readTimeoutMillis) {
+		this.clientChannel = clientChannel;
+		this.preamble = preamble;
 		this.router = router;
 		this.clientId = ++clientIdCounter;
+		this.readTimeoutMillis = readTimeoutMillis;
 	}
 
 	@Override
 	public void run() {
-		try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-			 ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())) {
+		try (FrameChannel client = new FrameChannel(clientChannel, preamble)) {
+			clientChannel.socket().setSoTimeout(readTimeoutMillis);
+			ObjectInputStream in = new ObjectInputStream(client.legacyInputStream());
+			ObjectOutputStream out = new ObjectOutputStream(client.legacyOutputStream());
 
 			// Read clientId first
 			int receivedClientId = in.readInt();  // Now matches client sending
+			long decodeStart = System.nanoTime();
 			int[][] matrixA = (int[][]) in.readObject();
 			int[][] matrixB = (int[][]) in.readObject();
 
-			Socket serverSocket = new Socket("localhost", 12346);
-			router.addConnection(receivedClientId, serverSocket);
+			ByteBuffer request = WireProtocol.encodeMultiply(0, receivedClientId, IntMatrix.fromArray(matrixA), IntMatrix.fromArray(matrixB));
+			long relayStart = DESERIALIZE.recordSince(decodeStart);
+			router.getBackends().exchange(request, response -> {
+				if (WireProtocol.frameType(response) != WireProtocol.FRAME_RESULT) {
+					throw new IOException("Server could not compute the result for client " + receivedClientId);
+				}
+				response.position(WireProtocol.FRAME_HEADER_BYTES);
+				int[][] result = WireProtocol.getArray(response);
+				long parallelExecutionTime = response.getLong();
+				double speedUp = response.getDouble();
+				double efficiency = response.getDouble();
 
-			ObjectOutputStream serverOut = new ObjectOutputStream(serverSocket.getOutputStream());
-			serverOut.writeObject(matrixA);
-			serverOut.writeObject(matrixB);
-
-			ObjectInputStream serverIn = new ObjectInputStream(serverSocket.getInputStream());
-			int[][] result = (int[][]) serverIn.readObject();
-			long parallelExecutionTime = serverIn.readLong();
-			double speedUp = serverIn.readDouble();
-			double efficiency = serverIn.readDouble();
-
-			// Send results back to the client
-			out.writeObject(result);
-			out.writeLong(parallelExecutionTime);
-			out.writeDouble(speedUp);
-			out.writeDouble(efficiency);
-
-			router.removeConnection(receivedClientId);
-			serverSocket.close();
+				// Send results back to the client
+				out.writeObject(result);
+				out.writeLong(parallelExecutionTime);
+				out.writeDouble(speedUp);
+				out.writeDouble(efficiency);
+				out.flush();
+			});
+			RELAY.recordSince(relayStart);
 
+		} catch (SocketTimeoutException e) {
+			System.out.println("Legacy client " + clientChannel.socket().getRemoteSocketAddress() + " timed out, closing it");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
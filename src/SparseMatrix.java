@@ -0,0 +1,292 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Compressed sparse row (CSR) form of a matrix that is mostly zeros: the non-zeros of row i
+// are values[rowStart[i]..rowStart[i + 1]) in columns[...] of the same range. Multiplying
+// through it costs time in proportion to its non-zeros instead of its size, and beats any
+// dense algorithm well before the matrix is that sparse. Zeros are skipped outright, so a
+// zero times an infinity or NaN in the other operand gives 0 rather than NaN.
+public class SparseMatrix {
+    // Rows of C are split across the pool down to about this many multiply-adds each
+    private static final long PARALLEL_WORK = 1 << 16;
+
+    public final int rows;
+    public final int cols;
+    public final int[] rowStart;
+    public final int[] columns;
+    public final Matrix values; // 1 x nonZeros, of the source's element type
+
+    private SparseMatrix(int rows, int cols, int[] rowStart, int[] columns, Matrix values) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    // CSR copy of matrix if at most maxDensity of its elements are non-zero, else null. The
+    // count stops as soon as the limit is passed, so a dense matrix costs only a partial scan.
+    public static SparseMatrix of(Matrix matrix, double maxDensity) {
+        if (maxDensity <= 0) {
+            return null;
+        }
+        long limit = (long) (maxDensity * matrix.rows * matrix.cols);
+        long[] row = new long[matrix.cols];
+        int nonZeros = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            MatrixCodec.getRow(matrix, i, row);
+            for (long value : row) {
+                if (value != 0 && ++nonZeros > limit) {
+                    return null;
+                }
+            }
+        }
+
+        int[] rowStart = new int[matrix.rows + 1];
+        int[] columns = new int[nonZeros];
+        long[] values = new long[nonZeros];
+        int p = 0;
+        for (int i = 0; i < matrix.rows; i++) {
+            MatrixCodec.getRow(matrix, i, row);
+            for (int j = 0; j < row.length; j++) {
+                if (row[j] != 0) {
+                    columns[p] = j;
+                    values[p++] = row[j];
+                }
+            }
+            rowStart[i + 1] = p;
+        }
+        Matrix typedValues = matrix.like(1, nonZeros);
+        MatrixCodec.setRow(typedValues, 0, values);
+        return new SparseMatrix(matrix.rows, matrix.cols, rowStart, columns, typedValues);
+    }
+
+    public int nonZeros() {
+        return columns.length;
+    }
+
+    // C = this * B, with the rows of C spread over pool (null to run on this thread)
+    public void multiply(Matrix B, Matrix C, ForkJoinPool pool) {
+        run(new RowTask(B, C, false, 0, C.rows), pool);
+    }
+
+    // C = A * this
+    public void multiplyLeft(Matrix A, Matrix C, ForkJoinPool pool) {
+        run(new RowTask(A, C, true, 0, C.rows), pool);
+    }
+
+    private static void run(RowTask task, ForkJoinPool pool) {
+        if (pool == null || pool.getParallelism() == 1) {
+            task.multiplyRows();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    // Rows from..to of the product, halved while they hold more than PARALLEL_WORK. Like any
+    // fork/join task it is never serialized, whatever RecursiveAction declares
+    @SuppressWarnings("serial")
+    private class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix other, C;
+        private final boolean left;
+        private final int from, to;
+
+        RowTask(Matrix other, Matrix C, boolean left, int from, int to) {
+            this.other = other;
+            this.C = C;
+            this.left = left;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long work = left ? (long) (to - from) * nonZeros() : (long) (rowStart[to] - rowStart[from]) * C.cols;
+            if (to - from > 1 && work > PARALLEL_WORK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(other, C, left, from, middle), new RowTask(other, C, left, middle, to));
+            } else {
+                multiplyRows();
+            }
+        }
+
+        void multiplyRows() {
+            if (left) {
+                multiplyLeftRows(other, C, from, to);
+            } else {
+                SparseMatrix.this.multiplyRows(other, C, from, to);
+            }
+        }
+    }
+
+    private void multiplyRows(Matrix B, Matrix C, int from, int to) {
+        if (C instanceof IntMatrix) {
+            multiplyRows((IntMatrix) B, (IntMatrix) C, from, to);
+        } else if (C instanceof LongMatrix) {
+            multiplyRows((LongMatrix) B, (LongMatrix) C, from, to);
+        } else if (C instanceof FloatMatrix) {
+            multiplyRows((FloatMatrix) B, (FloatMatrix) C, from, to);
+        } else {
+            multiplyRows((DoubleMatrix) B, (DoubleMatrix) C, from, to);
+        }
+    }
+
+    private void multiplyLeftRows(Matrix A, Matrix C, int from, int to) {
+        if (C instanceof IntMatrix) {
+            multiplyLeftRows((IntMatrix) A, (IntMatrix) C, from, to);
+        } else if (C instanceof LongMatrix) {
+            multiplyLeftRows((LongMatrix) A, (LongMatrix) C, from, to);
+        } else if (C instanceof FloatMatrix) {
+            multiplyLeftRows((FloatMatrix) A, (FloatMatrix) C, from, to);
+        } else {
+            multiplyLeftRows((DoubleMatrix) A, (DoubleMatrix) C, from, to);
+        }
+    }
+
+    // Rows from..to of C = this * B
+    private void multiplyRows(IntMatrix B, IntMatrix C, int from, int to) {
+        int[] v = ((IntMatrix) values).data, b = B.data, c = C.data;
+        int n = B.cols;
+        for (int i = from; i < to; i++) {
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + n, 0);
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                int x = v[p];
+                int bRow = B.offset + columns[p] * B.stride;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += x * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = A * this
+    private void multiplyLeftRows(IntMatrix A, IntMatrix C, int from, int to) {
+        int[] v = ((IntMatrix) values).data, a = A.data, c = C.data;
+        for (int i = from; i < to; i++) {
+            int aRow = A.offset + i * A.stride;
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + cols, 0);
+            for (int k = 0; k < rows; k++) {
+                int x = a[aRow + k];
+                if (x == 0) {
+                    continue;
+                }
+                for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+                    c[cRow + columns[p]] += x * v[p];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = this * B
+    private void multiplyRows(LongMatrix B, LongMatrix C, int from, int to) {
+        long[] v = ((LongMatrix) values).data, b = B.data, c = C.data;
+        int n = B.cols;
+        for (int i = from; i < to; i++) {
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + n, 0L);
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                long x = v[p];
+                int bRow = B.offset + columns[p] * B.stride;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += x * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = A * this
+    private void multiplyLeftRows(LongMatrix A, LongMatrix C, int from, int to) {
+        long[] v = ((LongMatrix) values).data, a = A.data, c = C.data;
+        for (int i = from; i < to; i++) {
+            int aRow = A.offset + i * A.stride;
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + cols, 0L);
+            for (int k = 0; k < rows; k++) {
+                long x = a[aRow + k];
+                if (x == 0) {
+                    continue;
+                }
+                for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+                    c[cRow + columns[p]] += x * v[p];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = this * B
+    private void multiplyRows(FloatMatrix B, FloatMatrix C, int from, int to) {
+        float[] v = ((FloatMatrix) values).data, b = B.data, c = C.data;
+        int n = B.cols;
+        for (int i = from; i < to; i++) {
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + n, 0f);
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                float x = v[p];
+                int bRow = B.offset + columns[p] * B.stride;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += x * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = A * this
+    private void multiplyLeftRows(FloatMatrix A, FloatMatrix C, int from, int to) {
+        float[] v = ((FloatMatrix) values).data, a = A.data, c = C.data;
+        for (int i = from; i < to; i++) {
+            int aRow = A.offset + i * A.stride;
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + cols, 0f);
+            for (int k = 0; k < rows; k++) {
+                float x = a[aRow + k];
+                if (x == 0) {
+                    continue;
+                }
+                for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+                    c[cRow + columns[p]] += x * v[p];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = this * B
+    private void multiplyRows(DoubleMatrix B, DoubleMatrix C, int from, int to) {
+        double[] v = ((DoubleMatrix) values).data, b = B.data, c = C.data;
+        int n = B.cols;
+        for (int i = from; i < to; i++) {
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + n, 0.0);
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                double x = v[p];
+                int bRow = B.offset + columns[p] * B.stride;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += x * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // Rows from..to of C = A * this
+    private void multiplyLeftRows(DoubleMatrix A, DoubleMatrix C, int from, int to) {
+        double[] v = ((DoubleMatrix) values).data, a = A.data, c = C.data;
+        for (int i = from; i < to; i++) {
+            int aRow = A.offset + i * A.stride;
+            int cRow = C.offset + i * C.stride;
+            Arrays.fill(c, cRow, cRow + cols, 0.0);
+            for (int k = 0; k < rows; k++) {
+                double x = a[aRow + k];
+                if (x == 0) {
+                    continue;
+                }
+                for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+                    c[cRow + columns[p]] += x * v[p];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// Self-checking test of the multiply engine against the naive kernel (MatrixKernel.multiply).
+// Every element type is multiplied with each algorithm forced, parallel and sequential, and
+// with the engine's own choice, on odd, prime, elongated and degenerate shapes, operands that
+// are windows of larger matrices included. The crossover is lowered so these shapes recurse
+// several levels and peel odd rows, columns and inner indices. Integer-valued elements make
+// every algorithm exact, so results must match bit for bit; Gaussian floats are then checked
+// within a rounding tolerance. Exits with status 1 on any failure.
+//
+//   java StrassenEngineTest [--seed 1] [--crossover 16] [--threads 4]
+public class StrassenEngineTest {
+    private static final byte[] ALGORITHMS = {WireProtocol.ALGORITHM_BLOCKED, WireProtocol.ALGORITHM_STRASSEN,
+            WireProtocol.ALGORITHM_WINOGRAD, WireProtocol.ALGORITHM_SPARSE};
+    // m, k, n
+    private static final int[][] SHAPES = {
+            {1, 1, 1}, {2, 2, 2}, {3, 5, 7}, {17, 17, 17}, {31, 33, 35}, {64, 64, 64}, {97, 101, 103},
+            {129, 130, 131}, {255, 1, 255}, {1, 300, 1}, {2, 600, 3}, {500, 40, 70}, {40, 500, 70},
+            {70, 40, 500}, {1025, 33, 9}, {9, 33, 1025}, {300, 301, 299}};
+
+    private final Random random;
+    private final ForkJoinPool pool;
+    private int checks = 0;
+    private int failures = 0;
+
+    private StrassenEngineTest(long seed, int threads) {
+        this.random = new Random(seed);
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        int crossover = 16;
+        int threads = 4;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--crossover": crossover = Integer.parseInt(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        StrassenMatrixMultiplication.setCrossover(crossover);
+        StrassenEngineTest test = new StrassenEngineTest(seed, threads);
+        try {
+            test.exactProducts();
+            test.windowedOperands();
+            test.roundedProducts();
+        } finally {
+            test.pool.shutdown();
+        }
+        System.out.println(test.checks + " checks, " + test.failures + " failures");
+        if (test.failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void exactProducts() {
+        for (byte type = WireProtocol.ELEMENT_INT32; type <= WireProtocol.ELEMENT_FLOAT64; type++) {
+            for (int[] shape : SHAPES) {
+                Matrix A = integers(type, shape[0], shape[1]);
+                Matrix B = integers(type, shape[1], shape[2]);
+                compareAll(A, B, describe(type, shape), 0);
+            }
+        }
+    }
+
+    // Operands and result as windows of larger matrices, so every stride and offset is honoured
+    private void windowedOperands() {
+        for (byte type = WireProtocol.ELEMENT_INT32; type <= WireProtocol.ELEMENT_FLOAT64; type++) {
+            int[] shape = {45, 67, 39};
+            Matrix A = integers(type, shape[0] + 3, shape[1] + 5).view(2, 3, shape[0], shape[1]);
+            Matrix B = integers(type, shape[1] + 4, shape[2] + 2).view(1, 1, shape[1], shape[2]);
+            compareAll(A, B, describe(type, shape) + " windows", 0);
+        }
+    }
+
+    // Fast algorithms round differently from the naive loop, and their error grows with the
+    // recursion depth, so the tolerance scales with the inner dimension
+    private void roundedProducts() {
+        for (byte type = WireProtocol.ELEMENT_FLOAT32; type <= WireProtocol.ELEMENT_FLOAT64; type++) {
+            for (int[] shape : new int[][]{{97, 101, 103}, {300, 301, 299}, {1025, 33, 9}}) {
+                Matrix A = gaussian(type, shape[0], shape[1]);
+                Matrix B = gaussian(type, shape[1], shape[2]);
+                double epsilon = type == WireProtocol.ELEMENT_FLOAT32 ? 1e-4 : 1e-12;
+                compareAll(A, B, describe(type, shape) + " gaussian", epsilon * shape[1]);
+            }
+        }
+    }
+
+    // A * B by every algorithm and entry point against the naive kernel
+    private void compareAll(Matrix A, Matrix B, String what, double tolerance) {
+        Matrix expected = A.like(A.rows, B.cols);
+        MatrixKernel.multiply(A, B, expected);
+        for (byte algorithm : ALGORITHMS) {
+            String name = WireProtocol.algorithmName(algorithm);
+            Matrix C = A.like(A.rows, B.cols);
+            StrassenMatrixMultiplication.multiply(A, B, C, pool, StrassenMatrixMultiplication.DEFAULT_PARALLEL_DEPTH, 1, algorithm);
+            check(expected, C, tolerance, what + " " + name + " parallel");
+            C = A.like(A.rows, B.cols);
+            StrassenMatrixMultiplication.multiplySequential(A, B, C, algorithm);
+            check(expected, C, tolerance, what + " " + name + " sequential");
+        }
+        Matrix C = A.like(A.rows, B.cols);
+        byte chosen = StrassenMatrixMultiplication.multiply(A, B, C, pool, StrassenMatrixMultiplication.DEFAULT_PARALLEL_DEPTH, 1);
+        check(expected, C, tolerance, what + " selected " + WireProtocol.algorithmName(chosen));
+        C = A.like(A.rows, B.cols);
+        chosen = StrassenMatrixMultiplication.multiply(A, new PreparedOperand(B), C, pool, StrassenMatrixMultiplication.DEFAULT_PARALLEL_DEPTH, 1);
+        check(expected, C, tolerance, what + " prepared " + WireProtocol.algorithmName(chosen));
+    }
+
+    // Integers from -3 to 3; int64 ones are scaled so that products overflow the int32 range
+    private Matrix integers(byte type, int rows, int cols) {
+        Matrix matrix = Matrix.allocate(type, rows, cols);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                int value = random.nextInt(7) - 3;
+                if (matrix instanceof IntMatrix) {
+                    ((IntMatrix) matrix).data[i * cols + j] = value;
+                } else if (matrix instanceof LongMatrix) {
+                    ((LongMatrix) matrix).data[i * cols + j] = value * 1_000_000_007L;
+                } else if (matrix instanceof FloatMatrix) {
+                    ((FloatMatrix) matrix).data[i * cols + j] = value;
+                } else {
+                    ((DoubleMatrix) matrix).data[i * cols + j] = value;
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private Matrix gaussian(byte type, int rows, int cols) {
+        Matrix matrix = Matrix.allocate(type, rows, cols);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                double value = random.nextGaussian();
+                if (matrix instanceof FloatMatrix) {
+                    ((FloatMatrix) matrix).data[i * cols + j] = (float) value;
+                } else {
+                    ((DoubleMatrix) matrix).data[i * cols + j] = value;
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private void check(Matrix expected, Matrix actual, double tolerance, String what) {
+        checks++;
+        for (int i = 0; i < expected.rows; i++) {
+            for (int j = 0; j < expected.cols; j++) {
+                Number x = expected.element(i, j);
+                Number y = actual.element(i, j);
+                boolean equal = expected instanceof IntMatrix || expected instanceof LongMatrix
+                        ? x.longValue() == y.longValue()
+                        : Math.abs(x.doubleValue() - y.doubleValue()) <= tolerance * Math.max(1, Math.abs(x.doubleValue()));
+                if (!equal) {
+                    failures++;
+                    System.out.println("FAILED: " + what + " at (" + i + ", " + j + "): " + y + " instead of " + x);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static String describe(byte type, int[] shape) {
+        return WireProtocol.elementName(type) + " " + shape[0] + "x" + shape[1] + " * " + shape[1] + "x" + shape[2];
+    }
+}
@@ -1,199 +1,1472 @@
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StrassenMatrixMultiplication implements Runnable {
-    private Socket socket;
+    // Sub-products are forked down to this recursion depth...
+    public static final int DEFAULT_PARALLEL_DEPTH = 3;
+    // ...and never for blocks smaller than this (forking costs more than it saves)
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 64;
+    // Blocks at or below the crossover size go to the tuned leaf kernel instead of recursing
+    public static final int DEFAULT_CROSSOVER = 128;
+    public static final int AUTO_CROSSOVER = 0; // Pass to setCrossover to calibrate at startup
+    private static final int[] CROSSOVER_CANDIDATES = {32, 64, 128, 256};
+    private static final int CALIBRATION_SIZE = 512;
 
-    public StrassenMatrixMultiplication(Socket socket) {
-        this.socket = socket;
+    private static volatile int crossover = DEFAULT_CROSSOVER;
+    // Algorithm forced by setAlgorithm, or ALGORITHM_UNKNOWN to let selectAlgorithm choose
+    private static volatile byte forcedAlgorithm = WireProtocol.ALGORITHM_UNKNOWN;
+    // Faster of Strassen and Winograd on this machine, as calibrated (Winograd until then)
+    private static volatile byte fastAlgorithm = WireProtocol.ALGORITHM_WINOGRAD;
+    private static boolean algorithmCalibrated = false;
+    // An operand with at most this fraction of non-zeros is multiplied in sparse form, unless an
+    // algorithm is forced; -Dstrassen.sparse.density overrides it, 0 turns the sparse path off
+    public static final double DEFAULT_SPARSE_DENSITY = 0.1;
+    private static final double sparseDensity = Double.parseDouble(
+            System.getProperty("strassen.sparse.density", String.valueOf(DEFAULT_SPARSE_DENSITY)));
+
+    // Per-stage timers and counters of the server (see Telemetry)
+    private static final Telemetry.Stage ACCEPT = Telemetry.stage("server", "accept");
+    private static final Telemetry.Stage DESERIALIZE = Telemetry.stage("server", "deserialize");
+    private static final Telemetry.Stage QUEUE_WAIT = Telemetry.stage("server", "queue_wait");
+    private static final Telemetry.Stage PAD = Telemetry.stage("server", "pad");
+    private static final Telemetry.Stage COMPUTE = Telemetry.stage("server", "compute");
+    private static final Telemetry.Stage SERIALIZE = Telemetry.stage("server", "serialize");
+    private static final Telemetry.Counter REQUESTS = Telemetry.counter("server", "requests");
+    private static final Telemetry.Counter ERRORS = Telemetry.counter("server", "errors");
+    private static final Telemetry.Counter EXPIRED = Telemetry.counter("server", "deadline_expired");
+    // Multiplies run per algorithm, indexed by WireProtocol.ALGORITHM_*
+    private static final Telemetry.Counter[] ALGORITHM_RUNS = {null,
+            Telemetry.counter("server", "algorithm_blocked"),
+            Telemetry.counter("server", "algorithm_strassen"),
+            Telemetry.counter("server", "algorithm_winograd"),
+            Telemetry.counter("server", "algorithm_sparse")};
+    private static final AtomicInteger inFlightRequests = new AtomicInteger();
+
+    static {
+        Telemetry.gauge("server", "in_flight", inFlightRequests::get);
+        Telemetry.gauge("server", "pooled_block_bytes", StrassenWorkspace::getPooledBytes);
+    }
+
+    // Dumping every matrix costs more than multiplying it, so it is only done on request
+    private static volatile boolean debug = Boolean.getBoolean("strassen.debug");
+    // Speed-up of a parallel multiply is found by running it again on one thread, which more
+    // than doubles its cost; -Dstrassen.measure.speedup=true turns that on for benchmarking.
+    // Otherwise speed-up and efficiency are reported as not measured (NaN).
+    private static final boolean measureSpeedUp = Boolean.getBoolean("strassen.measure.speedup");
+
+    private SocketChannel socketChannel;
+    private ForkJoinPool computePool;
+    private RequestScheduler scheduler;
+    private ResultCache resultCache;
+    private OperandStore operands;
+    private AdmissionControl admission;
+    private final long acceptedAt = System.nanoTime(); // Created right after accept()
+
+    public StrassenMatrixMultiplication(SocketChannel socketChannel) {
+        this(socketChannel, ForkJoinPool.commonPool());
+    }
+
+    public StrassenMatrixMultiplication(SocketChannel socketChannel, ForkJoinPool computePool) {
+        this(socketChannel, new RequestScheduler(computePool, 0, 1), new ResultCache("server", 0), new OperandStore("server", 0, 0),
+                new AdmissionControl("server", 0, 0));
+    }
+
+    // scheduler, resultCache, operands and admission are shared by all connections of a server
+    public StrassenMatrixMultiplication(SocketChannel socketChannel, RequestScheduler scheduler, ResultCache resultCache,
+                                        OperandStore operands, AdmissionControl admission) {
+        this.socketChannel = socketChannel;
+        this.scheduler = scheduler;
+        this.computePool = scheduler.getComputePool();
+        this.resultCache = resultCache;
+        this.operands = operands;
+        this.admission = admission;
     }
 
     @Override
     public void run() {
-        try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+        ACCEPT.recordSince(acceptedAt); // Time spent waiting for a connection thread
+        try (FrameChannel channel = new FrameChannel(socketChannel)) {
+            // The first bytes tell a binary client from a legacy serialization one
+            if (channel.readPreamble() == WireProtocol.VERSION_LEGACY) {
+                serveLegacy(channel);
+            } else {
+                serveBinary(channel);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // Receive matrices from the client
-            int[][] matrixA = (int[][]) in.readObject();
-            int[][] matrixB = (int[][]) in.readObject();
+    // Binary protocol: reads frames until the peer closes the connection. Each multiply is
+    // decoded here and then handed to the scheduler (batched if small, parallel if large), so
+    // several pipelined requests from one session run at once and each result goes back,
+    // tagged with its request id, as soon as it is ready. Streamed multiplies are assembled tile by tile and computed at their end.
+    // Registered operands are held in the server-wide OperandStore, not per connection.
+    // A multiply is admitted (see AdmissionControl) before its matrices are decoded, or answered
+    // with FRAME_BUSY, and one whose deadline passes while it is queued is dropped unrun.
+    private void serveBinary(FrameChannel channel) throws IOException {
+        Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+        // Streamed multiplies still receiving tiles, only touched by this reader thread
+        Map<Long, IncomingStream> streams = new HashMap<>();
+        Set<Long> rejected = new HashSet<>();
+        // A frame too large for the connection's standing buffer holds its size in admission
+        // while it is read and decoded, so one that does not fit is answered FRAME_BUSY and
+        // skipped instead of being buffered. Tiles belong to a stream admitted as a whole.
+        channel.setFrameAdmission(new FrameChannel.FrameAdmission() {
+            private long reserved = 0;
 
-            // Display input matrices
-            System.out.println("Matrix A:");
-            printMatrix(matrixA);
-            System.out.println("Matrix B:");
-            printMatrix(matrixB);
+            @Override
+            public boolean admit(byte type, long requestId, int frameBytes) {
+                if (frameBytes <= FrameChannel.INITIAL_BUFFER_BYTES || type == WireProtocol.FRAME_TILE
+                        || type == WireProtocol.FRAME_STREAM_END) {
+                    return true;
+                }
+                if (!admission.tryReserve(frameBytes)) {
+                    sendBusy(channel, requestId);
+                    return false;
+                }
+                reserved = frameBytes;
+                return true;
+            }
+
+            @Override
+            public void frameDone() {
+                admission.unreserve(reserved);
+                reserved = 0;
+            }
+        });
+        try {
+            ByteBuffer frame;
+            while ((frame = channel.readFrame()) != null) {
+                long receivedAt = System.nanoTime();
+                byte type = frame.get();
+                long requestId = frame.getLong();
+                long deadline = deadlineOf(frame.getInt(), receivedAt);
+                if (type == WireProtocol.FRAME_PING) {
+                    channel.lockWrites();
+                    try {
+                        channel.beginFrame(WireProtocol.FRAME_PONG, requestId, 0);
+                        channel.send();
+                    } finally {
+                        channel.unlockWrites();
+                    }
+                    continue;
+                }
+                if (type == WireProtocol.FRAME_REGISTER) {
+                    register(channel, requestId, frame);
+                    continue;
+                }
+                if (type == WireProtocol.FRAME_RELEASE) {
+                    if (frame.remaining() < Long.BYTES) {
+                        ERRORS.increment();
+                        sendError(channel, requestId, new IOException("Truncated request: no operand handle"));
+                        continue;
+                    }
+                    operands.release(frame.getLong());
+                    channel.lockWrites();
+                    try {
+                        channel.beginFrame(WireProtocol.FRAME_RELEASE, requestId, 0);
+                        channel.send();
+                    } finally {
+                        channel.unlockWrites();
+                    }
+                    continue;
+                }
+                if (type == WireProtocol.FRAME_STREAM_BEGIN) {
+                    IncomingStream stream;
+                    try {
+                        stream = new IncomingStream(frame, deadline);
+                    } catch (IOException e) {
+                        rejectStream(channel, requestId, e, rejected);
+                        continue;
+                    }
+                    if (!admission.tryAdmit(stream.admittedBytes)) {
+                        rejected.add(requestId);
+                        sendBusy(channel, requestId);
+                        continue;
+                    }
+                    stream.allocate();
+                    streams.put(requestId, stream);
+                    continue;
+                }
+                if (type == WireProtocol.FRAME_TILE || type == WireProtocol.FRAME_STREAM_END) {
+                    if (type == WireProtocol.FRAME_TILE ? rejected.contains(requestId) : rejected.remove(requestId)) {
+                        continue; // Rest of a stream that was already answered with an error
+                    }
+                    IncomingStream stream = type == WireProtocol.FRAME_TILE ? streams.get(requestId) : streams.remove(requestId);
+                    if (stream == null) {
+                        throw new IOException("No open stream with request id " + requestId);
+                    }
+                    if (type == WireProtocol.FRAME_TILE) {
+                        try {
+                            long tileStart = System.nanoTime();
+                            stream.accept(frame);
+                            DESERIALIZE.recordSince(tileStart);
+                        } catch (IOException e) {
+                            streams.remove(requestId);
+                            admission.release(stream.admittedBytes);
+                            rejectStream(channel, requestId, e, rejected);
+                        }
+                    } else {
+                        REQUESTS.increment();
+                        long queuedAt = System.nanoTime();
+                        track(scheduler.submitParallel(() -> {
+                            if (!isExpired(channel, requestId, stream.deadline)) {
+                                computeAndStream(channel, requestId, stream, queuedAt);
+                            }
+                        }), stream.admittedBytes, inFlight);
+                    }
+                    continue;
+                }
+                if (type == WireProtocol.FRAME_MULTIPLY_HANDLE) {
+                    multiplyByHandle(channel, requestId, frame, deadline, inFlight);
+                    continue;
+                }
+                if (type != WireProtocol.FRAME_MULTIPLY) {
+                    throw new IOException("Unexpected frame type: " + type);
+                }
+                // The matrix headers are checked against the frame before anything indexes into it
+                int positionA = frame.position() + Integer.BYTES; // After clientId, only used by the router
+                int positionB;
+                try {
+                    positionB = WireProtocol.matrixEnd(frame, positionA);
+                    if (WireProtocol.matrixEnd(frame, positionB) >= frame.limit()) {
+                        throw new IOException("Truncated multiply request: no accepted encodings");
+                    }
+                } catch (IOException e) {
+                    ERRORS.increment();
+                    sendError(channel, requestId, e);
+                    continue;
+                }
+                frame.position(positionA);
+
+                // A pair seen before is answered straight from the cache, without decoding it
+                ResultCache.Key key = resultCache.keyOf(frame);
+                byte[] cached = resultCache.get(key);
+                if (cached != null) {
+                    channel.lockWrites();
+                    try {
+                        channel.beginFrame(WireProtocol.FRAME_RESULT, requestId, cached.length).put(cached);
+                        channel.send();
+                    } finally {
+                        channel.unlockWrites();
+                    }
+                    continue;
+                }
+
+                // Matrices are copied straight out of the frame into their flat form, at their
+                // own shape and element type
+                long decodeStart = System.nanoTime();
+                byte elementType = WireProtocol.elementTypeAt(frame, positionA);
+                int rows = WireProtocol.rowsAt(frame, positionA);
+                int inner = WireProtocol.colsAt(frame, positionA);
+                int cols = WireProtocol.colsAt(frame, positionB);
+                if (elementType != WireProtocol.elementTypeAt(frame, positionB) || inner != WireProtocol.rowsAt(frame, positionB)) {
+                    ERRORS.increment();
+                    sendError(channel, requestId, new IOException("Cannot multiply " + rows + "x" + inner + " "
+                            + WireProtocol.elementName(elementType) + " by " + WireProtocol.rowsAt(frame, positionB) + "x" + cols
+                            + " " + WireProtocol.elementName(WireProtocol.elementTypeAt(frame, positionB))));
+                    continue;
+                }
+                long admittedBytes = AdmissionControl.multiplyBytes(elementType, rows, inner, cols, true);
+                if (!admission.tryAdmit(admittedBytes)) {
+                    sendBusy(channel, requestId);
+                    continue;
+                }
+                Matrix matrixA, matrixB;
+                try {
+                    matrixA = WireProtocol.getMatrix(frame);
+                    matrixB = WireProtocol.getMatrix(frame);
+                } catch (IOException e) {
+                    admission.release(admittedBytes);
+                    ERRORS.increment();
+                    sendError(channel, requestId, e);
+                    continue;
+                }
+                byte accepted = frame.get(); // Encodings the client takes C in
+                long queuedAt = DESERIALIZE.recordSince(decodeStart);
+                REQUESTS.increment();
+
+                track(scheduler.submit(largestDimension(rows, inner, cols), batched -> {
+                    if (!isExpired(channel, requestId, deadline)) {
+                        computeAndReply(channel, requestId, key, matrixA, matrixB, null, accepted, queuedAt, batched);
+                    }
+                }), admittedBytes, inFlight);
+            }
+        } finally {
+            // Streams the client never finished
+            for (IncomingStream stream : streams.values()) {
+                admission.release(stream.admittedBytes);
+            }
+            // Requests already read still get their replies before the connection is closed
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        }
+    }
+
+    // Decodes and prepares a matrix and answers with the handle it is registered under
+    private void register(FrameChannel channel, long requestId, ByteBuffer frame) {
+        try {
+            long decodeStart = System.nanoTime();
+            if (frame.remaining() < Integer.BYTES + Long.BYTES) {
+                throw new IOException("Truncated register request");
+            }
+            frame.getInt(); // clientId, only used by the router
+            long ttlMillis = frame.getLong();
+            WireProtocol.matrixEnd(frame, frame.position());
+            int rows = WireProtocol.rowsAt(frame, frame.position());
+            int cols = WireProtocol.colsAt(frame, frame.position());
+            if (rows <= 0 || cols <= 0) {
+                throw new IOException("Cannot register an empty matrix: " + rows + "x" + cols);
+            }
+            Matrix matrix = WireProtocol.getMatrix(frame);
+            long prepareStart = DESERIALIZE.recordSince(decodeStart);
+            PreparedOperand operand = new PreparedOperand(matrix);
+            PAD.recordSince(prepareStart);
+            long handle = operands.register(operand, ttlMillis);
+            channel.lockWrites();
+            try {
+                ByteBuffer out = channel.beginFrame(WireProtocol.FRAME_HANDLE, requestId, WireProtocol.HANDLE_BYTES);
+                out.putLong(handle);
+                out.putLong(operands.grantedTtlMillis(ttlMillis));
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        } catch (IOException e) {
+            ERRORS.increment();
+            sendError(channel, requestId, e);
+        }
+    }
+
+    // FRAME_MULTIPLY_HANDLE: A from the frame, B from the operand store. An unknown handle or a
+    // shape mismatch fails only this request.
+    private void multiplyByHandle(FrameChannel channel, long requestId, ByteBuffer frame, long deadline,
+                                  Set<CompletableFuture<Void>> inFlight) throws IOException {
+        long decodeStart = System.nanoTime();
+        int positionA = frame.position() + Integer.BYTES; // After clientId, only used by the router
+        long handle;
+        try {
+            int positionHandle = WireProtocol.matrixEnd(frame, positionA);
+            if (frame.limit() - positionHandle < Long.BYTES + 1) {
+                throw new IOException("Truncated multiply request: no operand handle");
+            }
+            handle = frame.getLong(positionHandle);
+        } catch (IOException e) {
+            ERRORS.increment();
+            sendError(channel, requestId, e);
+            return;
+        }
+        frame.position(positionA);
+        byte elementType = WireProtocol.elementTypeAt(frame, positionA);
+        int rows = WireProtocol.rowsAt(frame, positionA);
+        int inner = WireProtocol.colsAt(frame, positionA);
+        PreparedOperand operandB = operands.get(handle);
+        if (operandB == null || inner != operandB.B.rows || elementType != operandB.B.elementType()) {
+            ERRORS.increment();
+            sendError(channel, requestId, new IOException(operandB == null ? "Unknown or expired operand handle " + handle
+                    : "Cannot multiply " + rows + "x" + inner + " " + WireProtocol.elementName(elementType)
+                    + " by registered " + describe(operandB.B)));
+            return;
+        }
+        int cols = operandB.B.cols;
+        // A and C; B is already held by the operand store
+        long admittedBytes = AdmissionControl.multiplyBytes(elementType, rows, inner, cols, false);
+        if (!admission.tryAdmit(admittedBytes)) {
+            sendBusy(channel, requestId);
+            return;
+        }
+        Matrix matrixA;
+        try {
+            matrixA = WireProtocol.getMatrix(frame);
+        } catch (IOException e) {
+            admission.release(admittedBytes);
+            ERRORS.increment();
+            sendError(channel, requestId, e);
+            return;
+        }
+        frame.getLong(); // handle, read above
+        byte accepted = frame.get();
+        long queuedAt = DESERIALIZE.recordSince(decodeStart);
+        REQUESTS.increment();
+
+        track(scheduler.submit(largestDimension(rows, inner, cols), batched -> {
+            if (!isExpired(channel, requestId, deadline)) {
+                computeAndReply(channel, requestId, null, matrixA, operandB.B, operandB, accepted, queuedAt, batched);
+            }
+        }), admittedBytes, inFlight);
+    }
+
+    // Follows an admitted request until its reply is sent, then gives back its admission
+    private void track(CompletableFuture<Void> task, long admittedBytes, Set<CompletableFuture<Void>> inFlight) {
+        inFlightRequests.incrementAndGet();
+        inFlight.add(task);
+        task.whenComplete((ignored, error) -> {
+            inFlight.remove(task);
+            inFlightRequests.decrementAndGet();
+            admission.release(admittedBytes);
+        });
+    }
+
+    // When a request with budgetMillis left on arrival has to be answered by (0 for never)
+    private static long deadlineOf(int budgetMillis, long receivedAt) {
+        return budgetMillis > 0 ? receivedAt + TimeUnit.MILLISECONDS.toNanos(budgetMillis) : 0;
+    }
+
+    // Checked when a request leaves its queue: if its client has already given up on it, it
+    // gets an error instead of being computed for nobody
+    private static boolean isExpired(FrameChannel channel, long requestId, long deadline) {
+        if (deadline == 0 || System.nanoTime() - deadline < 0) {
+            return false;
+        }
+        EXPIRED.increment();
+        sendError(channel, requestId, new IOException("Deadline exceeded"));
+        return true;
+    }
 
+    // preparedB, if given, is matrixB with its sums already formed. A batched request runs on
+    // this thread alone and writes into the thread's reusable result block. The result goes
+    // back in the smallest of the accepted encodings this server also sends.
+    private void computeAndReply(FrameChannel channel, long requestId, ResultCache.Key key, Matrix matrixA, Matrix matrixB,
+                                 PreparedOperand preparedB, byte accepted, long queuedAt, boolean batched) {
+        QUEUE_WAIT.recordSince(queuedAt);
+        try {
+            if (debug) {
+                // Display input matrices
+                System.out.println("Matrix A:");
+                printMatrix(matrixA);
+                System.out.println("Matrix B:");
+                printMatrix(matrixB);
+            }
 
             // Measure parallel execution time
+            int rows = matrixA.rows, cols = matrixB.cols;
+            Matrix result = batched ? StrassenWorkspace.current().output(matrixA.elementType(), rows, cols)
+                    : matrixA.like(rows, cols);
             long startTime = System.nanoTime();
-            int[][] result = multiply(matrixA, matrixB); // Perform matrix multiplication
-            long endTime = System.nanoTime();
+            byte algorithm;
+            if (batched) {
+                algorithm = multiplySequential(matrixA, matrixB, result);
+            } else if (preparedB != null) {
+                algorithm = multiply(matrixA, preparedB, result, computePool, DEFAULT_PARALLEL_DEPTH, DEFAULT_PARALLEL_THRESHOLD);
+            } else {
+                algorithm = multiply(matrixA, matrixB, result, computePool, DEFAULT_PARALLEL_DEPTH, DEFAULT_PARALLEL_THRESHOLD);
+            }
+            long parallelExecutionTime = System.nanoTime() - startTime;
+            COMPUTE.record(parallelExecutionTime);
+            ALGORITHM_RUNS[algorithm].increment();
+
+            double speedUp = speedUp(matrixA, matrixB, algorithm, parallelExecutionTime, batched);
+            double efficiency = speedUp / (batched ? 1 : computePool.getParallelism());
+
+            if (debug) {
+                // Display result matrix
+                System.out.println("Resultant Matrix:");
+                printMatrix(result);
+            }
+
+            // Send result and metrics back to the client
+            long serializeStart = System.nanoTime();
+            MatrixCodec.Encoded encoded = MatrixCodec.encode(result, accepted & MatrixCodec.localEncodings());
+            channel.lockWrites();
+            try {
+                ByteBuffer out = channel.beginFrame(WireProtocol.FRAME_RESULT, requestId,
+                        encoded.bytes() + WireProtocol.RESULT_TRAILER_BYTES);
+                encoded.writeTo(out);
+                out.putLong(parallelExecutionTime);
+                out.putDouble(speedUp);
+                out.putDouble(efficiency);
+                out.put(algorithm);
+                resultCache.put(key, out.duplicate().flip());
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+            SERIALIZE.recordSince(serializeStart);
+        } catch (RuntimeException | IOException e) {
+            e.printStackTrace();
+            ERRORS.increment();
+            sendError(channel, requestId, e);
+        }
+    }
+
+    // A bad stream only fails its own request; its remaining tiles are skipped until its end
+    private static void rejectStream(FrameChannel channel, long requestId, IOException error, Set<Long> rejected) {
+        System.out.println("Rejected stream " + requestId + ": " + error.getMessage());
+        rejected.add(requestId);
+        sendError(channel, requestId, error);
+    }
+
+    // Streamed multiply: C goes back tile by tile as each block is finished, so the first
+    // tiles are on the wire while the last products are still being computed
+    private void computeAndStream(FrameChannel channel, long requestId, IncomingStream stream, long queuedAt) {
+        QUEUE_WAIT.recordSince(queuedAt);
+        try {
+            Matrix result = stream.A.like(stream.rows, stream.cols);
+            long startTime = System.nanoTime();
+            byte algorithm = multiplyStreaming(stream.A, stream.B, result, computePool,
+                    (rowOffset, colOffset, rows, cols) -> sendTiles(channel, requestId, result, rowOffset, colOffset, rows, cols, stream));
+            // Includes sending the finished blocks, which overlaps with computing the rest
+            long parallelExecutionTime = System.nanoTime() - startTime;
+            COMPUTE.record(parallelExecutionTime);
+            ALGORITHM_RUNS[algorithm].increment();
+
+            // Speed-up is not measured: rerunning a matrix this large sequentially would double its cost
+            channel.lockWrites();
+            try {
+                ByteBuffer out = channel.beginFrame(WireProtocol.FRAME_STREAM_END, requestId, WireProtocol.RESULT_TRAILER_BYTES);
+                out.putLong(parallelExecutionTime);
+                out.putDouble(Double.NaN);
+                out.putDouble(Double.NaN);
+                out.put(algorithm);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        } catch (RuntimeException | IOException e) {
+            e.printStackTrace();
+            ERRORS.increment();
+            sendError(channel, requestId, e);
+        }
+    }
+
+    // Sends a finished block of C, cut into tiles of the size the client asked for
+    private static void sendTiles(FrameChannel channel, long requestId, Matrix result, int rowOffset, int colOffset,
+                                  int rows, int cols, IncomingStream stream) throws IOException {
+        int rowEnd = rowOffset + rows;
+        int colEnd = colOffset + cols;
+        for (int i = rowOffset; i < rowEnd; i += stream.tileSize) {
+            for (int j = colOffset; j < colEnd; j += stream.tileSize) {
+                int tileRows = Math.min(stream.tileSize, rowEnd - i);
+                int tileCols = Math.min(stream.tileSize, colEnd - j);
+                channel.lockWrites();
+                try {
+                    ByteBuffer out = channel.beginFrame(WireProtocol.FRAME_TILE, requestId, WireProtocol.tileBytes(result.elementType(), tileRows, tileCols));
+                    WireProtocol.putTile(out, WireProtocol.OPERAND_C, result, i, j, tileRows, tileCols);
+                    channel.send();
+                } finally {
+                    channel.unlockWrites();
+                }
+            }
+        }
+    }
+
+    // Operands of a streamed multiply, allocated when the stream opens so each tile is copied
+    // straight into its final place as it arrives
+    private static class IncomingStream {
+        final int rows, inner, cols, tileSize;
+        final byte elementType;
+        final long deadline;
+        final long admittedBytes;
+        Matrix A, B;
+
+        IncomingStream(ByteBuffer begin, long deadline) throws IOException {
+            this.deadline = deadline;
+            begin.getInt(); // clientId, only used by the router
+            rows = begin.getInt();
+            inner = begin.getInt();
+            int rowsB = begin.getInt();
+            cols = begin.getInt();
+            tileSize = begin.getInt();
+            elementType = begin.get();
+            if (rows <= 0 || inner <= 0 || cols <= 0 || inner != rowsB || tileSize <= 0
+                    || WireProtocol.elementBytes(elementType) == 0) {
+                throw new IOException("Invalid stream: " + rows + "x" + inner + " * " + rowsB + "x" + cols
+                        + " " + WireProtocol.elementName(elementType) + " in tiles of " + tileSize);
+            }
+            admittedBytes = AdmissionControl.multiplyBytes(elementType, rows, inner, cols, true);
+        }
+
+        // Once the stream is admitted
+        void allocate() {
+            A = Matrix.allocate(elementType, rows, inner);
+            B = Matrix.allocate(elementType, inner, cols);
+        }
+
+        void accept(ByteBuffer tile) throws IOException {
+            byte operand = tile.get(tile.position());
+            if (operand == WireProtocol.OPERAND_A) {
+                WireProtocol.getTile(tile, A, rows, inner);
+            } else if (operand == WireProtocol.OPERAND_B) {
+                WireProtocol.getTile(tile, B, inner, cols);
+            } else {
+                throw new IOException("Unexpected tile operand: " + operand);
+            }
+        }
+    }
 
-            long parallelExecutionTime = endTime - startTime;
+    private static void sendError(FrameChannel channel, long requestId, Exception error) {
+        sendMessage(channel, WireProtocol.FRAME_ERROR, requestId, String.valueOf(error.getMessage()));
+    }
+
+    // Turns a request away before any work is done on it, so the client may retry it later
+    private static void sendBusy(FrameChannel channel, long requestId) {
+        sendMessage(channel, WireProtocol.FRAME_BUSY, requestId, "Server is at its request limit");
+    }
+
+    private static void sendMessage(FrameChannel channel, byte type, long requestId, String text) {
+        byte[] message = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            channel.lockWrites();
+            try {
+                channel.beginFrame(type, requestId, message.length).put(message);
+                channel.send();
+            } finally {
+                channel.unlockWrites();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // Connection is gone, nobody to tell
+        }
+    }
 
-            // Measure sequential execution time for speed-up calculation
-            long sequentialExecutionTime = sequentialMultiplyTime(matrixA, matrixB);
-            double speedUp = (double) sequentialExecutionTime / parallelExecutionTime;
-            double efficiency = speedUp / Runtime.getRuntime().availableProcessors();
+    // Legacy protocol: one pair of serialized int[][] in, one result out. The multiply goes
+    // through the scheduler like a binary one, so this connection thread only does I/O.
+    private void serveLegacy(FrameChannel channel) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(channel.legacyInputStream());
+        ObjectOutputStream out = new ObjectOutputStream(channel.legacyOutputStream());
 
+        // Receive matrices from the client
+        long decodeStart = System.nanoTime();
+        int[][] matrixA = (int[][]) in.readObject();
+        int[][] matrixB = (int[][]) in.readObject();
+        long queuedAt = DESERIALIZE.recordSince(decodeStart);
+        REQUESTS.increment();
 
+        if (debug) {
+            // Display input matrices
+            System.out.println("Matrix A:");
+            printMatrix(matrixA);
+            System.out.println("Matrix B:");
+            printMatrix(matrixB);
+        }
+
+        int size = largestDimension(matrixA.length, matrixA[0].length, matrixB[0].length);
+        Result[] computed = new Result[1];
+        scheduler.submit(size, batched -> computed[0] = computeLegacy(matrixA, matrixB, queuedAt, batched)).join();
+        int[][] result = computed[0].matrix;
+        Metrics metrics = computed[0].metrics;
+
+        if (debug) {
             // Display result matrix
             System.out.println("Resultant Matrix:");
             printMatrix(result);
+        }
 
-            // Send result and metrics back to the client
-            out.writeObject(result);
-            out.writeLong(parallelExecutionTime);
-            out.writeDouble(speedUp);
-            out.writeDouble(efficiency);
+        // Send result and metrics back to the client
+        long serializeStart = System.nanoTime();
+        out.writeObject(result);
+        out.writeLong(metrics.executionTime);
+        out.writeDouble(metrics.speedUp);
+        out.writeDouble(metrics.efficiency);
+        out.flush();
+        SERIALIZE.recordSince(serializeStart);
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+    private Result computeLegacy(int[][] matrixA, int[][] matrixB, long queuedAt, boolean batched) {
+        // Nothing is padded any more; the pad stage is just the copy into flat form
+        long copyStart = QUEUE_WAIT.recordSince(queuedAt);
+        IntMatrix flatA = IntMatrix.fromArray(matrixA);
+        IntMatrix flatB = IntMatrix.fromArray(matrixB);
+        PAD.recordSince(copyStart);
+
+        // Measure parallel execution time
+        int rows = flatA.rows, cols = flatB.cols;
+        Matrix flatResult = batched ? StrassenWorkspace.current().output(WireProtocol.ELEMENT_INT32, rows, cols) : new IntMatrix(rows, cols);
+        long startTime = System.nanoTime();
+        byte algorithm;
+        if (batched) {
+            algorithm = multiplySequential(flatA, flatB, flatResult);
+        } else {
+            algorithm = multiply(flatA, flatB, flatResult, computePool, DEFAULT_PARALLEL_DEPTH, DEFAULT_PARALLEL_THRESHOLD);
         }
+        long endTime = System.nanoTime();
+
+        long parallelExecutionTime = endTime - startTime;
+        COMPUTE.record(parallelExecutionTime);
+        ALGORITHM_RUNS[algorithm].increment();
+
+        double speedUp = speedUp(flatA, flatB, algorithm, parallelExecutionTime, batched);
+        double efficiency = speedUp / (batched ? 1 : computePool.getParallelism());
+        // The reply only sends Result.matrix, a copy, so the reused block may back the product
+        return new Result(0, flatResult, new Metrics(parallelExecutionTime, speedUp, efficiency, algorithm));
     }
 
     // Strassen's matrix multiplication implementation
     public static int[][] multiply(int[][] A, int[][] B) {
-        // Find the maximum dimension
-        int maxDim = Math.max(Math.max(A.length, A[0].length), Math.max(B.length, B[0].length));
-        int newSize = 1;
-        while (newSize < maxDim) newSize *= 2; // Find the nearest power of 2
+        return multiply(A, B, ForkJoinPool.commonPool());
+    }
 
-        // Pad matrices to the new size
-        int[][] paddedA = padMatrix(A, newSize);
-        int[][] paddedB = padMatrix(B, newSize);
+    public static int[][] multiply(int[][] A, int[][] B, ForkJoinPool pool) {
+        return multiply(A, B, pool, DEFAULT_PARALLEL_DEPTH, DEFAULT_PARALLEL_THRESHOLD);
+    }
 
-        // Perform Strassen multiplication
-        int[][] paddedResult = multiplyRecursive(paddedA, paddedB);
+    // Compatibility adapter: copies the jagged inputs into flat matrices, runs the flat engine
+    // and copies the result back out
+    public static int[][] multiply(int[][] A, int[][] B, ForkJoinPool pool, int maxDepth, int threshold) {
+        IntMatrix result = new IntMatrix(A.length, B[0].length);
+        multiply(IntMatrix.fromArray(A), IntMatrix.fromArray(B), result, pool, maxDepth, threshold);
+        return result.toArray();
+    }
 
-        // Unpad the result to the original size
-        return unpadMatrix(paddedResult, A.length, B[0].length);
+    // Parallel multiply on flat matrices of any shape and element type: C (A.rows x B.cols) =
+    // A * B, with the algorithm selectAlgorithm picks for the shape and the pool, which is
+    // returned. Nothing is padded. A roughly square product takes a Strassen or Winograd step
+    // on its even-sized part and peels an odd last row, column or inner index off to the leaf
+    // kernel; an elongated one is first halved along its longest dimension, so the work follows
+    // the real dimensions. The seven sub-products of the top maxDepth levels are forked on the
+    // pool, anything deeper or smaller than threshold runs sequentially on the worker's arena
+    // An operand that is mostly zeros is instead multiplied in sparse form (see multiplySparse).
+    public static byte multiply(Matrix A, Matrix B, Matrix C, ForkJoinPool pool, int maxDepth, int threshold) {
+        if (forcedAlgorithm == WireProtocol.ALGORITHM_UNKNOWN && multiplySparse(A, B, C, pool, sparseDensity)) {
+            return WireProtocol.ALGORITHM_SPARSE;
+        }
+        byte algorithm = selectAlgorithm(A.rows, A.cols, B.cols, pool.getParallelism());
+        multiply(A, B, C, pool, maxDepth, threshold, algorithm);
+        return algorithm;
     }
 
-    private static int[][] multiplyRecursive(int[][] A, int[][] B) {
-        int n = A.length;
-        if (n <= 2) {
-            return standardMultiply(A, B); // Base case
+    public static void multiply(Matrix A, Matrix B, Matrix C, ForkJoinPool pool, int maxDepth, int threshold, byte algorithm) {
+        if (algorithm == WireProtocol.ALGORITHM_SPARSE) {
+            multiplySparse(A, B, C, pool, 1);
+            return;
         }
+        checkShapes(A, B, C);
+        pool.invoke(new StrassenTask(A, B, C, maxDepth, threshold, leafSize(algorithm), algorithm));
+    }
 
-        int newSize = n / 2;
-        int[][] A11 = new int[newSize][newSize];
-        int[][] A12 = new int[newSize][newSize];
-        int[][] A21 = new int[newSize][newSize];
-        int[][] A22 = new int[newSize][newSize];
-        int[][] B11 = new int[newSize][newSize];
-        int[][] B12 = new int[newSize][newSize];
-        int[][] B21 = new int[newSize][newSize];
-        int[][] B22 = new int[newSize][newSize];
+    // Same against a registered operand, whose top-level sums are reused wherever the recursion
+    // takes its Strassen step on the whole of B. The sums are Strassen's, so a product that
+    // would be given Winograd runs Strassen instead.
+    public static byte multiply(Matrix A, PreparedOperand B, Matrix C, ForkJoinPool pool, int maxDepth, int threshold) {
+        checkShapes(A, B.B, C);
+        if (forcedAlgorithm == WireProtocol.ALGORITHM_UNKNOWN && multiplySparse(A, B.B, C, pool, sparseDensity)) {
+            return WireProtocol.ALGORITHM_SPARSE;
+        }
+        byte algorithm = selectAlgorithm(A.rows, A.cols, B.B.cols, pool.getParallelism());
+        if (algorithm == WireProtocol.ALGORITHM_WINOGRAD) {
+            algorithm = WireProtocol.ALGORITHM_STRASSEN;
+        }
+        pool.invoke(new StrassenTask(A, B.B, C, maxDepth, threshold, leafSize(algorithm), algorithm, B));
+        return algorithm;
+    }
 
-        splitMatrix(A, A11, A12, A21, A22);
-        splitMatrix(B, B11, B12, B21, B22);
+    // Which algorithm an m x k by k x n product gets on `parallelism` workers, unless one is
+    // forced with setAlgorithm. Products too thin for a single fast step go to the blocked
+    // kernel. Otherwise each fast level saves 1/8 of the multiplications but only forks 7
+    // products (times the blocks an elongated shape is split into), while the blocked kernel
+    // splits across any number of workers: with more workers than the fast algorithm keeps
+    // busy, blocked can finish first. Between Strassen and Winograd the calibrated one wins.
+    public static byte selectAlgorithm(int m, int k, int n, int parallelism) {
+        byte forced = forcedAlgorithm;
+        if (forced != WireProtocol.ALGORITHM_UNKNOWN) {
+            return forced;
+        }
+        int leaf = crossover;
+        if (plan(m, k, n, leaf) == KERNEL) {
+            return WireProtocol.ALGORITHM_BLOCKED;
+        }
+        int shortest = Math.min(m, Math.min(k, n));
+        int levels = 0;
+        for (int size = shortest; size > leaf; size /= 2) {
+            levels++;
+        }
+        double tasks = Math.pow(7, Math.min(levels, DEFAULT_PARALLEL_DEPTH))
+                * ((double) m / shortest) * ((double) n / shortest);
+        double fastTime = Math.pow(7.0 / 8, levels) / Math.min(tasks, parallelism);
+        return fastTime < 1.0 / parallelism ? fastAlgorithm : WireProtocol.ALGORITHM_BLOCKED;
+    }
 
-        int[][] M1 = multiplyRecursive(add(A11, A22), add(B11, B22));
-        int[][] M2 = multiplyRecursive(add(A21, A22), B11);
-        int[][] M3 = multiplyRecursive(A11, subtract(B12, B22));
-        int[][] M4 = multiplyRecursive(A22, subtract(B21, B11));
-        int[][] M5 = multiplyRecursive(add(A11, A12), B22);
-        int[][] M6 = multiplyRecursive(subtract(A21, A11), add(B11, B12));
-        int[][] M7 = multiplyRecursive(subtract(A12, A22), add(B21, B22));
+    // Multiplies through A, or failing that B, in CSR form if it has at most maxDensity
+    // non-zeros: the work then follows the non-zeros instead of the dimensions. Rows of C are
+    // spread over pool (null for this thread). False, with C untouched, if neither is that sparse.
+    static boolean multiplySparse(Matrix A, Matrix B, Matrix C, ForkJoinPool pool, double maxDensity) {
+        checkShapes(A, B, C);
+        SparseMatrix sparseA = SparseMatrix.of(A, maxDensity);
+        if (sparseA != null) {
+            sparseA.multiply(B, C, pool);
+            return true;
+        }
+        SparseMatrix sparseB = SparseMatrix.of(B, maxDensity);
+        if (sparseB != null) {
+            sparseB.multiplyLeft(A, C, pool);
+            return true;
+        }
+        return false;
+    }
 
-        int[][] C11 = add(subtract(add(M1, M4), M5), M7);
-        int[][] C12 = add(M3, M5);
-        int[][] C21 = add(M2, M4);
-        int[][] C22 = add(subtract(add(M1, M3), M2), M6);
+    // Leaf size the recursion runs an algorithm with; blocked never takes a fast step
+    private static int leafSize(byte algorithm) {
+        return algorithm == WireProtocol.ALGORITHM_BLOCKED ? Integer.MAX_VALUE : crossover;
+    }
 
-        return combine(C11, C12, C21, C22);
+    private static void checkShapes(Matrix A, Matrix B, Matrix C) {
+        if (A.cols != B.rows || C.rows != A.rows || C.cols != B.cols
+                || A.elementType() != B.elementType() || C.elementType() != A.elementType()) {
+            throw new IllegalArgumentException("Cannot multiply " + describe(A) + " by " + describe(B) + " into " + describe(C));
+        }
     }
 
+    public static String describe(Matrix matrix) {
+        return matrix.rows + "x" + matrix.cols + " " + WireProtocol.elementName(matrix.elementType());
+    }
 
-    // Helper methods to split, add, subtract, and combine matrices
-    // Splits a matrix into four submatrices: P11, P12, P21, P22
-    private static void splitMatrix(int[][] P, int[][] P11, int[][] P12, int[][] P21, int[][] P22) {
-        int newSize = P11.length;
-        for (int i = 0; i < newSize; i++) {
-            for (int j = 0; j < newSize; j++) {
-                P11[i][j] = P[i][j];                        // Top-left
-                P12[i][j] = P[i][j + newSize];              // Top-right
-                P21[i][j] = P[i + newSize][j];              // Bottom-left
-                P22[i][j] = P[i + newSize][j + newSize];    // Bottom-right
-            }
+    // Out-of-core multiply on memory-mapped matrices of any shape: C (A.rows x B.cols) = A * B.
+    // Operands are padded virtually and blocks too large for the heap spill to mapped scratch.
+    public static void multiply(MappedMatrix A, MappedMatrix B, MappedMatrix C, ForkJoinPool pool) throws IOException {
+        OutOfCoreStrassen.multiply(A, B, C, pool, OutOfCoreStrassen.defaultInCoreSize());
+    }
+
+    // Notified each time a block of C is final, so it can be sent on before the rest
+    public interface BlockListener {
+        void blockReady(int rowOffset, int colOffset, int rows, int cols) throws IOException;
+    }
+
+    // Like multiply(Matrix...), but the top level computes the seven products one at a time
+    // (each still parallel inside) in an order that finishes C12, C21, C11, C22 in turn,
+    // reporting each quadrant as soon as no later product contributes to it. The last column
+    // and row of an odd-sized C are peeled off and reported after the quadrants.
+    // Returns the algorithm of the top level.
+    public static byte multiplyStreaming(Matrix A, Matrix B, Matrix C, ForkJoinPool pool, BlockListener listener) throws IOException {
+        checkShapes(A, B, C);
+        int m = A.rows, k = A.cols, n = B.cols;
+        if (plan(m, k, n, crossover) != STRASSEN) {
+            byte algorithm = multiply(A, B, C, pool, DEFAULT_PARALLEL_DEPTH, DEFAULT_PARALLEL_THRESHOLD);
+            listener.blockReady(0, 0, m, n);
+            return algorithm;
         }
+
+        // Quadrants of the even-sized part
+        int h = m / 2, kh = k / 2, w = n / 2;
+        int depth = DEFAULT_PARALLEL_DEPTH - 1;
+        Matrix Ae = A.view(0, 0, 2 * h, 2 * kh), Be = B.view(0, 0, 2 * kh, 2 * w), Ce = C.view(0, 0, 2 * h, 2 * w);
+        Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+        Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+        Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+        Matrix S = A.like(h, kh);
+        Matrix T = B.like(kh, w);
+        Matrix P = C.like(h, w);
+
+        // M3 = A11(B12 - B22) -> C12, C22
+        T.subtract(B12, B22);
+        multiply(A11, T, C12, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C22.copyFrom(C12);
+        // M5 = (A11 + A12)B22 -> C12, -C11
+        S.add(A11, A12);
+        multiply(S, B22, P, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C12.addInPlace(P);
+        C11.clear();
+        C11.subtractInPlace(P);
+        peelInner(A, B, C, 0, w, h, w);
+        listener.blockReady(0, w, h, w);
+        // M2 = (A21 + A22)B11 -> C21, -C22
+        S.add(A21, A22);
+        multiply(S, B11, C21, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C22.subtractInPlace(C21);
+        // M4 = A22(B21 - B11) -> C21, C11
+        T.subtract(B21, B11);
+        multiply(A22, T, P, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C21.addInPlace(P);
+        C11.addInPlace(P);
+        peelInner(A, B, C, h, 0, h, w);
+        listener.blockReady(h, 0, h, w);
+        // M1 = (A11 + A22)(B11 + B22) -> C11, C22
+        S.add(A11, A22);
+        T.add(B11, B22);
+        multiply(S, T, P, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C11.addInPlace(P);
+        C22.addInPlace(P);
+        // M7 = (A12 - A22)(B21 + B22) -> C11
+        S.subtract(A12, A22);
+        T.add(B21, B22);
+        multiply(S, T, P, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C11.addInPlace(P);
+        peelInner(A, B, C, 0, 0, h, w);
+        listener.blockReady(0, 0, h, w);
+        // M6 = (A21 - A11)(B11 + B12) -> C22
+        S.subtract(A21, A11);
+        T.add(B11, B12);
+        multiply(S, T, P, pool, depth, DEFAULT_PARALLEL_THRESHOLD);
+        C22.addInPlace(P);
+        peelInner(A, B, C, h, w, h, w);
+        listener.blockReady(h, w, h, w);
+
+        if (n > 2 * w) {
+            MatrixKernel.multiply(A, B.view(0, 2 * w, k, 1), C.view(0, 2 * w, m, 1));
+            listener.blockReady(0, 2 * w, m, 1);
+        }
+        if (m > 2 * h) {
+            MatrixKernel.multiply(A.view(2 * h, 0, 1, k), B.view(0, 0, k, 2 * w), C.view(2 * h, 0, 1, 2 * w));
+            listener.blockReady(2 * h, 0, 1, 2 * w);
+        }
+        return WireProtocol.ALGORITHM_STRASSEN;
+    }
+
+    // Enables dumping every input and result matrix to stdout
+    public static void setDebug(boolean enabled) {
+        debug = enabled;
     }
 
-    // Adds two matrices A and B
-    private static int[][] add(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] result = new int[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                result[i][j] = A[i][j] + B[i][j];
+    // Largest dimension the parallel multiply runs on a single thread without forking
+    public static int sequentialCutoff() {
+        return Math.max(DEFAULT_PARALLEL_THRESHOLD, crossover);
+    }
+
+    public static int getCrossover() {
+        return crossover;
+    }
+
+    // Sets the leaf crossover used by subsequent multiplies; AUTO_CROSSOVER calibrates it
+    public static void setCrossover(int size) {
+        crossover = size == AUTO_CROSSOVER ? calibrateCrossover() : size;
+    }
+
+    // Times a short sequential multiply at each candidate crossover and returns the fastest
+    public static int calibrateCrossover() {
+        Random random = new Random(42);
+        IntMatrix A = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        IntMatrix B = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        IntMatrix C = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        for (int i = 0; i < A.data.length; i++) {
+            A.data[i] = random.nextInt(10);
+            B.data[i] = random.nextInt(10);
+        }
+
+        StrassenWorkspace workspace = StrassenWorkspace.current();
+        int best = DEFAULT_CROSSOVER;
+        long bestTime = Long.MAX_VALUE;
+        for (int candidate : CROSSOVER_CANDIDATES) {
+            long time = Long.MAX_VALUE;
+            for (int run = 0; run < 2; run++) { // First run doubles as warm-up
+                long startTime = System.nanoTime();
+                workspace.prepare();
+                multiplyRecursive(A, B, C, workspace, candidate, fastAlgorithm);
+                time = Math.min(time, System.nanoTime() - startTime);
+            }
+            if (time < bestTime) {
+                bestTime = time;
+                best = candidate;
             }
         }
-        return result;
+        System.out.println("Calibrated Strassen crossover: " + best);
+        return best;
+    }
+
+    public static byte getAlgorithm() {
+        return forcedAlgorithm;
     }
 
-    // Subtracts matrix B from matrix A
-    private static int[][] subtract(int[][] A, int[][] B) {
-        int n = A.length;
-        int[][] result = new int[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                result[i][j] = A[i][j] - B[i][j];
+    // Sets the algorithm of subsequent multiplies by name ("blocked", "strassen" or "winograd"),
+    // or "auto" to have selectAlgorithm choose, after timing Strassen against Winograd (once
+    // per process; servers sharing one calibrate only once)
+    public static synchronized void setAlgorithm(String name) {
+        if (name.equals("auto")) {
+            forcedAlgorithm = WireProtocol.ALGORITHM_UNKNOWN;
+            if (!algorithmCalibrated) {
+                fastAlgorithm = calibrateAlgorithm();
+                algorithmCalibrated = true;
+            }
+            return;
+        }
+        for (byte algorithm = WireProtocol.ALGORITHM_BLOCKED; algorithm <= WireProtocol.ALGORITHM_WINOGRAD; algorithm++) {
+            if (WireProtocol.algorithmName(algorithm).equals(name)) {
+                forcedAlgorithm = algorithm;
+                return;
             }
         }
-        return result;
+        throw new IllegalArgumentException("Unknown algorithm: " + name);
     }
 
-    // Combines four submatrices into one matrix
-    private static int[][] combine(int[][] C11, int[][] C12, int[][] C21, int[][] C22) {
-        int newSize = C11.length;
-        int[][] result = new int[newSize * 2][newSize * 2];
-        for (int i = 0; i < newSize; i++) {
-            for (int j = 0; j < newSize; j++) {
-                result[i][j] = C11[i][j];                  // Top-left
-                result[i][j + newSize] = C12[i][j];        // Top-right
-                result[i + newSize][j] = C21[i][j];        // Bottom-left
-                result[i + newSize][j + newSize] = C22[i][j];  // Bottom-right
+    // Times a short sequential multiply with Strassen and with Winograd at the current
+    // crossover and returns the faster
+    public static byte calibrateAlgorithm() {
+        Random random = new Random(42);
+        IntMatrix A = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        IntMatrix B = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        IntMatrix C = new IntMatrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        for (int i = 0; i < A.data.length; i++) {
+            A.data[i] = random.nextInt(10);
+            B.data[i] = random.nextInt(10);
+        }
+
+        StrassenWorkspace workspace = StrassenWorkspace.current();
+        byte[] candidates = {WireProtocol.ALGORITHM_WINOGRAD, WireProtocol.ALGORITHM_STRASSEN};
+        long[] times = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int run = 0; run < 3; run++) { // First run doubles as warm-up; alternate to even out noise
+            for (int i = 0; i < candidates.length; i++) {
+                long startTime = System.nanoTime();
+                workspace.prepare();
+                multiplyRecursive(A, B, C, workspace, crossover, candidates[i]);
+                times[i] = Math.min(times[i], System.nanoTime() - startTime);
             }
         }
-        return result;
+        byte best = times[0] <= times[1] ? candidates[0] : candidates[1];
+        System.out.println("Calibrated fast algorithm: " + WireProtocol.algorithmName(best)
+                + String.format(Locale.ROOT, " (winograd %.1f ms, strassen %.1f ms)", times[0] / 1e6, times[1] / 1e6));
+        return best;
     }
 
+    // Single-threaded Strassen, used as the baseline for speed-up
+    public static int[][] multiplySequential(int[][] A, int[][] B) {
+        IntMatrix result = new IntMatrix(A.length, B[0].length);
+        multiplySequential(IntMatrix.fromArray(A), IntMatrix.fromArray(B), result);
+        return result.toArray();
+    }
 
-    // Standard matrix multiplication for base case
-    private static int[][] standardMultiply(int[][] A, int[][] B) {
-        int[][] result = new int[A.length][B[0].length];
-        for (int i = 0; i < A.length; i++) {
-            for (int j = 0; j < B[0].length; j++) {
-                for (int k = 0; k < A[0].length; k++) {
-                    result[i][j] += A[i][k] * B[k][j];
-                }
-            }
+    // Returns the algorithm selectAlgorithm picked for one worker, or sparse
+    public static byte multiplySequential(Matrix A, Matrix B, Matrix C) {
+        if (forcedAlgorithm == WireProtocol.ALGORITHM_UNKNOWN && multiplySparse(A, B, C, null, sparseDensity)) {
+            return WireProtocol.ALGORITHM_SPARSE;
         }
-        return result;
+        byte algorithm = selectAlgorithm(A.rows, A.cols, B.cols, 1);
+        multiplySequential(A, B, C, algorithm);
+        return algorithm;
     }
 
-    // Method to measure sequential execution time
-    private long sequentialMultiplyTime(int[][] A, int[][] B) {
-        long startTime = System.nanoTime();
-        standardMultiply(A, B);
-        return System.nanoTime() - startTime;
+    public static void multiplySequential(Matrix A, Matrix B, Matrix C, byte algorithm) {
+        if (algorithm == WireProtocol.ALGORITHM_SPARSE) {
+            multiplySparse(A, B, C, null, 1);
+            return;
+        }
+        checkShapes(A, B, C);
+        StrassenWorkspace workspace = StrassenWorkspace.current();
+        workspace.prepare();
+        multiplyRecursive(A, B, C, workspace, leafSize(algorithm), algorithm);
+    }
+
+    // Largest dimension of an m x k by k x n product, which decides its scheduling lane
+    static int largestDimension(int m, int k, int n) {
+        return Math.max(m, Math.max(k, n));
+    }
+
+    // How the recursion takes apart an m x k by k x n product
+    static final int KERNEL = 0, SPLIT_ROWS = 1, SPLIT_COLS = 2, SPLIT_INNER = 3, STRASSEN = 4;
+
+    // Thin products (a dimension at or below the leaf size) go to the kernel, elongated ones
+    // (longest dimension at least twice the shortest) are halved along the longest, and the
+    // rest take a Strassen step, whose sub-products are close to square again
+    static int plan(int m, int k, int n, int leafSize) {
+        if (m <= leafSize || k <= leafSize || n <= leafSize) {
+            return KERNEL;
+        }
+        int longest = largestDimension(m, k, n);
+        if (longest >= 2 * Math.min(m, Math.min(k, n))) {
+            return longest == m ? SPLIT_ROWS : longest == n ? SPLIT_COLS : SPLIT_INNER;
+        }
+        return STRASSEN;
+    }
+
+    // Adds to C = A * B what a Strassen step on the even-sized parts leaves out: the last inner
+    // index if k is odd, then the last column and row if n or m is odd. Each is a thin product
+    // for the kernel, O(n^2) against the step's O(n^2.8).
+    static void peel(Matrix A, Matrix B, Matrix C) {
+        int m = A.rows, k = A.cols, n = B.cols;
+        int evenRows = m & ~1, evenCols = n & ~1;
+        peelInner(A, B, C, 0, 0, evenRows, evenCols);
+        if (evenCols < n) {
+            MatrixKernel.multiply(A, B.view(0, evenCols, k, 1), C.view(0, evenCols, m, 1));
+        }
+        if (evenRows < m) {
+            MatrixKernel.multiply(A.view(evenRows, 0, 1, k), B.view(0, 0, k, evenCols), C.view(evenRows, 0, 1, evenCols));
+        }
+    }
+
+    // Rank-one update of a block of C with the last inner index, if k is odd
+    private static void peelInner(Matrix A, Matrix B, Matrix C, int row, int col, int rows, int cols) {
+        int k = A.cols;
+        if ((k & 1) != 0) {
+            MatrixKernel.multiplyAccumulate(A.view(row, k - 1, rows, 1), B.view(k - 1, col, 1, cols), C.view(row, col, rows, cols));
+        }
+    }
+
+    // Computes one level of the recursion, forking the seven products of a Strassen or
+    // Winograd step (or the halves of a split) as subtasks while depth and size allow. Never
+    // serialized, so its Matrix fields need not be Serializable
+    @SuppressWarnings("serial")
+    private static class StrassenTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix A;
+        private final Matrix B;
+        private final Matrix C;
+        private final int depth;
+        private final int threshold;
+        private final int leafSize;
+        private final byte algorithm;
+        private final PreparedOperand prepared; // B with its Strassen sums formed, or null
+
+        StrassenTask(Matrix A, Matrix B, Matrix C, int depth, int threshold, int leafSize, byte algorithm) {
+            this(A, B, C, depth, threshold, leafSize, algorithm, null);
+        }
+
+        StrassenTask(Matrix A, Matrix B, Matrix C, int depth, int threshold, int leafSize, byte algorithm,
+                     PreparedOperand prepared) {
+            this.A = A;
+            this.B = B;
+            this.C = C;
+            this.depth = depth;
+            this.threshold = threshold;
+            this.leafSize = leafSize;
+            this.algorithm = algorithm;
+            this.prepared = prepared;
+        }
+
+        @Override
+        protected void compute() {
+            int m = A.rows, k = A.cols, n = B.cols;
+            int plan = plan(m, k, n, leafSize);
+            if (plan == KERNEL && Math.max(m, n) > threshold) {
+                // Too thin for Strassen, but large enough to spread over the workers
+                plan = m >= n ? SPLIT_ROWS : SPLIT_COLS;
+            }
+            if (depth <= 0 || plan == KERNEL || largestDimension(m, k, n) <= threshold) {
+                // No joins happen below this point, so the worker's arena cannot be re-entered
+                StrassenWorkspace workspace = StrassenWorkspace.current();
+                workspace.prepare();
+                multiplyRecursive(A, B, C, workspace, leafSize, algorithm);
+                return;
+            }
+            // Splits halve the problem without a Strassen level, so they keep the depth
+            if (plan == SPLIT_ROWS) {
+                int half = m / 2;
+                invokeAll(new StrassenTask(A.view(0, 0, half, k), B, C.view(0, 0, half, n), depth, threshold, leafSize, algorithm, prepared),
+                        new StrassenTask(A.view(half, 0, m - half, k), B, C.view(half, 0, m - half, n), depth, threshold, leafSize, algorithm, prepared));
+                return;
+            }
+            if (plan == SPLIT_COLS) {
+                int half = n / 2;
+                invokeAll(new StrassenTask(A, B.view(0, 0, k, half), C.view(0, 0, m, half), depth, threshold, leafSize, algorithm),
+                        new StrassenTask(A, B.view(0, half, k, n - half), C.view(0, half, m, n - half), depth, threshold, leafSize, algorithm));
+                return;
+            }
+            if (plan == SPLIT_INNER) {
+                int half = k / 2;
+                Matrix P = StrassenWorkspace.borrow(C.elementType(), m, n);
+                invokeAll(new StrassenTask(A.view(0, 0, m, half), B.view(0, 0, half, n), C, depth, threshold, leafSize, algorithm),
+                        new StrassenTask(A.view(0, half, m, k - half), B.view(half, 0, k - half, n), P, depth, threshold, leafSize, algorithm));
+                C.addInPlace(P);
+                StrassenWorkspace.release(P);
+                return;
+            }
+            if (algorithm == WireProtocol.ALGORITHM_WINOGRAD) {
+                winogradStep();
+            } else {
+                strassenStep();
+            }
+            peel(A, B, C);
+        }
+
+        // Strassen step on the even-sized part, h x kh by kh x w quadrants
+        private void strassenStep() {
+            int h = A.rows / 2, kh = A.cols / 2, w = B.cols / 2;
+            byte type = C.elementType();
+            Matrix Ae = A.view(0, 0, 2 * h, 2 * kh), Be = B.view(0, 0, 2 * kh, 2 * w), Ce = C.view(0, 0, 2 * h, 2 * w);
+            Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+            Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+            Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+
+            // Operand sums for the forked products (M2..M5 use one quadrant directly)
+            Matrix S1 = StrassenWorkspace.borrow(type, h, kh), S2 = StrassenWorkspace.borrow(type, h, kh);
+            Matrix S5 = StrassenWorkspace.borrow(type, h, kh), S6 = StrassenWorkspace.borrow(type, h, kh);
+            Matrix S7 = StrassenWorkspace.borrow(type, h, kh);
+            boolean usePrepared = prepared != null && B == prepared.B && prepared.T1 != null;
+            Matrix T1, T3, T4, T6, T7;
+            if (usePrepared) {
+                T1 = prepared.T1;
+                T3 = prepared.T3;
+                T4 = prepared.T4;
+                T6 = prepared.T6;
+                T7 = prepared.T7;
+            } else {
+                T1 = StrassenWorkspace.borrow(type, kh, w);
+                T3 = StrassenWorkspace.borrow(type, kh, w);
+                T4 = StrassenWorkspace.borrow(type, kh, w);
+                T6 = StrassenWorkspace.borrow(type, kh, w);
+                T7 = StrassenWorkspace.borrow(type, kh, w);
+                T1.add(B11, B22);
+                T3.subtract(B12, B22);
+                T4.subtract(B21, B11);
+                T6.add(B11, B12);
+                T7.add(B21, B22);
+            }
+            // M1, M2 and M3 land in C11, C21 and C12; the other four need their own blocks
+            Matrix M4 = StrassenWorkspace.borrow(type, h, w), M5 = StrassenWorkspace.borrow(type, h, w);
+            Matrix M6 = StrassenWorkspace.borrow(type, h, w), M7 = StrassenWorkspace.borrow(type, h, w);
+
+            S1.add(A11, A22);
+            S2.add(A21, A22);
+            S5.add(A11, A12);
+            S6.subtract(A21, A11);
+            S7.subtract(A12, A22);
+
+            forkAndJoin(new StrassenTask(S1, T1, C11, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S2, B11, C21, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(A11, T3, C12, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(A22, T4, M4, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S5, B22, M5, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S6, T6, M6, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S7, T7, M7, depth - 1, threshold, leafSize, algorithm));
+
+            // C22 = M1 - M2 + M3 + M6, built before C11/C21/C12 are updated in place
+            C22.subtract(C11, C21);
+            C22.addInPlace(C12);
+            C22.addInPlace(M6);
+            // C11 = M1 + M4 - M5 + M7
+            C11.addInPlace(M4);
+            C11.subtractInPlace(M5);
+            C11.addInPlace(M7);
+            // C12 = M3 + M5, C21 = M2 + M4
+            C12.addInPlace(M5);
+            C21.addInPlace(M4);
+
+            StrassenWorkspace.release(S1, S2, S5, S6, S7, M4, M5, M6, M7);
+            if (!usePrepared) {
+                StrassenWorkspace.release(T1, T3, T4, T6, T7);
+            }
+        }
+
+        // Winograd step on the even-sized part: 8 additions form the operands, 7 combine the
+        // products. The operand sums chain (S2 from S1, T4 from T2, ...), so they are all formed
+        // before the products are forked.
+        private void winogradStep() {
+            int h = A.rows / 2, kh = A.cols / 2, w = B.cols / 2;
+            byte type = C.elementType();
+            Matrix Ae = A.view(0, 0, 2 * h, 2 * kh), Be = B.view(0, 0, 2 * kh, 2 * w), Ce = C.view(0, 0, 2 * h, 2 * w);
+            Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+            Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+            Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+
+            Matrix S1 = StrassenWorkspace.borrow(type, h, kh), S2 = StrassenWorkspace.borrow(type, h, kh);
+            Matrix S3 = StrassenWorkspace.borrow(type, h, kh), S4 = StrassenWorkspace.borrow(type, h, kh);
+            Matrix T1 = StrassenWorkspace.borrow(type, kh, w), T2 = StrassenWorkspace.borrow(type, kh, w);
+            Matrix T3 = StrassenWorkspace.borrow(type, kh, w), T4 = StrassenWorkspace.borrow(type, kh, w);
+            // P2, P3 and P7 land in C11, C12 and C22; the other four need their own blocks
+            Matrix P1 = StrassenWorkspace.borrow(type, h, w), P4 = StrassenWorkspace.borrow(type, h, w);
+            Matrix P5 = StrassenWorkspace.borrow(type, h, w), P6 = StrassenWorkspace.borrow(type, h, w);
+
+            S1.add(A21, A22);
+            S2.subtract(S1, A11);
+            S3.subtract(A11, A21);
+            S4.subtract(A12, S2);
+            T1.subtract(B12, B11);
+            T2.subtract(B22, T1);
+            T3.subtract(B22, B12);
+            T4.subtract(T2, B21);
+
+            forkAndJoin(new StrassenTask(A11, B11, P1, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(A12, B21, C11, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S4, B22, C12, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(A22, T4, P4, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S1, T1, P5, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S2, T2, P6, depth - 1, threshold, leafSize, algorithm),
+                    new StrassenTask(S3, T3, C22, depth - 1, threshold, leafSize, algorithm));
+
+            // U2 = P1 + P6, C11 = P1 + P2
+            P6.addInPlace(P1);
+            C11.addInPlace(P1);
+            // U3 = U2 + P7, C21 = U3 - P4, C22 = U3 + P5
+            C22.addInPlace(P6);
+            C21.subtract(C22, P4);
+            C22.addInPlace(P5);
+            // C12 = P3 + U2 + P5
+            C12.addInPlace(P6);
+            C12.addInPlace(P5);
+
+            StrassenWorkspace.release(S1, S2, S3, S4, T1, T2, T3, T4, P1, P4, P5, P6);
+        }
+
+        // Forks six, computes the last one on this worker, then joins in reverse fork order
+        private static void forkAndJoin(StrassenTask t1, StrassenTask t2, StrassenTask t3, StrassenTask t4,
+                                        StrassenTask t5, StrassenTask t6, StrassenTask t7) {
+            t1.fork();
+            t2.fork();
+            t3.fork();
+            t4.fork();
+            t5.fork();
+            t6.fork();
+            t7.compute();
+            t6.join();
+            t5.join();
+            t4.join();
+            t3.join();
+            t2.join();
+            t1.join();
+        }
     }
 
-    private static int[][] padMatrix(int[][] matrix, int newSize) {
-        int[][] padded = new int[newSize][newSize];
-        for (int i = 0; i < matrix.length; i++) {
-            System.arraycopy(matrix[i], 0, padded[i], 0, matrix[i].length);
+    // Sequential recursion writing straight into C, taking products apart the same way as
+    // StrassenTask. ALGORITHM_BLOCKED is run with a leafSize no product exceeds.
+    private static void multiplyRecursive(Matrix A, Matrix B, Matrix C, StrassenWorkspace workspace, int leafSize,
+                                          byte algorithm) {
+        int m = A.rows, k = A.cols, n = B.cols;
+        int plan = plan(m, k, n, leafSize);
+        if (plan == KERNEL) {
+            MatrixKernel.multiply(A, B, C); // Base case
+            return;
+        }
+        if (plan == SPLIT_ROWS) {
+            int half = m / 2;
+            multiplyRecursive(A.view(0, 0, half, k), B, C.view(0, 0, half, n), workspace, leafSize, algorithm);
+            multiplyRecursive(A.view(half, 0, m - half, k), B, C.view(half, 0, m - half, n), workspace, leafSize, algorithm);
+            return;
         }
-        return padded;
+        if (plan == SPLIT_COLS) {
+            int half = n / 2;
+            multiplyRecursive(A, B.view(0, 0, k, half), C.view(0, 0, m, half), workspace, leafSize, algorithm);
+            multiplyRecursive(A, B.view(0, half, k, n - half), C.view(0, half, m, n - half), workspace, leafSize, algorithm);
+            return;
+        }
+        int mark = workspace.mark();
+        if (plan == SPLIT_INNER) {
+            int half = k / 2;
+            Matrix P = workspace.take(C.elementType(), m, n);
+            multiplyRecursive(A.view(0, 0, m, half), B.view(0, 0, half, n), C, workspace, leafSize, algorithm);
+            multiplyRecursive(A.view(0, half, m, k - half), B.view(half, 0, k - half, n), P, workspace, leafSize, algorithm);
+            C.addInPlace(P);
+            workspace.reset(mark);
+            return;
+        }
+        if (algorithm == WireProtocol.ALGORITHM_WINOGRAD) {
+            winogradStep(A, B, C, workspace, leafSize);
+        } else {
+            strassenStep(A, B, C, workspace, leafSize);
+        }
+        workspace.reset(mark);
+        peel(A, B, C);
+    }
+
+    // Strassen step on the even-sized part, h x kh by kh x w quadrants. Takes three scratch
+    // blocks (S, T, P) from the arena; M1..M3 are computed in place in C and the rest go
+    // through P.
+    private static void strassenStep(Matrix A, Matrix B, Matrix C, StrassenWorkspace workspace, int leafSize) {
+        int h = A.rows / 2, kh = A.cols / 2, w = B.cols / 2;
+        byte type = C.elementType();
+        byte algorithm = WireProtocol.ALGORITHM_STRASSEN;
+        Matrix Ae = A.view(0, 0, 2 * h, 2 * kh), Be = B.view(0, 0, 2 * kh, 2 * w), Ce = C.view(0, 0, 2 * h, 2 * w);
+        Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+        Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+        Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+
+        Matrix S = workspace.take(type, h, kh);
+        Matrix T = workspace.take(type, kh, w);
+        Matrix P = workspace.take(type, h, w);
+
+        // M1 = (A11 + A22)(B11 + B22) -> C11, C22
+        S.add(A11, A22);
+        T.add(B11, B22);
+        multiplyRecursive(S, T, C11, workspace, leafSize, algorithm);
+        C22.copyFrom(C11);
+        // M2 = (A21 + A22)B11 -> C21, -C22
+        S.add(A21, A22);
+        multiplyRecursive(S, B11, C21, workspace, leafSize, algorithm);
+        C22.subtractInPlace(C21);
+        // M3 = A11(B12 - B22) -> C12, C22
+        T.subtract(B12, B22);
+        multiplyRecursive(A11, T, C12, workspace, leafSize, algorithm);
+        C22.addInPlace(C12);
+        // M4 = A22(B21 - B11) -> C11, C21
+        T.subtract(B21, B11);
+        multiplyRecursive(A22, T, P, workspace, leafSize, algorithm);
+        C11.addInPlace(P);
+        C21.addInPlace(P);
+        // M5 = (A11 + A12)B22 -> -C11, C12
+        S.add(A11, A12);
+        multiplyRecursive(S, B22, P, workspace, leafSize, algorithm);
+        C11.subtractInPlace(P);
+        C12.addInPlace(P);
+        // M6 = (A21 - A11)(B11 + B12) -> C22
+        S.subtract(A21, A11);
+        T.add(B11, B12);
+        multiplyRecursive(S, T, P, workspace, leafSize, algorithm);
+        C22.addInPlace(P);
+        // M7 = (A12 - A22)(B21 + B22) -> C11
+        S.subtract(A12, A22);
+        T.add(B21, B22);
+        multiplyRecursive(S, T, P, workspace, leafSize, algorithm);
+        C11.addInPlace(P);
     }
 
-    private static int[][] unpadMatrix(int[][] paddedMatrix, int originalRows, int originalCols) {
-        int[][] result = new int[originalRows][originalCols];
-        for (int i = 0; i < originalRows; i++) {
-            System.arraycopy(paddedMatrix[i], 0, result[i], 0, originalCols);
+    // Winograd step on the even-sized part, in the schedule of Boyer, Dumas, Pernet and Zhou
+    // (2009): two scratch blocks instead of Strassen's three, X for the A-side sums and then
+    // P1, Y for the B-side sums, with the quadrants of C holding the other products and
+    // partial sums until they are final.
+    private static void winogradStep(Matrix A, Matrix B, Matrix C, StrassenWorkspace workspace, int leafSize) {
+        int h = A.rows / 2, kh = A.cols / 2, w = B.cols / 2;
+        byte algorithm = WireProtocol.ALGORITHM_WINOGRAD;
+        Matrix Ae = A.view(0, 0, 2 * h, 2 * kh), Be = B.view(0, 0, 2 * kh, 2 * w), Ce = C.view(0, 0, 2 * h, 2 * w);
+        Matrix A11 = Ae.q11(), A12 = Ae.q12(), A21 = Ae.q21(), A22 = Ae.q22();
+        Matrix B11 = Be.q11(), B12 = Be.q12(), B21 = Be.q21(), B22 = Be.q22();
+        Matrix C11 = Ce.q11(), C12 = Ce.q12(), C21 = Ce.q21(), C22 = Ce.q22();
+
+        // X is h x kh while it holds sums of A, then h x w for P1
+        Matrix X = workspace.take(C.elementType(), 1, h * Math.max(kh, w));
+        Matrix S = X.wrap(X.offset, h, kh, kh);
+        Matrix P1 = X.wrap(X.offset, h, w, w);
+        Matrix Y = workspace.take(C.elementType(), kh, w);
+
+        // P7 = (A11 - A21)(B22 - B12) -> C21
+        S.subtract(A11, A21);
+        Y.subtract(B22, B12);
+        multiplyRecursive(S, Y, C21, workspace, leafSize, algorithm);
+        // P5 = S1 T1 = (A21 + A22)(B12 - B11) -> C22
+        S.add(A21, A22);
+        Y.subtract(B12, B11);
+        multiplyRecursive(S, Y, C22, workspace, leafSize, algorithm);
+        // P6 = S2 T2 = (S1 - A11)(B22 - T1) -> C12
+        S.subtractInPlace(A11);
+        Y.subtract(B22, Y);
+        multiplyRecursive(S, Y, C12, workspace, leafSize, algorithm);
+        // P3 = (A12 - S2)B22 -> C11
+        S.subtract(A12, S);
+        multiplyRecursive(S, B22, C11, workspace, leafSize, algorithm);
+        // P1 = A11 B11 -> X, no longer needed for sums
+        multiplyRecursive(A11, B11, P1, workspace, leafSize, algorithm);
+        // U2 = P1 + P6 -> C12, U3 = U2 + P7 -> C21, U4 = U2 + P5 -> C12
+        C12.addInPlace(P1);
+        C21.addInPlace(C12);
+        C12.addInPlace(C22);
+        // C22 = U3 + P5, C12 = U4 + P3
+        C22.addInPlace(C21);
+        C12.addInPlace(C11);
+        // P4 = A22(T2 - B21) -> C11, C21 = U3 - P4
+        Y.subtractInPlace(B21);
+        multiplyRecursive(A22, Y, C11, workspace, leafSize, algorithm);
+        C21.subtractInPlace(C11);
+        // P2 = A12 B21 -> C11, C11 = P1 + P2
+        multiplyRecursive(A12, B21, C11, workspace, leafSize, algorithm);
+        C11.addInPlace(P1);
+    }
+
+    // Time of the same algorithm on one thread over the parallel time, or NaN when that was not
+    // measured (see measureSpeedUp). A batched request already ran on one thread.
+    private static double speedUp(Matrix A, Matrix B, byte algorithm, long parallelExecutionTime, boolean batched) {
+        if (batched) {
+            return 1;
+        }
+        if (!measureSpeedUp) {
+            return Double.NaN;
         }
-        return result;
+        return (double) sequentialMultiplyTime(A, B, algorithm) / parallelExecutionTime;
+    }
+
+    // Method to measure sequential execution time
+    private static long sequentialMultiplyTime(Matrix A, Matrix B, byte algorithm) {
+        Matrix result = A.like(A.rows, B.cols);
+        long startTime = System.nanoTime();
+        multiplySequential(A, B, result, algorithm);
+        return System.nanoTime() - startTime;
     }
 
 
@@ -205,5 +1478,13 @@ public class StrassenMatrixMultiplication implements Runnable {
             System.out.println();
         }
     }
-}
 
+    private void printMatrix(Matrix matrix) {
+        for (int i = 0; i < matrix.rows; i++) {
+            for (int j = 0; j < matrix.cols; j++) {
+                System.out.print(matrix.element(i, j) + " ");
+            }
+            System.out.println();
+        }
+    }
+}
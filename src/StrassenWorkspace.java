@@ -0,0 +1,139 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Scratch memory for Strassen. Each worker thread owns a stack-like arena per element type,
+// used by the sequential recursion; the forked top levels borrow recycled blocks from a shared
+// pool. After the first multiply of a given shape neither path allocates.
+public class StrassenWorkspace {
+    // Recycled blocks for the parallel levels, kept per element type and size class. Sizes are
+    // rounded up to the next quarter power of two, so nearby shapes share blocks and the number
+    // of classes stays small. -Dstrassen.pool.bytes caps the memory the pool holds; past it a
+    // released block displaces pooled ones of other classes.
+    private static final long MAX_POOLED_BYTES = Long.getLong("strassen.pool.bytes", Runtime.getRuntime().maxMemory() / 8);
+    private static final ConcurrentHashMap<Long, ConcurrentLinkedQueue<Matrix>> blockPool = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+    private static final ThreadLocal<StrassenWorkspace> perThread = ThreadLocal.withInitial(StrassenWorkspace::new);
+    private static final int ELEMENT_TYPES = WireProtocol.ELEMENT_FLOAT64 + 1;
+
+    private final Matrix[] arenas = new Matrix[ELEMENT_TYPES];
+    private int top = 0;
+    private final Matrix[] outputs = new Matrix[ELEMENT_TYPES];
+
+    public static StrassenWorkspace current() {
+        return perThread.get();
+    }
+
+    // Arena ints needed by the sequential recursion on a square power-of-two n x n problem
+    // (S, T and P per level)
+    public static long requiredCapacity(int n, int leafSize) {
+        long total = 0;
+        while (n > leafSize) {
+            n /= 2;
+            total += 3L * n * n;
+        }
+        return total;
+    }
+
+    // Resets the arenas; must be called before a sequential run
+    public void prepare() {
+        top = 0;
+    }
+
+    public int mark() {
+        return top;
+    }
+
+    // Takes a rows x cols block off the arena of the given element type. An arena that is too
+    // small is replaced by a larger one (warm-up only); blocks already taken keep the old array.
+    public Matrix take(byte elementType, int rows, int cols) {
+        int size = rows * cols;
+        Matrix arena = arenas[elementType];
+        if (arena == null || top + size > arena.capacity()) {
+            int capacity = Math.max(top + size, arena == null ? 0 : 2 * arena.capacity());
+            arena = arenas[elementType] = Matrix.allocate(elementType, 1, capacity);
+        }
+        Matrix m = arena.wrap(top, rows, cols, cols);
+        top += size;
+        return m;
+    }
+
+    public void reset(int mark) {
+        top = mark;
+    }
+
+    // Result block reused by every multiply on this thread, for a result that is consumed (sent
+    // back) before the thread's next multiply; contents are undefined
+    public Matrix output(byte elementType, int rows, int cols) {
+        Matrix output = outputs[elementType];
+        if (output == null || output.capacity() < rows * cols) {
+            output = outputs[elementType] = Matrix.allocate(elementType, 1, rows * cols);
+        }
+        return output.wrap(0, rows, cols, cols);
+    }
+
+    // Borrows a rows x cols block from the shared pool (contents are undefined)
+    public static Matrix borrow(byte elementType, int rows, int cols) {
+        int capacity = sizeClass(rows * cols);
+        ConcurrentLinkedQueue<Matrix> queue = blockPool.get(poolKey(elementType, capacity));
+        Matrix block = queue == null ? null : queue.poll();
+        if (block == null) {
+            block = Matrix.allocate(elementType, 1, capacity);
+        } else {
+            pooledBytes.addAndGet(-bytes(block));
+        }
+        return block.wrap(0, rows, cols, cols);
+    }
+
+    public static void release(Matrix... blocks) {
+        for (Matrix block : blocks) {
+            long bytes = bytes(block);
+            if (bytes > MAX_POOLED_BYTES) {
+                continue;
+            }
+            if (pooledBytes.addAndGet(bytes) > MAX_POOLED_BYTES) {
+                trim();
+            }
+            blockPool.computeIfAbsent(poolKey(block.elementType(), block.capacity()), k -> new ConcurrentLinkedQueue<>())
+                    .offer(block);
+        }
+    }
+
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    // Drops pooled blocks until the pool is back under its cap, taking from every class in turn
+    private static void trim() {
+        boolean dropped = true;
+        while (dropped && pooledBytes.get() > MAX_POOLED_BYTES) {
+            dropped = false;
+            for (ConcurrentLinkedQueue<Matrix> queue : blockPool.values()) {
+                Matrix victim = queue.poll();
+                if (victim != null) {
+                    pooledBytes.addAndGet(-bytes(victim));
+                    dropped = true;
+                }
+            }
+        }
+    }
+
+    // Capacity a block of the given size is allocated and pooled at: rounded up to a quarter
+    // power of two, so at most a quarter of it goes unused
+    static int sizeClass(int elements) {
+        int shift = 29 - Integer.numberOfLeadingZeros(elements); // Quarter of the top bit
+        if (shift <= 0) {
+            return elements;
+        }
+        long step = 1L << shift;
+        return (int) Math.min((elements + step - 1) & -step, Integer.MAX_VALUE);
+    }
+
+    private static long bytes(Matrix block) {
+        return (long) block.capacity() * WireProtocol.elementBytes(block.elementType());
+    }
+
+    private static long poolKey(byte elementType, int elements) {
+        return (long) elementType << 32 | elements;
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Router side of one streamed multiply. The selector thread hands over the client's
+// STREAM_BEGIN, TILE and STREAM_END frames as they arrive; a relay worker forwards each one
+// to a single backend connection as soon as it can and then relays the result tiles back.
+// The matrices are never assembled here: at most the client's in-flight limit of tiles is
+// held by the router at any time, each reserved against the router's byte limit while it is
+// queued here. The backend connection is only borrowed once the first tile is in, and a client
+// that leaves the stream waiting longer than the tile timeout fails it.
+public class StreamRelay implements Runnable {
+    private static final Telemetry.Stage RELAY = Telemetry.stage("router", "relay");
+    private static final Telemetry.Counter ERRORS = Telemetry.counter("router", "errors");
+
+    // Queued by abort() to wake a relay waiting for the next tile
+    private static final ByteBuffer ABORTED = ByteBuffer.allocate(0);
+
+    final long requestId;
+    // Largest frame one tile may take: a full tile of the size STREAM_BEGIN announced
+    final long maxTileFrameBytes;
+    private final ClientConnection client;
+    private final BackendCluster backends;
+    private final TCPServerRouter router;
+    private final AdmissionControl admission;
+    private final BlockingQueue<ByteBuffer> inbound = new LinkedBlockingQueue<>();
+    private final long tileTimeoutMillis;
+    private volatile IOException abortCause;
+    private boolean failed = false;
+
+    public StreamRelay(ClientConnection client, ByteBuffer begin, BackendCluster backends, TCPServerRouter router,
+                       AdmissionControl admission, long tileTimeoutMillis) {
+        this.client = client;
+        this.requestId = WireProtocol.requestId(begin);
+        this.maxTileFrameBytes = maxTileFrameBytes(begin);
+        this.backends = backends;
+        this.router = router;
+        this.admission = admission;
+        this.tileTimeoutMillis = tileTimeoutMillis;
+    }
+
+    // Called by the selector thread with each complete frame of this stream; a tile comes with
+    // its frame reserved in admission. Frames arriving after the stream failed are dropped
+    // straight away.
+    public synchronized void offer(ByteBuffer frame) {
+        if (failed) {
+            drop(frame);
+            router.scheduleWrite(client);
+        } else {
+            inbound.add(frame);
+        }
+    }
+
+    // The client went away; stop waiting for the rest of its tiles
+    public void abort() {
+        abort(new EOFException("Client closed the connection mid-stream"));
+    }
+
+    // Fails the stream with cause (a BusyException is answered FRAME_BUSY) unless it has
+    // already been forwarded in full
+    public void abort(IOException cause) {
+        abortCause = cause;
+        inbound.add(ABORTED);
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer begin = next();
+            ByteBuffer first = next();
+            backends.stream(cost(begin), channel -> {
+                channel.sendFrame(begin.position(0));
+                ByteBuffer frame = first;
+                while (true) {
+                    channel.sendFrame(frame.position(0));
+                    if (WireProtocol.frameType(frame) == WireProtocol.FRAME_STREAM_END) {
+                        break;
+                    }
+                    frame = next();
+                }
+
+                // Result tiles until STREAM_END, unless the backend turned the stream away (an
+                // error, or BUSY from its admission): it then drops the tiles and sends nothing more
+                ByteBuffer response;
+                while ((response = channel.readFrame()) != null) {
+                    byte type = WireProtocol.frameType(response.position(0));
+                    client.queueFrame(response);
+                    router.scheduleWrite(client);
+                    if (type == WireProtocol.FRAME_STREAM_END || type == WireProtocol.FRAME_ERROR || type == WireProtocol.FRAME_BUSY) {
+                        return;
+                    }
+                }
+                throw new EOFException("Backend closed the connection mid-stream");
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            ERRORS.increment();
+            fail(e);
+        }
+        RELAY.recordSince(start);
+    }
+
+    // Takes the next frame of the stream and frees its slot so the selector can read another
+    private ByteBuffer next() throws IOException {
+        try {
+            ByteBuffer frame = inbound.poll(tileTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                throw new IOException("No tile received for " + tileTimeoutMillis + " ms, stream abandoned");
+            }
+            if (frame == ABORTED) {
+                throw abortCause;
+            }
+            drop(frame);
+            router.scheduleWrite(client);
+            return frame;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a tile", e);
+        }
+    }
+
+    // Reports the failure once and retires every tile that will now never be forwarded
+    private synchronized void fail(IOException error) {
+        failed = true;
+        ByteBuffer frame;
+        while ((frame = inbound.poll()) != null) {
+            if (frame != ABORTED) {
+                drop(frame);
+            }
+        }
+        byte type = error instanceof ClientSession.BusyException ? WireProtocol.FRAME_BUSY : WireProtocol.FRAME_ERROR;
+        byte[] message = String.valueOf(error.getMessage()).getBytes(StandardCharsets.UTF_8);
+        client.queueFrame(WireProtocol.allocateFrame(type, requestId, message.length).put(message).flip());
+        router.scheduleWrite(client);
+    }
+
+    // Frees what a frame held on the router once it leaves the queue: its in-flight slot and,
+    // for a tile, its reservation
+    private void drop(ByteBuffer frame) {
+        client.retireRequest();
+        if (WireProtocol.frameType(frame) == WireProtocol.FRAME_TILE) {
+            admission.unreserve(frame.capacity());
+        }
+    }
+
+    // The largest tile frame STREAM_BEGIN allows, or -1 (no tile fits) if it is malformed. A
+    // side past 2^16 is taken as 2^16, whose tiles are already too large for any frame.
+    static long maxTileFrameBytes(ByteBuffer begin) {
+        if (begin.limit() < WireProtocol.FRAME_HEADER_BYTES + WireProtocol.STREAM_BEGIN_BYTES) {
+            return -1;
+        }
+        int position = WireProtocol.FRAME_HEADER_BYTES + 5 * Integer.BYTES;
+        int tileSize = begin.getInt(position);
+        int elementBytes = WireProtocol.elementBytes(begin.get(position + Integer.BYTES));
+        if (tileSize <= 0 || elementBytes == 0) {
+            return -1;
+        }
+        long side = Math.min(tileSize, 1 << 16);
+        return WireProtocol.FRAME_HEADER_BYTES + WireProtocol.TILE_HEADER_BYTES + side * side * elementBytes;
+    }
+
+    // Strassen cost of the streamed multiply, for the load balancer
+    private static long cost(ByteBuffer begin) throws IOException {
+        if (begin.limit() < WireProtocol.FRAME_HEADER_BYTES + WireProtocol.STREAM_BEGIN_BYTES) {
+            throw new IOException("Truncated stream header");
+        }
+        int position = WireProtocol.FRAME_HEADER_BYTES + Integer.BYTES;
+        return LoadBalancer.estimateCost(begin.getInt(position), begin.getInt(position + Integer.BYTES),
+                begin.getInt(position + 3 * Integer.BYTES));
+    }
+}
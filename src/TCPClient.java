@@ -1,15 +1,65 @@
 import java.net.*;
 import java.io.*;
 import java.util.Random;
+import java.util.concurrent.CompletionException;
 
 public class TCPClient {
-    private static final int ROUTER_PORT = 12345;
-    private static final String SERVER_IP = "localhost";
-    private static final int MATRIX_SIZE = 20;
+    public static final int ROUTER_PORT = 12345;
+    public static final String SERVER_IP = "localhost";
+    public static final int MATRIX_SIZE = 20;
+
+    private final boolean legacyProtocol;
+    private final String host;
+    private final int port;
+    private final int matrixSize;
+
+    public TCPClient() {
+        this(false);
+    }
+
+    // legacyProtocol selects the old Java serialization exchange instead of binary frames
+    public TCPClient(boolean legacyProtocol) {
+        this(legacyProtocol, SERVER_IP, ROUTER_PORT, MATRIX_SIZE);
+    }
+
+    // For pointing clients at another router and sizing the matrices they send
+    public TCPClient(boolean legacyProtocol, String host, int port, int matrixSize) {
+        this.legacyProtocol = legacyProtocol;
+        this.host = host;
+        this.port = port;
+        this.matrixSize = matrixSize;
+    }
 
     public Metrics startClient(int clientId) {
+        return legacyProtocol ? startLegacyClient(clientId) : startBinaryClient(clientId);
+    }
+
+    private Metrics startBinaryClient(int clientId) {
+        Metrics metrics = null; // Initialize as null to catch potential failures
+        try (ClientSession session = openSession(clientId, 1)) {
+            // Generate random matrices
+            int[][] matrixA = generateRandomMatrix(matrixSize);
+            int[][] matrixB = generateRandomMatrix(matrixSize);
+
+            // Send matrices and wait for the result and metrics
+            Result result = session.submit(matrixA, matrixB).join();
+            metrics = result.metrics;
+            printMetrics(clientId, metrics);
+
+        } catch (IOException | CompletionException e) {
+            e.printStackTrace();
+        }
+        return metrics;
+    }
+
+    // Persistent connection for submitting many multiplies, up to maxOutstanding at a time
+    public ClientSession openSession(int clientId, int maxOutstanding) throws IOException {
+        return ClientSession.connect(host, port, clientId, maxOutstanding);
+    }
+
+    private Metrics startLegacyClient(int clientId) {
         Metrics metrics = null; // Initialize as null to catch potential failures
-        try (Socket socket = new Socket(SERVER_IP, ROUTER_PORT);
+        try (Socket socket = new Socket(host, port);
              ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
              ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
 
@@ -18,8 +68,8 @@ public class TCPClient {
             out.flush();
 
             // Generate random matrices
-            int[][] matrixA = generateRandomMatrix(MATRIX_SIZE);
-            int[][] matrixB = generateRandomMatrix(MATRIX_SIZE);
+            int[][] matrixA = generateRandomMatrix(matrixSize);
+            int[][] matrixB = generateRandomMatrix(matrixSize);
 
             // Send matrices to the server
             out.writeObject(matrixA);
@@ -35,10 +85,7 @@ public class TCPClient {
             metrics = new Metrics(parallelExecutionTime, speedUp, efficiency);
 
             // Output results and metrics
-            System.out.println("Client ID: " + clientId);
-            System.out.println("Parallel Execution Time: " + parallelExecutionTime + " ns");
-            System.out.println("Speed Up: " + speedUp);
-            System.out.println("Efficiency: " + efficiency);
+            printMetrics(clientId, metrics);
 
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
@@ -46,11 +93,26 @@ public class TCPClient {
         return metrics;
     }
 
+    private static void printMetrics(int clientId, Metrics metrics) {
+        System.out.println("Client ID: " + clientId);
+        System.out.println("Parallel Execution Time: " + metrics.executionTime + " ns");
+        if (!Double.isNaN(metrics.speedUp)) {
+            System.out.println("Speed Up: " + metrics.speedUp);
+            System.out.println("Efficiency: " + metrics.efficiency);
+        }
+        if (metrics.algorithm != WireProtocol.ALGORITHM_UNKNOWN) {
+            System.out.println("Algorithm: " + WireProtocol.algorithmName(metrics.algorithm));
+        }
+    }
 
 
 
-    private static int[][] generateRandomMatrix(int size) {
-        Random random = new Random();
+
+    public static int[][] generateRandomMatrix(int size) {
+        return generateRandomMatrix(size, new Random());
+    }
+
+    public static int[][] generateRandomMatrix(int size, Random random) {
         int[][] matrix = new int[size][size];
         for (int i = 0; i < size; i++) {
             for (int j = 0; j < size; j++) {
@@ -1,49 +1,145 @@
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
 import java.util.concurrent.*;
 
 
 public class TCPServer {
-    private static final int SERVER_PORT = 12346;
+    public static final int DEFAULT_PORT = 12346;
+    private int port;
     private int threadCount;
-    private ExecutorService threadPool;
+    private boolean virtualThreads;
+    private ExecutorService threadPool; // Runs each connection's reader, which only does socket I/O
+    private ForkJoinPool computePool; // Runs the forked Strassen sub-products of every request
+    private RequestScheduler scheduler; // Batches small requests, sends large ones to computePool
+    private ResultCache resultCache;
+    private OperandStore operands; // Matrices registered for FRAME_MULTIPLY_HANDLE, shared by all connections
+    private AdmissionControl admission; // Bounds the requests and bytes in flight across all connections
+    // One per open connection; once they are gone the server stops accepting, and further
+    // clients wait in the TCP backlog instead of in an unbounded executor queue
+    private Semaphore connectionSlots;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
 
     public TCPServer(int threadCount) {
+        this(threadCount, StrassenMatrixMultiplication.DEFAULT_CROSSOVER);
+    }
+
+    // crossover is the Strassen leaf size, or StrassenMatrixMultiplication.AUTO_CROSSOVER to calibrate
+    public TCPServer(int threadCount, int crossover) {
+        this(threadCount, crossover, DEFAULT_PORT);
+    }
+
+    // A non-default port lets several servers run side by side behind one router
+    public TCPServer(int threadCount, int crossover, int port) {
+        StrassenMatrixMultiplication.setCrossover(crossover);
+        this.port = port;
         this.threadCount = threadCount > 0 ? threadCount : 1;
-        this.threadPool = Executors.newFixedThreadPool(threadCount);
+        // -Dstrassen.virtual.threads=true gives every connection a virtual thread, so idle or slow
+        // clients cost no platform thread and threadCount no longer caps the connections
+        this.virtualThreads = Boolean.getBoolean("strassen.virtual.threads");
+        this.threadPool = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(this.threadCount);
+        this.computePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.scheduler = new RequestScheduler(computePool,
+                Integer.getInteger("strassen.batch.workers", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("strassen.batch.max", RequestScheduler.DEFAULT_MAX_BATCH));
+        this.resultCache = new ResultCache("server", Long.getLong("strassen.cache.bytes", ResultCache.DEFAULT_MAX_BYTES));
+        this.operands = new OperandStore("server", Long.getLong("strassen.operand.bytes", OperandStore.DEFAULT_MAX_BYTES),
+                Long.getLong("strassen.operand.ttl.ms", OperandStore.DEFAULT_TTL_MILLIS));
+        this.admission = AdmissionControl.fromProperties("server");
+        // A platform-thread connection past threadCount would only sit in the executor's queue
+        this.connectionSlots = new Semaphore(Integer.getInteger("strassen.max.connections",
+                virtualThreads ? AdmissionControl.DEFAULT_MAX_CONNECTIONS : this.threadCount));
     }
 
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
-            System.out.println("Server running on port " + SERVER_PORT + " with " + threadCount + " threads...");
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port));
+            // -Dstrassen.algorithm=blocked|strassen|winograd forces one algorithm; by default
+            // (auto) each multiply gets the one selectAlgorithm picks, with Winograd and
+            // Strassen timed against each other here. Clients connecting meanwhile wait in the
+            // backlog.
+            StrassenMatrixMultiplication.setAlgorithm(System.getProperty("strassen.algorithm", "auto"));
+            System.out.println("Server running on port " + port + " with "
+                    + (virtualThreads ? "a virtual thread per connection..." : threadCount + " threads..."));
+            Telemetry.start(Integer.getInteger("strassen.metrics.port", 0));
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new StrassenMatrixMultiplication(clientSocket));
+            while (running) {
+                connectionSlots.acquire();
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = serverChannel.accept();
+                    clientChannel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    connectionSlots.release();
+                    throw e;
+                }
+                connections.add(clientChannel);
+                StrassenMatrixMultiplication connection =
+                        new StrassenMatrixMultiplication(clientChannel, scheduler, resultCache, operands, admission);
+                threadPool.execute(() -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        connections.remove(clientChannel);
+                        connectionSlots.release();
+                    }
+                });
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (running) {
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    // Graceful drain: stops accepting, then closes the read side of every connection so each
+    // one finishes the requests it has already read (their replies still go out) and ends.
+    // Only connections still busy after the drain timeout are cut off.
     public void shutdown() {
-        threadPool.shutdown();
+        running = false;
+        connectionSlots.release(); // Wakes the accept loop if it is waiting for a slot
         try {
-            for (int i = 0; i < 60; i++) { // Wait up to 60 seconds
-                if (threadPool.isTerminated()) {
-                    System.out.println("All tasks have terminated.");
-                    break;
-                }
-                Thread.sleep(1000); // Sleep for 1 second before checking again
+            if (serverChannel != null) {
+                serverChannel.close();
             }
-            if (!threadPool.isTerminated()) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        threadPool.shutdown();
+        for (SocketChannel connection : connections) {
+            try {
+                connection.shutdownInput();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        try {
+            if (threadPool.awaitTermination(AdmissionControl.DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.out.println("All tasks have terminated.");
+            } else {
                 System.out.println("Forcing shutdown...");
                 threadPool.shutdownNow();
+                for (SocketChannel connection : connections) {
+                    connection.close();
+                }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         } catch (InterruptedException ex) {
             threadPool.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        scheduler.close();
+        computePool.shutdown();
+        operands.close();
         System.out.println("Server shutdown complete.");
     }
 
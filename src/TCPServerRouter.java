@@ -1,25 +1,174 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class TCPServerRouter {
+// Single-threaded Selector loop that accepts clients and reads/writes their frames without
+// blocking. Each complete request frame is relayed by a bounded pool of relay workers to one
+// of the compute servers in the BackendCluster, over pooled persistent connections. Legacy
+// serialization clients are detected from their preamble and handed to a blocking SThread.
+// Streamed multiplies are tile sequences forwarded frame by frame by a StreamRelay.
+// Registered operands live on one backend, so requests naming a handle go to that backend.
+// Past its limits (see AdmissionControl) the router answers FRAME_BUSY from the selector
+// thread, and past its connection limit it stops accepting until a client leaves.
+public final class TCPServerRouter {
     private static final int ROUTER_PORT = 12345;
-    private ConcurrentHashMap<Integer, Socket> connectionMap = new ConcurrentHashMap<>();
+    private static final String DEFAULT_BACKENDS = "localhost:" + TCPServer.DEFAULT_PORT;
+    private static final int DEFAULT_POOL_SIZE = 8;
+    // Requests with a dimension of at least this size are split across the cluster
+    private static final int DEFAULT_DISTRIBUTION_DEPTH = 1;
+    private static final int DISTRIBUTION_THRESHOLD = 1024;
+    // A legacy client silent for this long is dropped; -Dstrassen.legacy.timeout.ms overrides it
+    private static final int DEFAULT_LEGACY_TIMEOUT_MILLIS = 30_000;
+    // A streamed multiply waiting this long for its next tile fails; -Dstrassen.tile.timeout.ms
+    private static final long DEFAULT_TILE_TIMEOUT_MILLIS = 30_000;
+
+    // Per-stage timers and counters of the router (see Telemetry)
+    private static final Telemetry.Stage QUEUE_WAIT = Telemetry.stage("router", "queue_wait");
+    private static final Telemetry.Stage RELAY = Telemetry.stage("router", "relay");
+    private static final Telemetry.Counter CONNECTIONS = Telemetry.counter("router", "connections");
+    private static final Telemetry.Counter REQUESTS = Telemetry.counter("router", "requests");
+    private static final Telemetry.Counter ERRORS = Telemetry.counter("router", "errors");
+    private static final Telemetry.Counter EXPIRED = Telemetry.counter("router", "deadline_expired");
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AdmissionControl admission = AdmissionControl.fromProperties("router");
+    private final int maxConnections = Integer.getInteger("strassen.max.connections", AdmissionControl.DEFAULT_MAX_CONNECTIONS);
+    private final AtomicInteger openConnections = new AtomicInteger(); // Including legacy clients on an SThread
+    private final int legacyTimeoutMillis = Integer.getInteger("strassen.legacy.timeout.ms", DEFAULT_LEGACY_TIMEOUT_MILLIS);
+    private final long tileTimeoutMillis = Long.getLong("strassen.tile.timeout.ms", DEFAULT_TILE_TIMEOUT_MILLIS);
+
+    // Pooled backend connections by connection id
+    private ConcurrentHashMap<Integer, SocketChannel> connectionMap = new ConcurrentHashMap<>();
     private volatile boolean isRunning = true; // Flag to control server loop
-    private ServerSocket serverSocket;
+    // Shutting down: new requests are turned away, those in flight still get their responses
+    private volatile boolean draining = false;
+    private volatile boolean relaysDone = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private final BackendCluster backends;
+    private final DistributedStrassen distributed;
+    private final ResultCache resultCache = new ResultCache("router", Long.getLong("strassen.cache.bytes", ResultCache.DEFAULT_MAX_BYTES));
+    // Backend holding each registered operand, by handle
+    private final ConcurrentHashMap<Long, PinnedOperand> pinnedOperands = new ConcurrentHashMap<>();
+    private final ExecutorService relayPool;
+    // Runs what lives as long as a client keeps it waiting: legacy clients (SThread) and streamed
+    // uploads (StreamRelay). Kept apart from the relay pool so slow clients never hold relay
+    // workers: a thread each, as many as the connection limit and admission allow, and with
+    // -Dstrassen.virtual.threads a virtual thread each.
+    private final ExecutorService connectionPool;
+    // Clients whose response is ready to be written by the selector thread
+    private final ConcurrentLinkedQueue<ClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Legacy clients whose keys were cancelled and that can go blocking after the next select
+    private final List<ClientConnection> pendingLegacy = new ArrayList<>();
+
+    public TCPServerRouter() {
+        this(BackendCluster.parseBackends(DEFAULT_BACKENDS), new LoadBalancer.RoundRobin(), DEFAULT_POOL_SIZE);
+    }
+
+    public TCPServerRouter(List<InetSocketAddress> backendAddresses, LoadBalancer balancer, int poolSize) {
+        this(backendAddresses, balancer, poolSize, DEFAULT_DISTRIBUTION_DEPTH);
+    }
+
+    // poolSize bounds the connections to each backend; the relay workers using them are sized
+    // to keep every backend's pool busy. distributionDepth is how many Strassen levels of a
+    // large request are fanned out across backends (0 disables distribution).
+    public TCPServerRouter(List<InetSocketAddress> backendAddresses, LoadBalancer balancer, int poolSize, int distributionDepth) {
+        int totalConnections = Math.max(1, poolSize) * backendAddresses.size();
+        this.backends = new BackendCluster(backendAddresses, balancer, poolSize, this);
+        this.relayPool = Executors.newFixedThreadPool(totalConnections);
+        this.connectionPool = Boolean.getBoolean("strassen.virtual.threads") ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        this.distributed = new DistributedStrassen(backends, distributionDepth, DISTRIBUTION_THRESHOLD, totalConnections);
+
+        Telemetry.gauge("router", "in_flight", inFlightRequests::get);
+        Telemetry.gauge("router", "backend_connections", connectionMap::size);
+        Telemetry.gauge("router", "relay_queue_depth", () -> ((ThreadPoolExecutor) relayPool).getQueue().size());
+        Telemetry.gauge("router", "operand_handles", pinnedOperands::size);
+        Telemetry.gauge("router", "open_connections", openConnections::get);
+        for (Backend backend : backends.getBackends()) {
+            Telemetry.gauge("router", "backend_outstanding", "backend", backend.toString(), backend::getQueueDepth);
+        }
+    }
 
     public void startRouter() {
         try {
-            serverSocket = new ServerSocket(ROUTER_PORT);
-            System.out.println("Server Router is running on port " + ROUTER_PORT);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(ROUTER_PORT));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Telemetry.start(Integer.getInteger("strassen.metrics.port", 0));
+            System.out.println("Server Router is running on port " + ROUTER_PORT + " with backends " + backends.describeQueueDepths());
+            backends.start();
 
             while (isRunning) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
+                List<ClientConnection> legacyReady = new ArrayList<>(pendingLegacy);
+                pendingLegacy.clear();
+                if (legacyReady.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow(); // Deregisters the cancelled legacy keys
+                }
+                if (!isRunning) {
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                }
+
+                for (ClientConnection client : legacyReady) {
+                    client.channel.configureBlocking(true);
+                    SThread legacy = new SThread(client.channel, client.getPreamble(), this, legacyTimeoutMillis);
+                    connectionPool.execute(() -> {
+                        try {
+                            legacy.run();
+                        } finally {
+                            connectionClosed();
+                        }
+                    });
+                }
+                ClientConnection client;
+                while ((client = pendingWrites.poll()) != null) {
+                    SelectionKey key = client.channel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        write(key); // Also resumes reading if the client was at its limit
+                    }
+                }
 
-                // Route the client to a server using SThread
-                SThread thread = new SThread(clientSocket, this);
-                new Thread(thread).start();
+                // At the connection limit new clients wait in the TCP backlog
+                SelectionKey acceptKey = serverChannel.keyFor(selector);
+                if (acceptKey != null && acceptKey.isValid()) {
+                    acceptKey.interestOps(!draining && openConnections.get() < maxConnections ? SelectionKey.OP_ACCEPT : 0);
+                }
+                if (draining && relaysDone && !hasPendingOutput()) {
+                    break; // Every response of the drain has been written
+                }
             }
         } catch (IOException e) {
             if (isRunning) { // Only print stack trace if not in shutdown mode
@@ -27,42 +176,383 @@ public class TCPServerRouter {
             }
         } finally {
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
+                if (serverChannel != null && serverChannel.isOpen()) {
+                    serverChannel.close();
+                }
+                if (selector != null && selector.isOpen()) {
+                    for (SelectionKey key : selector.keys()) {
+                        key.channel().close();
+                    }
+                    selector.close();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
             System.out.println("Server Router has stopped.");
+            stopped.countDown();
         }
     }
 
-    public void shutdownRouter() {
-        isRunning = false; // Stop accepting new connections
+    private void accept() throws IOException {
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
+        clientChannel.configureBlocking(false);
+        clientChannel.socket().setTcpNoDelay(true);
+        clientChannel.register(selector, SelectionKey.OP_READ, new ClientConnection(clientChannel));
+        CONNECTIONS.increment();
+        openConnections.incrementAndGet();
+        System.out.println("New client connected: " + clientChannel.socket());
+    }
+
+    private void read(SelectionKey key) {
+        ClientConnection client = (ClientConnection) key.attachment();
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close(); // Release the server socket
+            if (!client.isNegotiated()) {
+                ByteBuffer preamble = client.readPreamble();
+                if (preamble == null) {
+                    return;
+                }
+                if (!client.isNegotiated()) {
+                    // Legacy client: leave the selector and continue on a blocking relay thread
+                    key.cancel();
+                    pendingLegacy.add(client);
+                    return;
+                }
             }
+
+            // Read every complete frame available, up to the client's in-flight limit (each is
+            // admitted from its header before it is buffered, see admitFrame)
+            ByteBuffer request;
+            while (client.canAcceptRequest() && (request = client.readFrame(
+                    (type, requestId, frameBytes) -> admitFrame(client, type, requestId, frameBytes))) != null) {
+                ByteBuffer frame = request;
+                byte type = WireProtocol.frameType(frame);
+                long requestId = WireProtocol.requestId(frame);
+                if (type == WireProtocol.FRAME_STREAM_BEGIN) {
+                    StreamRelay stream = new StreamRelay(client, frame, backends, this, admission, tileTimeoutMillis);
+                    client.openStream(stream);
+                    stream.offer(frame);
+                    connectionPool.execute(() -> {
+                        try {
+                            stream.run();
+                        } finally {
+                            admission.release(0);
+                        }
+                    });
+                } else if (type == WireProtocol.FRAME_TILE || type == WireProtocol.FRAME_STREAM_END) {
+                    StreamRelay stream = client.getStream(requestId);
+                    if (stream == null) {
+                        client.retireRequest(); // Stream already over, nothing to forward to
+                        continue;
+                    }
+                    if (type == WireProtocol.FRAME_STREAM_END) {
+                        client.closeStream(requestId);
+                    }
+                    stream.offer(frame);
+                } else {
+                    // The frame stays buffered here until its backend answers
+                    long queuedBytes = admittedBytes(type, frame.remaining());
+                    long readAt = System.nanoTime();
+                    relayPool.execute(() -> {
+                        try {
+                            relay(client, frame, readAt);
+                        } finally {
+                            admission.release(queuedBytes);
+                        }
+                    });
+                }
+            }
+            updateInterest(key, client);
+        } catch (IOException e) {
+            close(key, client);
+        }
+    }
+
+    // Turns the request away with FRAME_BUSY unless it fits the router's limits, going by its
+    // header alone so a rejected frame is never buffered; answered right here on the selector
+    // thread, so an overloaded router does not queue rejections either.
+    private boolean admitFrame(ClientConnection client, byte type, long requestId, int frameBytes) {
+        if (type == WireProtocol.FRAME_TILE) {
+            return admitTile(client, requestId, frameBytes);
+        }
+        long queuedBytes = admittedBytes(type, frameBytes);
+        if (queuedBytes < 0 || (!draining && admission.tryAdmit(queuedBytes))) {
+            return true;
+        }
+        client.queueFrame(WireProtocol.encodeMessage(WireProtocol.FRAME_BUSY, requestId,
+                draining ? "Router is shutting down" : "Router is at its request limit"));
+        return false;
+    }
+
+    // A tile waits in its stream's queue until it is forwarded, so it is reserved against the
+    // byte limit like any other buffered frame (StreamRelay gives it back). One for no open
+    // stream (e.g. one already turned away) is discarded unread. One larger than the stream's
+    // tile size, or past the byte limit, is discarded too and ends its stream, with FRAME_ERROR
+    // or FRAME_BUSY, as the product could no longer be complete.
+    private boolean admitTile(ClientConnection client, long requestId, int frameBytes) {
+        StreamRelay stream = client.getStream(requestId);
+        if (stream == null) {
+            return false;
+        }
+        IOException rejection = null;
+        if (frameBytes > stream.maxTileFrameBytes) {
+            rejection = new IOException("Tile frame of " + frameBytes + " bytes is larger than the stream's tile size allows");
+        } else if (!admission.tryReserve(frameBytes)) {
+            rejection = new ClientSession.BusyException("Router is at its queued bytes limit");
+        }
+        if (rejection == null) {
+            return true;
+        }
+        client.closeStream(requestId);
+        stream.abort(rejection);
+        return false;
+    }
+
+    // What a frame other than a tile holds in admission: a plain request its buffered frame
+    // until the backend answers, a streamed multiply only its slot (it holds a connection-pool
+    // thread, and a backend connection once its tiles flow, until it ends; its tiles are
+    // reserved one by one, see admitTile), and STREAM_END nothing (-1)
+    private static long admittedBytes(byte type, int frameBytes) {
+        if (type == WireProtocol.FRAME_STREAM_END) {
+            return -1;
+        }
+        return type == WireProtocol.FRAME_STREAM_BEGIN ? 0 : frameBytes;
+    }
+
+    private void write(SelectionKey key) {
+        ClientConnection client = (ClientConnection) key.attachment();
+        try {
+            client.flush();
+            updateInterest(key, client);
+        } catch (IOException e) {
+            close(key, client);
+        }
+    }
+
+    private void close(SelectionKey key, ClientConnection client) {
+        ByteBuffer partial = client.abandonPartialFrame();
+        if (partial != null && partial.get(Integer.BYTES) == WireProtocol.FRAME_TILE) {
+            admission.unreserve(partial.capacity());
+        } else if (partial != null && admittedBytes(partial.get(Integer.BYTES), partial.capacity()) >= 0) {
+            admission.release(admittedBytes(partial.get(Integer.BYTES), partial.capacity()));
+        }
+        key.cancel();
+        client.close();
+        connectionClosed();
+    }
+
+    // Frees a connection slot; from an SThread, the selector has to look at the limit again
+    private void connectionClosed() {
+        if (openConnections.getAndDecrement() >= maxConnections) {
+            selector.wakeup();
+        }
+    }
+
+    private boolean hasPendingOutput() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof ClientConnection
+                    && ((ClientConnection) key.attachment()).hasPendingOutput()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reading pauses while the client is at its in-flight limit, which pushes back on the
+    // client through TCP flow control
+    private void updateInterest(SelectionKey key, ClientConnection client) {
+        int ops = 0;
+        if (client.canAcceptRequest()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (client.hasPendingOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    // Runs on a relay worker: forwards the frame (or splits it across the cluster if it is
+    // large, or sends it to the backend holding its operand) and queues the response. The
+    // deadline budget it forwards is what is left after its wait for a relay worker.
+    private void relay(ClientConnection client, ByteBuffer request, long readAt) {
+        long relayStart = QUEUE_WAIT.recordSince(readAt);
+        REQUESTS.increment();
+        inFlightRequests.incrementAndGet();
+        try {
+            byte type = WireProtocol.frameType(request);
+            int budgetMillis = WireProtocol.budgetMillis(request);
+            if (budgetMillis > 0) {
+                long remaining = budgetMillis - TimeUnit.NANOSECONDS.toMillis(relayStart - readAt);
+                if (remaining <= 0) {
+                    EXPIRED.increment();
+                    client.queueResponse(errorFrame(WireProtocol.requestId(request), new IOException("Deadline exceeded")));
+                    return;
+                }
+                WireProtocol.setBudgetMillis(request, (int) remaining);
+            }
+            // Repeated pairs are answered here without involving a backend (only plain
+            // multiplies have a key, handles are not cached)
+            ResultCache.Key key = resultCache.keyOf(request);
+            byte[] cached = resultCache.get(key);
+            if (type == WireProtocol.FRAME_REGISTER) {
+                client.queueResponse(register(request));
+            } else if (type == WireProtocol.FRAME_MULTIPLY_HANDLE || type == WireProtocol.FRAME_RELEASE) {
+                relayPinned(client, request, type);
+            } else if (cached != null) {
+                client.queueResponse(ResultCache.resultFrame(WireProtocol.requestId(request), cached));
+            } else if (distributed.shouldDistribute(request)) {
+                ByteBuffer response = distributed.multiply(request);
+                resultCache.put(key, response);
+                client.queueResponse(response);
+            } else {
+                backends.exchange(request, response -> {
+                    resultCache.put(key, response);
+                    client.queueResponse(response);
+                });
+            }
+        } catch (ClientSession.BusyException e) {
+            // Part of a distributed multiply found no backend with room; the client may retry
+            client.queueResponse(WireProtocol.encodeMessage(WireProtocol.FRAME_BUSY, WireProtocol.requestId(request), e.getMessage()));
         } catch (IOException e) {
             e.printStackTrace();
+            ERRORS.increment();
+            client.queueResponse(errorFrame(WireProtocol.requestId(request), e));
+        } finally {
+            inFlightRequests.decrementAndGet();
+            RELAY.recordSince(relayStart);
+            scheduleWrite(client);
+        }
+    }
+
+    // A registered operand's backend. The server forgets a handle after its time-to-live
+    // without use; every use passes through here, so the same rule retires the pin.
+    private static class PinnedOperand {
+        final Backend backend;
+        final long ttlNanos;
+        volatile long lastUsed = System.nanoTime();
+
+        PinnedOperand(Backend backend, long ttlNanos) {
+            this.backend = backend;
+            this.ttlNanos = ttlNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastUsed > ttlNanos;
+        }
+    }
+
+    // Registers on the backend the balancer picks. The handle is pinned before the response is
+    // queued, so the client cannot use it before the router knows where it lives.
+    private ByteBuffer register(ByteBuffer request) throws IOException {
+        long now = System.nanoTime();
+        pinnedOperands.values().removeIf(pinned -> pinned.isExpired(now));
+        ByteBuffer[] response = new ByteBuffer[1];
+        Backend backend = backends.exchange(request, frame ->
+                response[0] = ByteBuffer.allocate(frame.remaining()).order(ByteOrder.LITTLE_ENDIAN).put(frame).flip());
+        if (WireProtocol.frameType(response[0]) == WireProtocol.FRAME_HANDLE) {
+            long handle = response[0].getLong(WireProtocol.FRAME_HEADER_BYTES);
+            long ttlMillis = response[0].getLong(WireProtocol.FRAME_HEADER_BYTES + Long.BYTES);
+            pinnedOperands.put(handle, new PinnedOperand(backend, TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+        }
+        return response[0];
+    }
+
+    // Multiply by handle or release, sent to the backend holding the operand
+    private void relayPinned(ClientConnection client, ByteBuffer request, byte type) throws IOException {
+        long handle = WireProtocol.operandHandle(request);
+        PinnedOperand pinned = pinnedOperands.get(handle);
+        long now = System.nanoTime();
+        if (pinned == null || pinned.isExpired(now)) {
+            pinnedOperands.remove(handle);
+            if (type == WireProtocol.FRAME_RELEASE) {
+                // Already gone, which is what the client asked for
+                client.queueResponse(WireProtocol.allocateFrame(WireProtocol.FRAME_RELEASE, WireProtocol.requestId(request), 0).flip());
+                return;
+            }
+            throw new IOException("Unknown or expired operand handle " + handle);
+        }
+        pinned.lastUsed = now;
+        if (type == WireProtocol.FRAME_RELEASE) {
+            pinnedOperands.remove(handle);
+        }
+        try {
+            backends.exchange(pinned.backend, request, client::queueResponse);
+        } catch (BackendPool.BackendUnavailableException e) {
+            // If the backend is gone the operand went with it; the client has to register it again
+            if (e.connectFailed) {
+                pinnedOperands.remove(handle);
+            }
+            throw new IOException("Backend " + pinned.backend + " holding operand " + handle + " is unavailable", e);
+        }
+    }
+
+    // Has the selector thread flush the client's queued output and, if it was held at its
+    // in-flight limit, resume reading from it. Safe to call from any thread.
+    public void scheduleWrite(ClientConnection client) {
+        pendingWrites.add(client);
+        selector.wakeup();
+    }
+
+    private static ByteBuffer errorFrame(long requestId, Exception error) {
+        return WireProtocol.encodeMessage(WireProtocol.FRAME_ERROR, requestId, String.valueOf(error.getMessage()));
+    }
+
+    public BackendCluster getBackends() {
+        return backends;
+    }
+
+    // Graceful drain: stops accepting and answers new requests with FRAME_BUSY, waits for the
+    // relays in flight and for their responses to be written, then closes everything. Only
+    // what is still running after the drain timeout is cut off.
+    public void shutdownRouter() {
+        draining = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        relayPool.shutdown();
+        connectionPool.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AdmissionControl.DRAIN_TIMEOUT_MILLIS);
+        try {
+            boolean drained = relayPool.awaitTermination(AdmissionControl.DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    && connectionPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            relaysDone = true;
+            if (selector != null) {
+                selector.wakeup();
+                drained = drained && stopped.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            if (!drained) {
+                System.out.println("Forcing router shutdown...");
+                relayPool.shutdownNow();
+                connectionPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        isRunning = false;
+        if (selector != null) {
+            selector.wakeup();
         }
+        distributed.close();
+        backends.close();
     }
 
-    // Adds a client connection to the connectionMap
-    public void addConnection(int clientId, Socket clientSocket) {
-        connectionMap.put(clientId, clientSocket);
-        System.out.println("Client " + clientId + " added to connection map.");
+    // Adds a pooled backend connection to the connectionMap
+    public void addConnection(int connectionId, SocketChannel serverChannel) {
+        connectionMap.put(connectionId, serverChannel);
+        System.out.println("Backend connection " + connectionId + " added to connection map.");
     }
 
-    // Removes a client connection from the connectionMap
-    public void removeConnection(int clientId) {
-        Socket removedSocket = connectionMap.remove(clientId);
-        if (removedSocket != null) {
-            System.out.println("Client " + clientId + " removed from connection map.");
+    // Removes a pooled backend connection from the connectionMap and closes it
+    public void removeConnection(int connectionId) {
+        SocketChannel removedChannel = connectionMap.remove(connectionId);
+        if (removedChannel != null) {
+            System.out.println("Backend connection " + connectionId + " removed from connection map.");
             try {
-                removedSocket.close();
+                removedChannel.close();
             } catch (IOException e) {
-                System.out.println("Error closing client socket for client " + clientId);
+                System.out.println("Error closing backend connection " + connectionId);
                 e.printStackTrace();
             }
         }
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Self-checking test of the router under overload, against one compute server in the same
+// process. The server admits one request at a time (-Dstrassen.max.requests=1, set only while
+// it is built), so a second request arriving while a large multiply runs is turned away with
+// FRAME_BUSY. Each case checks what the client sees and that the router gives back what the
+// request held. The router has two relay workers and two connections to the server, and
+// drops legacy clients and streams left waiting for CLIENT_TIMEOUT_MILLIS, so a few stalled
+// clients are enough to show whether they starve it. Tiles queued in the router count against
+// its admitted bytes, which must be back to zero once their streams end.
+// Exits with status 1 on any failure.
+//
+//   java TCPServerRouterTest [--port 12400]
+public class TCPServerRouterTest {
+    private static final String HOST = "localhost";
+    private static final int ROUTER_PORT = 12345;
+    private static final long WAIT_MILLIS = 10_000;
+    private static final int CLIENT_TIMEOUT_MILLIS = 2000;
+
+    private final Random random = new Random(1);
+    private final TCPServerRouter router;
+    private final Backend backend;
+    private int checks = 0;
+    private int failures = 0;
+
+    private TCPServerRouterTest(TCPServerRouter router) {
+        this.router = router;
+        this.backend = router.getBackends().getBackends().get(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 12400;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        System.setProperty("strassen.max.requests", "1");
+        TCPServer server = new TCPServer(8, StrassenMatrixMultiplication.DEFAULT_CROSSOVER, port);
+        System.clearProperty("strassen.max.requests");
+        start(server::startServer, "server");
+        System.setProperty("strassen.legacy.timeout.ms", String.valueOf(CLIENT_TIMEOUT_MILLIS));
+        System.setProperty("strassen.tile.timeout.ms", String.valueOf(CLIENT_TIMEOUT_MILLIS));
+        TCPServerRouter router = new TCPServerRouter(BackendCluster.parseBackends(HOST + ":" + port),
+                LoadBalancer.forName("round-robin"), 2, 0);
+        System.clearProperty("strassen.legacy.timeout.ms");
+        System.clearProperty("strassen.tile.timeout.ms");
+        start(router::startRouter, "router");
+
+        TCPServerRouterTest test = new TCPServerRouterTest(router);
+        test.await(() -> test.backend.isHealthy() && canConnect(), "router and server to start");
+        test.rejectedStream();
+        test.stalledLegacyClients();
+        test.stalledStreams();
+        test.oversizedTiles();
+        test.restartedBackend(server, port);
+        System.out.println(test.checks + " checks, " + test.failures + " failures");
+        System.exit(test.failures > 0 ? 1 : 0);
+    }
+
+    // A stream the server turns away with BUSY fails with a BusyException, and its relay ends
+    // and gives the backend connection back instead of waiting for tiles that never come
+    private void rejectedStream() throws IOException {
+        try (ClientSession session = ClientSession.connect(HOST, ROUTER_PORT, 1, 8)) {
+            CompletableFuture<Result> large = session.submit(gaussian(1500, 1500), gaussian(1500, 1500));
+            await(() -> gauge("strassen_server_admitted_requests") == 1, "the large multiply to be admitted");
+            CompletableFuture<Result> streamed = session.submitStreaming(gaussian(200, 200), gaussian(200, 200), 64);
+            check(failure(streamed) instanceof ClientSession.BusyException,
+                    "stream during a large multiply: " + failure(streamed));
+            large.join();
+            check(await(() -> backend.getQueueDepth() == 0, "the relay of the rejected stream to end"),
+                    "backend queue depth after a rejected stream: " + backend.getQueueDepth());
+        }
+    }
+
+    // Legacy clients that stall after the serialization header, more of them than there are
+    // relay workers, neither keep a binary request from being answered nor stay connected
+    private void stalledLegacyClients() throws IOException {
+        List<Socket> stalled = new ArrayList<>();
+        try (ClientSession session = ClientSession.connect(HOST, ROUTER_PORT, 2, 8)) {
+            for (int i = 0; i < 8; i++) {
+                Socket socket = new Socket(HOST, ROUTER_PORT);
+                socket.getOutputStream().write(new byte[]{(byte) 0xAC, (byte) 0xED, 0x00, 0x05});
+                socket.getOutputStream().flush();
+                socket.setSoTimeout((int) WAIT_MILLIS);
+                stalled.add(socket);
+            }
+            sleep(500); // For the router to hand them over to their threads
+            CompletableFuture<Result> request = session.submit(gaussian(20, 20), gaussian(20, 20));
+            check(failure(request) == null, "request alongside stalled legacy clients: " + failure(request));
+            for (Socket socket : stalled) {
+                long start = System.nanoTime();
+                boolean closed;
+                try {
+                    socket.getInputStream().readAllBytes(); // Only the serialization header comes back
+                    closed = true;
+                } catch (SocketTimeoutException e) {
+                    closed = false;
+                } catch (IOException e) {
+                    closed = true; // Reset by the router
+                }
+                check(closed && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS),
+                        "stalled legacy client closed after the read timeout");
+            }
+        } finally {
+            for (Socket socket : stalled) {
+                socket.close();
+            }
+        }
+    }
+
+    // Streams opened and never fed, more of them than there are relay workers and backend
+    // connections, hold neither: a plain request is still answered, no backend connection is
+    // borrowed for them, and each fails with an error once its tile is late
+    private void stalledStreams() throws IOException {
+        int streams = 4;
+        try (FrameChannel channel = FrameChannel.connect(HOST, ROUTER_PORT);
+             ClientSession session = ClientSession.connect(HOST, ROUTER_PORT, 3, 8)) {
+            channel.writePreamble(WireProtocol.VERSION_BINARY);
+            for (int requestId = 1; requestId <= streams; requestId++) {
+                ByteBuffer begin = channel.beginFrame(WireProtocol.FRAME_STREAM_BEGIN, requestId, WireProtocol.STREAM_BEGIN_BYTES);
+                begin.putInt(3).putInt(64).putInt(64).putInt(64).putInt(64).putInt(32).put(WireProtocol.ELEMENT_FLOAT64);
+                channel.send();
+            }
+            CompletableFuture<Result> request = session.submit(gaussian(20, 20), gaussian(20, 20));
+            check(failure(request) == null, "request alongside stalled streams: " + failure(request));
+            check(backend.getQueueDepth() == 0, "backend connections held by stalled streams: " + backend.getQueueDepth());
+            CompletableFuture<Integer> errors = CompletableFuture.supplyAsync(() -> countErrors(channel, streams));
+            Integer received = null;
+            try {
+                received = errors.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Left at null: not every stream was answered in time
+            }
+            check(received != null && received == streams, "errors for " + streams + " stalled streams: " + received);
+        }
+    }
+
+    // A tile larger than the tile size its stream announced is refused unread: the stream fails
+    // with an error and the connection still serves the next stream, whose tiles are held in
+    // admission only until they are forwarded
+    private void oversizedTiles() throws IOException {
+        try (FrameChannel channel = FrameChannel.connect(HOST, ROUTER_PORT);
+             ClientSession session = ClientSession.connect(HOST, ROUTER_PORT, 5, 8)) {
+            channel.writePreamble(WireProtocol.VERSION_BINARY);
+            ByteBuffer begin = channel.beginFrame(WireProtocol.FRAME_STREAM_BEGIN, 1, WireProtocol.STREAM_BEGIN_BYTES);
+            begin.putInt(5).putInt(64).putInt(64).putInt(64).putInt(64).putInt(16).put(WireProtocol.ELEMENT_FLOAT64);
+            channel.send();
+            ByteBuffer tile = channel.beginFrame(WireProtocol.FRAME_TILE, 1, WireProtocol.tileBytes(WireProtocol.ELEMENT_FLOAT64, 64, 64));
+            WireProtocol.putTile(tile, WireProtocol.OPERAND_A, gaussian(64, 64), 0, 0, 64, 64);
+            channel.send();
+            CompletableFuture<String> error = CompletableFuture.supplyAsync(() -> errorMessage(channel));
+            String message = null;
+            try {
+                message = error.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Left at null: the stream was not answered in time
+            }
+            // Not the tile timeout, nor anything from the server: the router turned the tile away
+            check(message != null && message.contains("tile size"), "error for a tile larger than its stream's tile size: " + message);
+            CompletableFuture<Result> streamed = session.submitStreaming(gaussian(200, 200), gaussian(200, 200), 64);
+            check(failure(streamed) == null, "stream after an oversized tile: " + failure(streamed));
+            check(await(() -> gauge("strassen_router_admitted_bytes") == 0, "the router to give back tile bytes"),
+                    "router admitted bytes after the streams: " + gauge("strassen_router_admitted_bytes"));
+        }
+    }
+
+    // How many of the next frames are FRAME_ERROR, or -1 if the connection fails first
+    private static int countErrors(FrameChannel channel, int frames) {
+        int errors = 0;
+        try {
+            for (int i = 0; i < frames; i++) {
+                ByteBuffer response = channel.readFrame();
+                if (response == null) {
+                    return -1;
+                }
+                errors += WireProtocol.frameType(response.position(0)) == WireProtocol.FRAME_ERROR ? 1 : 0;
+            }
+            return errors;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Message of the next frame if it is FRAME_ERROR, or null
+    private static String errorMessage(FrameChannel channel) {
+        try {
+            ByteBuffer response = channel.readFrame();
+            if (response == null || WireProtocol.frameType(response.position(0)) != WireProtocol.FRAME_ERROR) {
+                return null;
+            }
+            response.position(WireProtocol.FRAME_HEADER_BYTES);
+            byte[] message = new byte[response.remaining()];
+            response.get(message);
+            return new String(message, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // After the server restarts, every pooled connection the router holds is stale. The first
+    // request to find that out mid-request is retried over a fresh connection and answered.
+    private void restartedBackend(TCPServer server, int port) throws IOException {
+        try (ClientSession session = ClientSession.connect(HOST, ROUTER_PORT, 4, 8)) {
+            CompletableFuture<Result> before = session.submit(gaussian(20, 20), gaussian(20, 20));
+            check(failure(before) == null, "request before the restart: " + failure(before));
+            server.shutdown();
+            start(new TCPServer(8, StrassenMatrixMultiplication.DEFAULT_CROSSOVER, port)::startServer, "restarted-server");
+            await(() -> canConnect(port), "the restarted server to accept");
+            CompletableFuture<Result> after = session.submit(gaussian(20, 20), gaussian(20, 20));
+            check(failure(after) == null, "request over stale connections after the restart: " + failure(after));
+            check(backend.isHealthy(), "backend evicted after a mid-request failure");
+        }
+    }
+
+    private static void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean canConnect(int port) {
+        try {
+            new Socket(HOST, port).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean canConnect() {
+        try {
+            ClientSession.connect(HOST, ROUTER_PORT, 0, 1).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private DoubleMatrix gaussian(int rows, int cols) {
+        DoubleMatrix matrix = new DoubleMatrix(rows, cols);
+        for (int i = 0; i < matrix.data.length; i++) {
+            matrix.data[i] = random.nextGaussian();
+        }
+        return matrix;
+    }
+
+    // What the request failed with, or null if it succeeded
+    private static Throwable failure(CompletableFuture<Result> future) {
+        try {
+            future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            return null;
+        } catch (ExecutionException | CompletionException e) {
+            return e.getCause();
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    // Value of an unlabelled gauge in the Prometheus scrape, or -1 if it is not there
+    private static long gauge(String name) {
+        for (String line : Telemetry.scrape().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        return -1;
+    }
+
+    // Polls condition for up to WAIT_MILLIS; false (and reported) if it never held
+    private boolean await(BooleanSupplier condition, String what) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                System.out.println("Timed out waiting for " + what);
+                return false;
+            }
+            sleep(20);
+        }
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void check(boolean passed, String what) {
+        checks++;
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide instrumentation shared by the router and the server: per-stage timers,
+// counters and gauges, each belonging to a component ("server", "router"). Everything is
+// readable over JMX (bean StrassenMatrix:type=Telemetry) and, once start() is given a port,
+// as Prometheus text at http://localhost:<port>/metrics. The endpoint listens on loopback
+// only unless -Dstrassen.metrics.address names another interface (0.0.0.0 for all).
+public class Telemetry {
+    private static final String OBJECT_NAME = "StrassenMatrix:type=Telemetry";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // Keyed by component.name[label] so the output is grouped and stable
+    private static final Map<String, Stage> stages = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private static boolean jmxRegistered = false;
+    private static HttpServer httpServer;
+
+    // Time spent in one stage of request handling
+    public static class Stage {
+        final String component;
+        final String stage;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Stage(String component, String stage) {
+            this.component = component;
+            this.stage = stage;
+        }
+
+        public void record(long nanos) {
+            histogram.recordValue(nanos);
+        }
+
+        // Records the time since startNanos (a System.nanoTime() reading) and returns now
+        public long recordSince(long startNanos) {
+            long now = System.nanoTime();
+            histogram.recordValue(now - startNanos);
+            return now;
+        }
+    }
+
+    public static class Counter {
+        final String component;
+        final String name;
+        private final LongAdder count = new LongAdder();
+
+        Counter(String component, String name) {
+            this.component = component;
+            this.name = name;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    private static class Gauge {
+        final String component;
+        final String name;
+        final String label;
+        final String labelValue;
+        final LongSupplier value;
+
+        Gauge(String component, String name, String label, String labelValue, LongSupplier value) {
+            this.component = component;
+            this.name = name;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+    }
+
+    public static Stage stage(String component, String stage) {
+        return stages.computeIfAbsent(component + ".stage." + stage, key -> new Stage(component, stage));
+    }
+
+    public static Counter counter(String component, String name) {
+        return counters.computeIfAbsent(component + "." + name, key -> new Counter(component, name));
+    }
+
+    // Registers (or replaces) a gauge read on demand
+    public static void gauge(String component, String name, LongSupplier value) {
+        gauges.put(component + "." + name, new Gauge(component, name, null, null, value));
+    }
+
+    // Gauge with one label, e.g. the queue depth of each backend
+    public static void gauge(String component, String name, String label, String labelValue, LongSupplier value) {
+        gauges.put(component + "." + name + "[" + labelValue + "]", new Gauge(component, name, label, labelValue, value));
+    }
+
+    // Registers the JMX bean and, if httpPort > 0, serves /metrics on it. Safe to call from
+    // both the router and the server when they share a process; only the first call with a
+    // port starts the HTTP endpoint.
+    public static synchronized void start(int httpPort) {
+        try {
+            if (!jmxRegistered) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new TelemetryBean(), new ObjectName(OBJECT_NAME));
+                jmxRegistered = true;
+            }
+            if (httpPort > 0 && httpServer == null) {
+                String address = System.getProperty("strassen.metrics.address");
+                InetAddress bindAddress = address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+                httpServer = HttpServer.create(new InetSocketAddress(bindAddress, httpPort), 0);
+                httpServer.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                httpServer.start();
+                System.out.println("Metrics available at http://" + bindAddress.getHostAddress() + ":" + httpPort + "/metrics");
+            }
+        } catch (JMException | IOException e) {
+            e.printStackTrace(); // Metrics are optional, keep serving without them
+        }
+    }
+
+    public static synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    // Prometheus text exposition of every metric
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE strassen_stage_seconds summary\n");
+        for (Stage stage : stages.values()) {
+            String labels = "component=\"" + stage.component + "\",stage=\"" + stage.stage + "\"";
+            for (double quantile : QUANTILES) {
+                sample(out, "strassen_stage_seconds", labels + ",quantile=\"" + quantile + "\"",
+                        stage.histogram.getValueAtPercentile(quantile * 100) / 1e9);
+            }
+            sample(out, "strassen_stage_seconds_sum", labels, stage.histogram.getMean() * stage.histogram.getTotalCount() / 1e9);
+            sample(out, "strassen_stage_seconds_count", labels, stage.histogram.getTotalCount());
+        }
+        for (Counter counter : counters.values()) {
+            String name = "strassen_" + counter.component + "_" + counter.name + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            sample(out, name, "", counter.get());
+        }
+        String lastName = null;
+        for (Gauge gauge : gauges.values()) {
+            String name = "strassen_" + gauge.component + "_" + gauge.name;
+            if (!name.equals(lastName)) {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                lastName = name;
+            }
+            sample(out, name, gauge.label == null ? "" : gauge.label + "=\"" + gauge.labelValue + "\"", gauge.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value == Math.rint(value) ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.9f", value)).append('\n');
+    }
+
+    // Read-only JMX view: stages as <component>.stage.<stage>.{count,meanMillis,p50Millis,
+    // p99Millis,p999Millis,maxMillis}, counters and gauges under their component.name
+    private static class TelemetryBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.get();
+            }
+            Gauge gauge = gauges.get(attribute);
+            if (gauge != null) {
+                return gauge.value.getAsLong();
+            }
+            int dot = attribute.lastIndexOf('.');
+            Stage stage = dot < 0 ? null : stages.get(attribute.substring(0, dot));
+            if (stage != null) {
+                LatencyHistogram histogram = stage.histogram;
+                switch (attribute.substring(dot + 1)) {
+                    case "count": return histogram.getTotalCount();
+                    case "meanMillis": return histogram.getMean() / 1e6;
+                    case "p50Millis": return histogram.getValueAtPercentile(50) / 1e6;
+                    case "p99Millis": return histogram.getValueAtPercentile(99) / 1e6;
+                    case "p999Millis": return histogram.getValueAtPercentile(99.9) / 1e6;
+                    case "maxMillis": return histogram.getMaxValue() / 1e6;
+                    default: break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Skipped, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String stage : stages.keySet()) {
+                attributes.add(attribute(stage + ".count", "long"));
+                for (String statistic : new String[]{"meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis"}) {
+                    attributes.add(attribute(stage + "." + statistic, "double"));
+                }
+            }
+            for (String counter : counters.keySet()) {
+                attributes.add(attribute(counter, "long"));
+            }
+            for (String gauge : gauges.keySet()) {
+                attributes.add(attribute(gauge, "long"));
+            }
+            return new MBeanInfo(TelemetryBean.class.getName(), "Router and server telemetry",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private static MBeanAttributeInfo attribute(String name, String type) {
+            return new MBeanAttributeInfo(name, type, name, true, false, false);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Telemetry attributes are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+    }
+}
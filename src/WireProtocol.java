@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary wire format shared by client, router and server.
+//
+// A connection starts with a 4-byte preamble: "SMX" followed by the protocol version. A legacy
+// client instead starts with the Java serialization header (0xACED), which is how the two modes
+// are told apart. After the preamble every message is a frame:
+//
+//   int length        bytes that follow this field
+//   byte type         FRAME_*
+//   long requestId    chosen by the client, echoed on the reply so replies may arrive out of order
+//   int budgetMillis  time left to answer a request, 0 for no deadline; each hop forwards what
+//                     remains of it, and work still waiting when it runs out is dropped
+//   payload
+//
+// A matrix inside a payload is: byte element type, int rows, int cols, byte encoding, then
+// for ENCODING_RAW rows*cols elements, otherwise int length and that many bytes of the
+// encoded elements (see MatrixCodec). Everything is little-endian so a raw element block can
+// be bulk-copied to and from the primitive array of the matching Matrix class.
+public class WireProtocol {
+    public static final byte[] MAGIC = {'S', 'M', 'X'};
+    public static final byte VERSION_LEGACY = 0; // Java serialization, no preamble
+    public static final byte VERSION_BINARY = 6; // 1 had no request ids, 2 no deadlines, 3 only int elements, 4 no algorithm, 5 no encodings; none is accepted
+
+    // Frame types
+    public static final byte FRAME_MULTIPLY = 1; // int clientId, matrix A, matrix B, byte encodings accepted for C
+    public static final byte FRAME_RESULT = 2;   // matrix C, long executionTime, double speedUp, double efficiency, byte algorithm
+    public static final byte FRAME_PING = 3;     // empty, health check
+    public static final byte FRAME_PONG = 4;     // empty, reply to FRAME_PING
+    public static final byte FRAME_ERROR = 5;    // UTF-8 message, the request failed on the server
+
+    // Streaming mode for matrices too large for one frame. The client sends STREAM_BEGIN, the
+    // tiles of A and B in any order, then STREAM_END. The server answers with the tiles of C,
+    // quadrant by quadrant as they are computed, then STREAM_END carrying the metrics.
+    public static final byte FRAME_STREAM_BEGIN = 6; // int clientId, int rowsA, colsA, rowsB, colsB, tileSize, byte element type
+    public static final byte FRAME_TILE = 7;         // byte operand, int rowOffset, colOffset, rows, cols, elements
+    public static final byte FRAME_STREAM_END = 8;   // empty from the client; metrics trailer from the server
+
+    // Operand handles, for one B multiplied by many A's. The client registers B once and gets
+    // back a handle the server keeps it under (prepared for multiplying) until it is released
+    // or has gone unused for its time-to-live; multiplies then send only A and the handle.
+    public static final byte FRAME_REGISTER = 9;         // int clientId, long ttlMillis (0 for the server's), matrix
+    public static final byte FRAME_HANDLE = 10;          // long handle, long ttlMillis granted; reply to FRAME_REGISTER
+    public static final byte FRAME_MULTIPLY_HANDLE = 11; // int clientId, matrix A, long handle of B, byte encodings; answered like FRAME_MULTIPLY
+    public static final byte FRAME_RELEASE = 12;         // long handle; echoed back empty once the handle is gone
+
+    // Reply to a request turned away because the router or server is at its limits (or shutting
+    // down). Nothing was done, so it can be retried later or elsewhere.
+    public static final byte FRAME_BUSY = 13; // UTF-8 reason
+
+    // Tile operands
+    public static final byte OPERAND_A = 0;
+    public static final byte OPERAND_B = 1;
+    public static final byte OPERAND_C = 2;
+
+    // Element types; both operands of a multiply have the same one, and so does its result
+    public static final byte ELEMENT_INT32 = 1;
+    public static final byte ELEMENT_INT64 = 2;
+    public static final byte ELEMENT_FLOAT32 = 3;
+    public static final byte ELEMENT_FLOAT64 = 4;
+
+    // Algorithm that computed a result (top level), reported in the result trailer
+    public static final byte ALGORITHM_UNKNOWN = 0;
+    public static final byte ALGORITHM_BLOCKED = 1;   // Classical, tiled kernel split across the workers
+    public static final byte ALGORITHM_STRASSEN = 2;
+    public static final byte ALGORITHM_WINOGRAD = 3;  // Strassen-Winograd, 15 additions per level instead of 18
+    public static final byte ALGORITHM_SPARSE = 4;    // An operand was mostly zeros and multiplied in CSR form
+    public static final byte ALGORITHM_CACHED = 5;    // Replayed from a result cache; time and speed-up not measured
+
+    // Matrix payload encodings. A request's encodings byte is a mask of 1 << ENCODING_* that
+    // the result may be sent in; raw is always accepted.
+    public static final byte ENCODING_RAW = 0;
+    public static final byte ENCODING_VARINT = 1;
+    public static final byte ENCODING_PACKED = 2;
+    public static final byte ENCODING_CSR = 3;
+    public static final byte ENCODING_LZ4 = 4;
+
+    public static final int FRAME_HEADER_BYTES = 17;
+    private static final int BUDGET_OFFSET = FRAME_HEADER_BYTES - Integer.BYTES;
+    public static final int MATRIX_HEADER_BYTES = 10;
+    public static final int RESULT_TRAILER_BYTES = 25;
+    public static final int STREAM_BEGIN_BYTES = 6 * Integer.BYTES + 1;
+    public static final int TILE_HEADER_BYTES = 1 + 4 * Integer.BYTES;
+    public static final int HANDLE_BYTES = 2 * Long.BYTES;
+    public static final int MAX_FRAME_BYTES = Integer.MAX_VALUE - 64;
+
+    // Bytes per element of an ELEMENT_* type, 0 if the type is unknown
+    public static int elementBytes(byte elementType) {
+        switch (elementType) {
+            case ELEMENT_INT32:
+            case ELEMENT_FLOAT32:
+                return 4;
+            case ELEMENT_INT64:
+            case ELEMENT_FLOAT64:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    public static String elementName(byte elementType) {
+        switch (elementType) {
+            case ELEMENT_INT32:
+                return "int32";
+            case ELEMENT_INT64:
+                return "int64";
+            case ELEMENT_FLOAT32:
+                return "float32";
+            case ELEMENT_FLOAT64:
+                return "float64";
+            default:
+                return "element type " + elementType;
+        }
+    }
+
+    public static String algorithmName(byte algorithm) {
+        switch (algorithm) {
+            case ALGORITHM_BLOCKED:
+                return "blocked";
+            case ALGORITHM_STRASSEN:
+                return "strassen";
+            case ALGORITHM_WINOGRAD:
+                return "winograd";
+            case ALGORITHM_SPARSE:
+                return "sparse";
+            case ALGORITHM_CACHED:
+                return "cached";
+            default:
+                return "unknown";
+        }
+    }
+
+    public static String encodingName(byte encoding) {
+        switch (encoding) {
+            case ENCODING_RAW:
+                return "raw";
+            case ENCODING_VARINT:
+                return "varint";
+            case ENCODING_PACKED:
+                return "packed";
+            case ENCODING_CSR:
+                return "csr";
+            case ENCODING_LZ4:
+                return "lz4";
+            default:
+                return "encoding " + encoding;
+        }
+    }
+
+    // Size of a matrix sent raw
+    public static int matrixBytes(byte elementType, int rows, int cols) throws IOException {
+        long bytes = MATRIX_HEADER_BYTES + (long) rows * cols * elementBytes(elementType);
+        if (rows < 0 || cols < 0 || bytes > MAX_FRAME_BYTES) {
+            throw new IOException("Matrix too large for a single frame: " + rows + "x" + cols);
+        }
+        return (int) bytes;
+    }
+
+    // FRAME_MULTIPLY payload carrying two encoded matrices
+    public static int multiplyPayloadBytes(MatrixCodec.Encoded A, MatrixCodec.Encoded B) throws IOException {
+        long bytes = Integer.BYTES + (long) A.bytes() + B.bytes() + 1;
+        if (bytes > MAX_FRAME_BYTES) {
+            throw new IOException("Multiply request too large for a single frame");
+        }
+        return (int) bytes;
+    }
+
+    // Complete FRAME_MULTIPLY frame in its own heap buffer, for callers without a FrameChannel;
+    // A and B go in this process's encodings, which are also the ones accepted for the result
+    public static ByteBuffer encodeMultiply(long requestId, int clientId, Matrix A, Matrix B) throws IOException {
+        MatrixCodec.Encoded encodedA = MatrixCodec.encode(A);
+        MatrixCodec.Encoded encodedB = MatrixCodec.encode(B);
+        ByteBuffer frame = allocateFrame(FRAME_MULTIPLY, requestId, multiplyPayloadBytes(encodedA, encodedB));
+        frame.putInt(clientId);
+        encodedA.writeTo(frame);
+        encodedB.writeTo(frame);
+        frame.put(MatrixCodec.localEncodings());
+        return frame.flip();
+    }
+
+    // Heap buffer holding a frame header; the caller puts exactly payloadBytes and flips it
+    public static ByteBuffer allocateFrame(byte type, long requestId, int payloadBytes) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putInt(FRAME_HEADER_BYTES - Integer.BYTES + payloadBytes);
+        frame.put(type);
+        frame.putLong(requestId);
+        frame.putInt(0);
+        return frame;
+    }
+
+    // Complete frame carrying a UTF-8 message, e.g. FRAME_ERROR or FRAME_BUSY
+    public static ByteBuffer encodeMessage(byte type, long requestId, String message) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        return allocateFrame(type, requestId, bytes.length).put(bytes).flip();
+    }
+
+    // Type and request id of a complete frame that starts at position 0
+    public static byte frameType(ByteBuffer frame) {
+        return frame.get(Integer.BYTES);
+    }
+
+    public static long requestId(ByteBuffer frame) {
+        return frame.getLong(Integer.BYTES + 1);
+    }
+
+    // Deadline budget of a frame whose header starts at position 0
+    public static int budgetMillis(ByteBuffer frame) {
+        return frame.getInt(BUDGET_OFFSET);
+    }
+
+    public static void setBudgetMillis(ByteBuffer frame, int budgetMillis) {
+        frame.putInt(BUDGET_OFFSET, budgetMillis);
+    }
+
+    // Handle a FRAME_MULTIPLY_HANDLE or FRAME_RELEASE (starting at position 0) refers to
+    public static long operandHandle(ByteBuffer frame) throws IOException {
+        int position = frameType(frame) == FRAME_RELEASE ? FRAME_HEADER_BYTES
+                : matrixEnd(frame, FRAME_HEADER_BYTES + Integer.BYTES);
+        if (frame.limit() - position < Long.BYTES) {
+            throw new IOException("Truncated request: no operand handle");
+        }
+        return frame.getLong(position);
+    }
+
+    public static int tileBytes(int rows, int cols) {
+        return tileBytes(ELEMENT_INT32, rows, cols);
+    }
+
+    public static int tileBytes(byte elementType, int rows, int cols) {
+        return TILE_HEADER_BYTES + rows * cols * elementBytes(elementType);
+    }
+
+    // Writes the rows x cols block of source starting at (rowOffset, colOffset) as a tile
+    public static void putTile(ByteBuffer buffer, byte operand, int[][] source, int rowOffset, int colOffset, int rows, int cols) {
+        putTileHeader(buffer, operand, rowOffset, colOffset, rows, cols);
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < rows; i++) {
+            ints.put(source[rowOffset + i], colOffset, cols);
+        }
+        buffer.position(buffer.position() + rows * cols * Integer.BYTES);
+    }
+
+    public static void putTile(ByteBuffer buffer, byte operand, Matrix source, int rowOffset, int colOffset, int rows, int cols) {
+        putTileHeader(buffer, operand, rowOffset, colOffset, rows, cols);
+        source.putBlock(buffer, rowOffset, colOffset, rows, cols);
+    }
+
+    private static void putTileHeader(ByteBuffer buffer, byte operand, int rowOffset, int colOffset, int rows, int cols) {
+        buffer.put(operand);
+        buffer.putInt(rowOffset);
+        buffer.putInt(colOffset);
+        buffer.putInt(rows);
+        buffer.putInt(cols);
+    }
+
+    // Copies a tile (buffer positioned at its operand byte) into target, which must cover the
+    // logical logicalRows x logicalCols area the tile claims to belong to and holds the stream's
+    // element type. Returns the operand.
+    public static byte getTile(ByteBuffer buffer, Matrix target, int logicalRows, int logicalCols) throws IOException {
+        byte operand = buffer.get();
+        int rowOffset = buffer.getInt();
+        int colOffset = buffer.getInt();
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        if (rowOffset < 0 || colOffset < 0 || rows < 0 || cols < 0
+                || (long) rowOffset + rows > logicalRows || (long) colOffset + cols > logicalCols
+                || (long) rows * cols * elementBytes(target.elementType()) > buffer.remaining()) {
+            throw new IOException("Tile out of bounds: " + rows + "x" + cols + " at " + rowOffset + "," + colOffset);
+        }
+        target.getBlock(buffer, rowOffset, colOffset, rows, cols);
+        return operand;
+    }
+
+    // Same, into a jagged matrix
+    public static void getTile(ByteBuffer buffer, int[][] target) throws IOException {
+        buffer.get(); // operand
+        int rowOffset = buffer.getInt();
+        int colOffset = buffer.getInt();
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        if (rowOffset < 0 || colOffset < 0 || rows < 0 || cols < 0 || (long) rowOffset + rows > target.length
+                || (target.length > 0 && (long) colOffset + cols > target[0].length)
+                || (long) rows * cols * Integer.BYTES > buffer.remaining()) {
+            throw new IOException("Tile out of bounds: " + rows + "x" + cols + " at " + rowOffset + "," + colOffset);
+        }
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < rows; i++) {
+            ints.get(target[rowOffset + i], colOffset, cols);
+        }
+        buffer.position(buffer.position() + rows * cols * Integer.BYTES);
+    }
+
+    // Element type and dimensions of the matrix whose header starts at an absolute buffer position
+    public static byte elementTypeAt(ByteBuffer buffer, int position) {
+        return buffer.get(position);
+    }
+
+    public static int rowsAt(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 1);
+    }
+
+    public static int colsAt(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 5);
+    }
+
+    public static byte encodingAt(ByteBuffer buffer, int position) {
+        return buffer.get(position + 9);
+    }
+
+    // Position just past the matrix whose header starts at position. Fails unless the header
+    // and the payload it announces lie within the buffer's limit, so the accessors above are
+    // safe to use on a matrix (and anything after it) once this has returned.
+    public static int matrixEnd(ByteBuffer buffer, int position) throws IOException {
+        if (position < 0 || buffer.limit() - position < MATRIX_HEADER_BYTES) {
+            throw new IOException("Truncated matrix header");
+        }
+        byte elementType = elementTypeAt(buffer, position);
+        int rows = rowsAt(buffer, position);
+        int cols = colsAt(buffer, position);
+        if (elementBytes(elementType) == 0) {
+            throw new IOException("Unsupported element type: " + elementType);
+        }
+        if (rows < 0 || cols < 0) {
+            throw new IOException("Malformed matrix header: " + rows + "x" + cols);
+        }
+        long end = position + MATRIX_HEADER_BYTES;
+        if (encodingAt(buffer, position) != ENCODING_RAW) {
+            int payloadBytes = buffer.limit() - end < Integer.BYTES ? -1 : buffer.getInt((int) end);
+            if (payloadBytes < 0) {
+                throw new IOException("Malformed " + encodingName(encodingAt(buffer, position)) + " matrix header");
+            }
+            end += Integer.BYTES + (long) payloadBytes;
+        } else {
+            end += (long) rows * cols * elementBytes(elementType);
+        }
+        if (end > buffer.limit()) {
+            throw new IOException("Truncated " + rows + "x" + cols + " matrix: " + (end - position)
+                    + " bytes announced, " + (buffer.limit() - position) + " in the frame");
+        }
+        return (int) end;
+    }
+
+    // Reads the next matrix, decoding it if it was sent encoded
+    public static Matrix getMatrix(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < MATRIX_HEADER_BYTES) {
+            throw new IOException("Truncated matrix header");
+        }
+        byte elementType = buffer.get();
+        int elementBytes = elementBytes(elementType);
+        if (elementBytes == 0) {
+            throw new IOException("Unsupported element type: " + elementType);
+        }
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        byte encoding = buffer.get();
+        if (rows < 0 || cols < 0 || (long) rows * cols * elementBytes > MAX_FRAME_BYTES
+                || (encoding == ENCODING_RAW && (long) rows * cols * elementBytes > buffer.remaining())) {
+            throw new IOException("Malformed matrix header: " + rows + "x" + cols);
+        }
+        int payloadBytes = 0;
+        if (encoding != ENCODING_RAW) {
+            if (buffer.remaining() < Integer.BYTES) {
+                throw new IOException("Malformed " + encodingName(encoding) + " matrix header");
+            }
+            payloadBytes = buffer.getInt();
+            if (payloadBytes < 0 || payloadBytes > buffer.remaining()
+                    || payloadBytes < MatrixCodec.minimumPayloadBytes(buffer, elementType, rows, cols, encoding)) {
+                throw new IOException("Malformed " + encodingName(encoding) + " payload of " + payloadBytes
+                        + " bytes for a " + rows + "x" + cols + " matrix");
+            }
+        }
+        Matrix matrix;
+        try {
+            matrix = Matrix.allocate(elementType, rows, cols);
+        } catch (OutOfMemoryError e) {
+            // A constant or all-zero matrix encodes to a few bytes whatever its shape
+            throw new IOException("Not enough memory to decode a " + rows + "x" + cols + " matrix");
+        }
+        if (encoding == ENCODING_RAW) {
+            matrix.getBlock(buffer, 0, 0, rows, cols);
+        } else {
+            MatrixCodec.decode(buffer, matrix, encoding, payloadBytes);
+        }
+        return matrix;
+    }
+
+    public static int[][] getArray(ByteBuffer buffer) throws IOException {
+        Matrix matrix = getMatrix(buffer);
+        if (!(matrix instanceof IntMatrix)) {
+            throw new IOException("Expected an int matrix, got element type " + matrix.elementType());
+        }
+        return ((IntMatrix) matrix).toArray();
+    }
+}